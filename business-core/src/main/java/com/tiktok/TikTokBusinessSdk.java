@@ -14,7 +14,9 @@ import androidx.annotation.Nullable;
 
 import com.tiktok.appevents.*;
 import com.tiktok.util.TTConst;
+import com.tiktok.util.TTHttpTransport;
 import com.tiktok.util.TTLogger;
+import com.tiktok.util.TTTransport;
 
 import com.tiktok.util.TTUtil;
 import org.json.JSONObject;
@@ -110,6 +112,11 @@ public class TikTokBusinessSdk {
             Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
                 @Override
                 public void uncaughtException(@NonNull Thread thread, @NonNull Throwable throwable) {
+                    // whatever crashed, the events tracked so far should survive it
+                    TTAppEventLogger logger = appEventLogger;
+                    if (logger != null) {
+                        logger.spillOnCrash();
+                    }
                     if (TTCrashHandler.isTTSDKRelatedException(throwable)) {
                         TTCrashHandler.handleCrash(TAG, throwable);
                     }
@@ -265,6 +272,24 @@ public class TikTokBusinessSdk {
         appEventLogger.track(event, props);
     }
 
+    /**
+     * Same as {@link TikTokBusinessSdk#trackEvent(String, JSONObject)} with typed properties,
+     * which are cheaper to track than a JSONObject, see {@link TTProperties}.
+     * Not an overload of trackEvent, so that trackEvent(event, null) stays unambiguous.
+     */
+    public static void trackTypedEvent(String event, @Nullable TTProperties props) {
+        appEventLogger.trackTyped(event, props);
+    }
+
+    /**
+     * Track a group of events at once, e.g. the steps of a checkout or events replayed from an offline journal.
+     * Cheaper than calling {@link TikTokBusinessSdk#trackEvent(String, JSONObject)} for each of them,
+     * the whole group is appended to the memory in one step.
+     */
+    public static void trackEvents(Collection<TTTrackEvent> events) {
+        appEventLogger.trackEvents(events);
+    }
+
     /**
      * Track a list of google play purchases at the same time.
      */
@@ -321,6 +346,81 @@ public class TikTokBusinessSdk {
         return config.advertiserIDCollectionEnable;
     }
 
+    /**
+     * max number of events kept in memory
+     */
+    public static int getMemoryCapacity() {
+        return config.memoryCapacity;
+    }
+
+    /**
+     * bounds of the adaptive timer flush, in seconds
+     */
+    public static int getFlushIntervalMin() {
+        return config.flushIntervalMin;
+    }
+
+    public static int getFlushIntervalMax() {
+        return config.flushIntervalMax;
+    }
+
+    public static boolean isEventRollupEnabled() {
+        return config.eventRollup;
+    }
+
+    public static boolean isGzipEnabled() {
+        return config.gzip;
+    }
+
+    /**
+     * limits of the events kept on the disk, non positive values do not apply
+     */
+    public static long getDiskQuotaBytes() {
+        return config.diskQuotaBytes;
+    }
+
+    public static long getMaxEventAgeSeconds() {
+        return config.maxEventAgeSeconds;
+    }
+
+    public static int getMaxDiskEvents() {
+        return config.maxDiskEvents;
+    }
+
+    public static EvictionPolicy getEvictionPolicy() {
+        return config.evictionPolicy;
+    }
+
+    public static StorageEngine getStorageEngine() {
+        return config.storageEngine;
+    }
+
+    public static TTTransport getTransport() {
+        return config.transport;
+    }
+
+    public static OverflowPolicy getOverflowPolicy() {
+        return config.overflowPolicy;
+    }
+
+    public static long getOverflowBlockTimeoutMS() {
+        return config.overflowBlockTimeoutMS;
+    }
+
+    /**
+     * how many events have been dropped because of the {@link OverflowPolicy}
+     */
+    public static long getDroppedEventCount() {
+        return appEventLogger.getDroppedEventCount();
+    }
+
+    /**
+     * how many events have been spilled to the disk because the memory was full
+     */
+    public static long getSpilledEventCount() {
+        return appEventLogger.getSpilledEventCount();
+    }
+
     /**
      * logLevel getter
      */
@@ -534,6 +634,9 @@ public class TikTokBusinessSdk {
         private BigInteger ttAppId;
         /* flush time interval in seconds, default 15, 0 -> disabled */
         private int flushTime = 15;
+        /* bounds of the adaptive flush interval in seconds */
+        private int flushIntervalMin = 5;
+        private int flushIntervalMax = 60;
 //        /* Access-Token for api calls */
 //        private String accessToken;
         /* to enable logs */
@@ -548,6 +651,26 @@ public class TikTokBusinessSdk {
         private final List<TTConst.AutoEvents> disabledEvents;
         /* disable monitor metrics */
         private boolean disableMetrics = false;
+        /* max number of events kept in memory, default 1024 */
+        private int memoryCapacity = 1024;
+        /* what happens to new events when the memory is full */
+        private OverflowPolicy overflowPolicy = OverflowPolicy.SPILL_TO_DISK;
+        /* how long tracking may wait for free memory with OverflowPolicy.BLOCK */
+        private long overflowBlockTimeoutMS = 0;
+        /* merge repeated events of a flush into one record, off by default */
+        private boolean eventRollup = false;
+        /* gzip the bodies of the batch requests, off by default */
+        private boolean gzip = false;
+        /* limits of the events kept on the disk, by default 500 events as before, no byte or age limit */
+        private long diskQuotaBytes = 0;
+        private long maxEventAgeSeconds = 0;
+        private int maxDiskEvents = 500;
+        /* which events go first when the disk is over the limits */
+        private EvictionPolicy evictionPolicy = EvictionPolicy.LOWEST_PRIORITY_FIRST;
+        /* where the events are kept on the disk */
+        private StorageEngine storageEngine = StorageEngine.FILE;
+        /* what sends the requests, see TTTransport */
+        private TTTransport transport = new TTHttpTransport();
 
         /**
          * Read configs from <meta-data>
@@ -633,11 +756,120 @@ public class TikTokBusinessSdk {
         }
 
         /**
-         * to set a custom flush time interval in seconds, defaults to 15
+         * to set a fixed flush time interval in seconds, 0 disables the timer flushes.
+         * By default the interval adapts to the traffic, see {@link #setFlushIntervalBounds(int, int)}
          */
         public TTConfig setFlushTimeInterval(int seconds) {
             if (seconds < 0) throw new RuntimeException("Invalid Flush interval");
             this.flushTime = seconds;
+            if (seconds > 0) {
+                this.flushIntervalMin = seconds;
+                this.flushIntervalMax = seconds;
+            }
+            return this;
+        }
+
+        /**
+         * to set the bounds of the flush time interval in seconds, defaults to 5 and 60.
+         * Within them the interval adapts to the event rate, the upload latency, the network and the size
+         * of the pending events, an idle app is not woken up at all.
+         */
+        public TTConfig setFlushIntervalBounds(int minSeconds, int maxSeconds) {
+            if (minSeconds <= 0 || maxSeconds < minSeconds) throw new RuntimeException("Invalid Flush interval bounds");
+            this.flushIntervalMin = minSeconds;
+            this.flushIntervalMax = maxSeconds;
+            return this;
+        }
+
+        /**
+         * to set how many events can be kept in memory before the {@link OverflowPolicy} applies,
+         * rounded up to the next power of two, defaults to 1024
+         */
+        public TTConfig setMemoryCapacity(int capacity) {
+            if (capacity <= 0) throw new RuntimeException("Invalid memory capacity");
+            this.memoryCapacity = capacity;
+            return this;
+        }
+
+        /**
+         * to set what happens to new events when the memory is full, defaults to {@link OverflowPolicy#SPILL_TO_DISK}
+         * for {@link OverflowPolicy#BLOCK}, see {@link #setOverflowPolicy(OverflowPolicy, long)}
+         */
+        public TTConfig setOverflowPolicy(OverflowPolicy policy) {
+            return setOverflowPolicy(policy, 0);
+        }
+
+        /**
+         * @param blockTimeoutMS only used by {@link OverflowPolicy#BLOCK}, how long tracking may wait
+         *                       for free memory before the event is dropped
+         */
+        public TTConfig setOverflowPolicy(OverflowPolicy policy, long blockTimeoutMS) {
+            if (policy == null || blockTimeoutMS < 0) throw new RuntimeException("Invalid overflow policy");
+            this.overflowPolicy = policy;
+            this.overflowBlockTimeoutMS = blockTimeoutMS;
+            return this;
+        }
+
+        /**
+         * to set the limits of the events kept on the disk while they cannot be sent, 0 means no limit
+         * for that dimension. Defaults to 500 events and no byte or age limit, the disk usage of the
+         * versions which kept the newest 500 events. The byte quota and the age are opt-in, e.g.
+         * setDiskRetention(1024 * 1024, 7 * 24 * 60 * 60, 1000).
+         * Over the limits, events are evicted according to {@link #setEvictionPolicy(EvictionPolicy)}
+         */
+        public TTConfig setDiskRetention(long quotaBytes, long maxAgeSeconds, int maxEvents) {
+            if (quotaBytes < 0 || maxAgeSeconds < 0 || maxEvents < 0) throw new RuntimeException("Invalid disk retention");
+            this.diskQuotaBytes = quotaBytes;
+            this.maxEventAgeSeconds = maxAgeSeconds;
+            this.maxDiskEvents = maxEvents;
+            return this;
+        }
+
+        /**
+         * to set which events are evicted first when the disk is over its limits,
+         * defaults to {@link EvictionPolicy#LOWEST_PRIORITY_FIRST}
+         */
+        public TTConfig setEvictionPolicy(EvictionPolicy policy) {
+            if (policy == null) throw new RuntimeException("Invalid eviction policy");
+            this.evictionPolicy = policy;
+            return this;
+        }
+
+        /**
+         * to set where the events are kept on the disk, defaults to {@link StorageEngine#FILE}.
+         * The events kept by the other engine are moved over when the sdk starts.
+         */
+        public TTConfig setStorageEngine(StorageEngine engine) {
+            if (engine == null) throw new RuntimeException("Invalid storage engine");
+            this.storageEngine = engine;
+            return this;
+        }
+
+        /**
+         * to send the requests with a transport of your own, e.g. {@link com.tiktok.util.TTLocalTransport}
+         * in tests, or {@link TTHttpTransport} with other timeouts, defaults to {@link TTHttpTransport}
+         */
+        public TTConfig setTransport(TTTransport transport) {
+            if (transport == null) throw new RuntimeException("Invalid transport");
+            this.transport = transport;
+            return this;
+        }
+
+        /**
+         * to merge repeated events (same name, same properties) of a flush into one record
+         * with a count and first/last timestamps
+         */
+        public TTConfig enableEventRollup() {
+            this.eventRollup = true;
+            return this;
+        }
+
+        /**
+         * to send the batches of events with Content-Encoding: gzip, the body is compressed
+         * into the connection while it is written
+         */
+        public TTConfig enableGzip() {
+            this.gzip = true;
             return this;
         }
 
@@ -667,6 +899,44 @@ public class TikTokBusinessSdk {
         }
     }
 
+    /**
+     * What happens to a new event when the in-memory backlog is full,
+     * see {@link TTConfig#setMemoryCapacity(int)}
+     */
+    public enum OverflowPolicy {
+        /* evict the oldest event in memory */
+        DROP_OLDEST,
+        /* discard the new event */
+        DROP_NEWEST,
+        /* move the memory to the disk */
+        SPILL_TO_DISK,
+        /* wait for free memory up to a timeout, then discard the new event */
+        BLOCK,
+    }
+
+    /**
+     * Which events on the disk are evicted first when the limits of
+     * {@link TTConfig#setDiskRetention(long, long, int)} are exceeded
+     */
+    public enum EvictionPolicy {
+        /* the oldest events */
+        OLDEST_FIRST,
+        /* the events other than conversions and identify, oldest first */
+        LOWEST_PRIORITY_FIRST,
+        /* every other batch of events, so that the whole offline period stays covered */
+        SAMPLED_THINNING,
+    }
+
+    /**
+     * Where the events waiting to be sent are kept on the disk, see {@link TTConfig#setStorageEngine(StorageEngine)}
+     */
+    public enum StorageEngine {
+        /* segment files of the app's files dir */
+        FILE,
+        /* a table of an SQLite database, for apps that already ship SQLite */
+        SQLITE,
+    }
+
     public interface CrashListener {
         void onCrash(Thread thread, Throwable ex);
     }
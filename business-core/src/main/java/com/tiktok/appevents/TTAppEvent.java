@@ -29,6 +29,11 @@ public class TTAppEvent implements Serializable {
     private static AtomicLong counter = new AtomicLong(new Date().getTime() + 0L);
     private Long uniqueId;
     private TTUserInfo userInfo;
+    // how many tracked events this one stands for after sampling, 0 when read from an older cache
+    private double sampleWeight = 1;
+    // number of repeats merged into this event by TTEventRollup, 0 when read from an older cache
+    private int count = 1;
+    private Date lastTimeStamp;
     private static String TAG = TTAppEventsQueue.class.getCanonicalName();
     private static TTLogger logger = new TTLogger(TAG, TikTokBusinessSdk.getLogLevel());
 
@@ -37,18 +42,87 @@ public class TTAppEvent implements Serializable {
     }
 
     TTAppEvent(TTAppEventType type, String eventName, Date timeStamp, String propertiesJson) {
+        this(type, eventName, timeStamp, propertiesJson, TTUserInfo.snapshot());
+    }
+
+    /**
+     * @param userInfo the user info at the time the event was tracked, see {@link TTUserInfo#snapshot()}
+     */
+    TTAppEvent(TTAppEventType type, String eventName, Date timeStamp, String propertiesJson, TTUserInfo userInfo) {
         this.type = type;
         this.eventName = eventName;
         this.timeStamp = timeStamp;
         this.propertiesJson = propertiesJson;
         this.uniqueId = TTAppEvent.counter.getAndIncrement();
-        this.userInfo = TTUserInfo.sharedInstance.clone();
+        this.userInfo = userInfo;
+    }
+
+    /**
+     * Restores an event read back from the disk, see {@link TTEventCodec}
+     */
+    TTAppEvent(TTAppEventType type, String eventName, Date timeStamp, String propertiesJson, TTUserInfo userInfo,
+               long uniqueId, double sampleWeight, int count, Date lastTimeStamp) {
+        this.type = type;
+        this.eventName = eventName;
+        this.timeStamp = timeStamp;
+        this.propertiesJson = propertiesJson;
+        this.uniqueId = uniqueId;
+        this.userInfo = userInfo;
+        this.sampleWeight = sampleWeight;
+        this.count = count;
+        this.lastTimeStamp = lastTimeStamp;
     }
 
     public TTUserInfo getUserInfo() {
         return userInfo;
     }
 
+    public double getSampleWeight() {
+        return sampleWeight > 0 ? sampleWeight : 1;
+    }
+
+    void setSampleWeight(double sampleWeight) {
+        this.sampleWeight = sampleWeight;
+    }
+
+    /**
+     * Conversion and identify events go through the priority lane of the queue, the disk and the uploader
+     */
+    boolean isPriority() {
+        return isPriority(type, eventName);
+    }
+
+    static boolean isPriority(TTAppEventType type, String eventName) {
+        return type == TTAppEventType.identify || "Purchase".equals(eventName);
+    }
+
+    public int getCount() {
+        return count > 0 ? count : 1;
+    }
+
+    /**
+     * @return the timestamp of the last merged repeat, or the event's own timestamp
+     */
+    public Date getLastTimeStamp() {
+        return lastTimeStamp != null ? lastTimeStamp : timeStamp;
+    }
+
+    /**
+     * Folds a repeat of this event in, the sample weight becomes the average
+     * so that count * weight still estimates the tracked volume
+     */
+    void merge(TTAppEvent repeat) {
+        int total = getCount() + repeat.getCount();
+        sampleWeight = (getSampleWeight() * getCount() + repeat.getSampleWeight() * repeat.getCount()) / total;
+        count = total;
+        Date last = getLastTimeStamp();
+        Date repeatLast = repeat.getLastTimeStamp();
+        if (repeat.timeStamp.before(timeStamp)) {
+            timeStamp = repeat.timeStamp;
+        }
+        lastTimeStamp = repeatLast.after(last) ? repeatLast : last;
+    }
+
     public String getEventName() {
         return eventName;
     }
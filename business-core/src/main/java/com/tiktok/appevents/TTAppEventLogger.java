@@ -17,24 +17,36 @@ import com.tiktok.util.*;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 public class TTAppEventLogger {
     static final String SKIP_FLUSHING_BECAUSE_GLOBAL_SWITCH_IS_TURNED_OFF = "Skip flushing because global switch is turned off";
     static final String SKIP_FLUSHING_BECAUSE_GLOBAL_CONFIG_IS_NOT_FETCHED = "Skip flushing because global config is not fetched";
     static final String TAG = TTAppEventLogger.class.getName();
 
-    // every TIME_BUFFER seconds, a flush task will be pushed to the execution queue
+    // 0 disables the timer flushes, otherwise the delay is picked by flushScheduler
     private static int TIME_BUFFER;
-    int counter;
-    // once THRESHOLD events got accumulated in the memory, a flush task will be pushed to the execution queue
+    // once THRESHOLD events got accumulated in the memory, a flush task will be pushed to the execution queue,
+    // this is the initial value, flushScheduler adapts it to the network and the event size
     static final int THRESHOLD = 100;
+    // at most this many events are read from the disk per flush, the rest waits for the next one
+    static final int FLUSH_WINDOW_EVENTS = 500;
     public static final String NETWORK_IS_TURNED_OFF = "SDK can't send tracking events to server, it will be cached locally, and will be sent in batches only after startTracking";
 
     static int totalDumped = 0;
@@ -56,13 +68,51 @@ public class TTAppEventLogger {
     int flushId = 0;
 
     // similar to what javascript has, so that all the internal tasks are executed in a waterfall fashion, avoiding race conditions
+    // only lightweight ingestion work runs here, so that tracking is never stuck behind the network or the disk
     static ScheduledExecutorService eventLoop = Executors.newSingleThreadScheduledExecutor(new TTThreadFactory());
-    ScheduledFuture<?> future = null;
+    // the next timer flush, only armed while there is something to send
+    volatile ScheduledFuture<?> future = null;
+    private volatile boolean schedulerStarted = false;
+    private volatile long nextFlushAtMS = 0;
+
+    // network: flushes, global config and monitor reports
+    static ScheduledExecutorService uploadLoop = Executors.newSingleThreadScheduledExecutor(new TTThreadFactory());
+    // disk: persist requests that are not part of a flush
+    static ExecutorService diskLoop = Executors.newSingleThreadExecutor(new TTThreadFactory());
+
+    /**
+     * Flush hand-off between the eventLoop and the uploadLoop:
+     * at most one flush runs at a time, requests arriving in the meantime are coalesced
+     * into pendingFlush and served by a single follow-up flush.
+     */
+    static final AtomicBoolean flushRunning = new AtomicBoolean(false);
+    static final AtomicReference<FlushReason> pendingFlush = new AtomicReference<>(null);
 
     // used by internal monitor
     static ScheduledExecutorService timerService = Executors.newSingleThreadScheduledExecutor(new TTThreadFactory());
     ScheduledFuture<?> timeFuture = null;
-    private final Runnable batchFlush = () -> flush(FlushReason.TIMER);
+    private final Runnable batchFlush = () -> {
+        synchronized (this) {
+            future = null;
+        }
+        requestFlush(FlushReason.TIMER);
+    };
+    // picks the next timer flush and the flush threshold
+    static final TTFlushScheduler flushScheduler = new TTFlushScheduler(System.currentTimeMillis());
+
+    // track calls record into preallocated slots on the calling thread, the eventLoop turns them into events
+    static final TTEventStagingRing stagingRing = new TTEventStagingRing(256);
+    // the events which found the staging ring full and have to be kept, SPILL_TO_DISK and priority
+    // events, drained by the same task, bounded as well: the last PRIORITY_RESERVE slots are
+    // left to the priority events, which wait up to PRIORITY_WAIT_MS for a slot
+    static final TTEventStagingRing overflowRing = new TTEventStagingRing(1024);
+    static final int PRIORITY_RESERVE = 128;
+    static final long PRIORITY_WAIT_MS = 1000;
+    // whether a drainStaged task is already waiting in the eventLoop
+    static final AtomicBoolean stagingDrainScheduled = new AtomicBoolean(false);
+    private final Runnable drainStaged = this::drainStagedEvents;
+    // sampling and rate limits per event name, configured by the global config
+    static final TTEventRateLimiter rateLimiter = new TTEventRateLimiter();
 
     final TTAutoEventsManager autoEventsManager;
 
@@ -81,7 +131,8 @@ public class TTAppEventLogger {
         this.lifecycleTrackEnable = lifecycleTrackEnable;
         this.disabledEvents = disabledEvents;
         TIME_BUFFER = flushTime;
-        counter = flushTime;
+        flushScheduler.configure(TikTokBusinessSdk.getFlushIntervalMin() * 1000L,
+                TikTokBusinessSdk.getFlushIntervalMax() * 1000L);
         lifecycle = ProcessLifecycleOwner.get().getLifecycle();
         if (monitorDisable) {
             metricsEnabled = false;
@@ -91,19 +142,35 @@ public class TTAppEventLogger {
         TTActivityLifecycleCallbacksListener activityLifecycleCallbacks = new TTActivityLifecycleCallbacksListener(this);
         this.lifecycle.addObserver(activityLifecycleCallbacks);
 
+        TTAppEventsQueue.configure(TikTokBusinessSdk.getMemoryCapacity(),
+                TikTokBusinessSdk.getOverflowPolicy(), TikTokBusinessSdk.getOverflowBlockTimeoutMS());
+
         autoEventsManager = new TTAutoEventsManager(this);
-        addToQ(SystemInfoUtil::initUserAgent);
+        addToUploadQ(SystemInfoUtil::initUserAgent);
         addToQ(TTAppEventsQueue::clearAll);
-        addToQ(TTCrashHandler::initCrashReporter);
+        // the stores are recovered from their indexes in the background, before the first flush needs them
+        addToDiskQ(TTAppEventStorage::open);
+        // before the start up flush, a backoff of the last run goes on
+        addToUploadQ(() -> TTRequest.backoff.load(new TTKeyValueStore(TikTokBusinessSdk.getApplicationContext()),
+                System.currentTimeMillis()));
+        addToUploadQ(TTCrashHandler::initCrashReporter);
         fetchGlobalConfig(0);
         monitorMetric("init_start", TTUtil.getMetaWithTS(initTimeMS), null);
     }
 
     /**
-     * persist events to the disk
+     * persist events to the disk, durably, the app may not come back
      */
     void persistEvents() {
-        addToQ(() -> TTAppEventStorage.persist(null));
+        // hop through the eventLoop first, so that the events tracked so far are in the memory
+        addToQ(() -> addToDiskQ(TTAppEventStorage::persistDurably));
+    }
+
+    /**
+     * Called on the crashing thread, see {@link TTAppEventStorage#spillOnCrash()}
+     */
+    public void spillOnCrash() {
+        TTAppEventStorage.spillOnCrash();
     }
 
     public void trackPurchase(List<TTPurchaseInfo> purchaseInfos) {
@@ -127,40 +194,70 @@ public class TTAppEventLogger {
 
     void startScheduler() {
         if (TIME_BUFFER != 0) {
-            doStartScheduler(TIME_BUFFER, false);
+            doStartScheduler(false);
         }
     }
 
     void restartScheduler() {
         if (TIME_BUFFER != 0) {
-            doStartScheduler(TIME_BUFFER, true);
+            doStartScheduler(true);
         }
     }
 
-    /**
-     * Try to flush to network every {@link TTAppEventLogger#TIME_BUFFER} seconds
-     * Like setTimeInterval in js
-     */
-    private void doStartScheduler(int interval, boolean immediate) {
-        if (future == null) {
-            future = eventLoop.scheduleAtFixedRate(batchFlush, immediate ? 0 : interval, interval, TimeUnit.SECONDS);
-        }
+    private void doStartScheduler(boolean immediate) {
+        schedulerStarted = true;
+        scheduleNextFlush(immediate);
         if (timeFuture == null && TikTokBusinessSdk.nextTimeFlushListener != null) {
-            counter = interval;
             timeFuture = timerService.scheduleAtFixedRate(() -> {
-                TikTokBusinessSdk.nextTimeFlushListener.timeLeft(counter);
-                if (counter == 0) {
-                    counter = interval;
-                }
-                counter--;
+                long left = future == null ? 0 : nextFlushAtMS - System.currentTimeMillis();
+                TikTokBusinessSdk.nextTimeFlushListener.timeLeft((int) Math.max(left / 1000, 0));
             }, 0, 1, TimeUnit.SECONDS);
         }
     }
 
+    /**
+     * Arms the timer flush unless it is armed already, an idle app is not woken up:
+     * the timer is only armed while events wait in the memory or on the disk, or while the other
+     * processes have handed events over, the first event tracked afterwards arms it again.
+     *
+     * @param immediate flush right away, replacing the armed timer
+     */
+    synchronized void scheduleNextFlush(boolean immediate) {
+        if (!schedulerStarted || TIME_BUFFER == 0) {
+            return;
+        }
+        if (future != null) {
+            if (!immediate) {
+                return;
+            }
+            future.cancel(false);
+            future = null;
+        }
+        int pending = TTAppEventsQueue.size();
+        if (!immediate && pending == 0 && !flushScheduler.hasUnsentEvents()
+                && !TTAppEventStorage.hasSpillsWaiting()) {
+            return;
+        }
+        long delayMS = 0;
+        if (!immediate) {
+            String networkClass = SystemInfoUtil.getNetworkClass(TikTokBusinessSdk.getApplicationContext());
+            delayMS = flushScheduler.nextDelayMS(networkClass, pending, System.currentTimeMillis());
+        }
+        // not before the api is tried again
+        delayMS = Math.max(delayMS, TTRequest.backoff.remainingMS(System.currentTimeMillis()));
+        try {
+            future = eventLoop.schedule(batchFlush, delayMS, TimeUnit.MILLISECONDS);
+            nextFlushAtMS = System.currentTimeMillis() + delayMS;
+        } catch (Exception e) {
+            TTCrashHandler.handleCrash(TAG, e);
+        }
+    }
+
     /**
      * Stop the recurrent task when the user interface is no longer interactive
      */
-    void stopScheduler() {
+    synchronized void stopScheduler() {
+        schedulerStarted = false;
         if (future != null) {
             future.cancel(false);
             future = null;
@@ -205,24 +302,268 @@ public class TTAppEventLogger {
         trackEvent(TTAppEvent.TTAppEventType.track, event, props);
     }
 
-    private void trackEvent(TTAppEvent.TTAppEventType type, String event, @Nullable JSONObject props) {
+    public void trackTyped(String event, @Nullable TTProperties props) {
+        trackEvent(TTAppEvent.TTAppEventType.track, event, props);
+    }
+
+    /**
+     * Runs on the calling thread, on the fast path nothing is allocated:
+     * the event is copied into a staging slot and at most one drain task is pending in the eventLoop.
+     */
+    private void trackEvent(TTAppEvent.TTAppEventType type, String event, @Nullable Object props) {
         if (!TikTokBusinessSdk.isSystemActivated()) {
             return;
         }
 
-        JSONObject finalProps = props != null ? props : new JSONObject();
-        Runnable task = () -> {
-            try {
-                logger.debug("track " + event + " : " + finalProps.toString(4));
-            } catch (JSONException ignored) {}
+        // conversion events are never sampled nor rate limited, whatever the rules
+        double sampleWeight = TTAppEvent.isPriority(type, event)
+                ? TTEventRateLimiter.NOT_SAMPLED : rateLimiter.admit(event);
+        if (sampleWeight == TTEventRateLimiter.DISCARDED) {
+            return;
+        }
+
+        if (stagingRing.publish(type, event, props, sampleWeight)) {
+            scheduleStagingDrain();
+            return;
+        }
+
+        // staging slots are exhausted, the eventLoop is lagging behind
+        onStagingFull(type, event, props, sampleWeight);
+    }
 
-            TTAppEventsQueue.addEvent(new TTAppEvent(type, event, finalProps.toString()));
+    private void scheduleStagingDrain() {
+        if (stagingDrainScheduled.compareAndSet(false, true)) {
+            addToQ(drainStaged);
+        }
+    }
 
-            if (TTAppEventsQueue.size() > THRESHOLD) {
-                flush(FlushReason.THRESHOLD);
+    /**
+     * Applies the overflow policy to an event which found no staging slot, still on the calling
+     * thread, without any queue, disk or flush work, and bounded: at most the one drain task of the
+     * staging ring is pending in the eventLoop whatever the load.
+     * <ul>
+     * <li>priority events, and all of them with {@link TikTokBusinessSdk.OverflowPolicy#SPILL_TO_DISK},
+     * go to the {@link #overflowRing}, drained after the staging ring, where the memory and the
+     * disk apply the policy. A priority event which finds it full waits up to
+     * {@link #PRIORITY_WAIT_MS}, a spilled one is dropped once only the priority reserve is left</li>
+     * <li>{@link TikTokBusinessSdk.OverflowPolicy#DROP_OLDEST} evicts the oldest staged event for the
+     * new one, unless that is a priority event</li>
+     * <li>{@link TikTokBusinessSdk.OverflowPolicy#BLOCK} waits for a staging slot up to its timeout</li>
+     * </ul>
+     * Otherwise the new event is dropped, as {@link TikTokBusinessSdk.OverflowPolicy#DROP_NEWEST}
+     * does right away.
+     */
+    private void onStagingFull(TTAppEvent.TTAppEventType type, String event, @Nullable Object props,
+                               double sampleWeight) {
+        TikTokBusinessSdk.OverflowPolicy policy = TTAppEventsQueue.getOverflowPolicy();
+        boolean priority = TTAppEvent.isPriority(type, event);
+        if (priority || policy == TikTokBusinessSdk.OverflowPolicy.SPILL_TO_DISK) {
+            boolean room = priority || overflowRing.size() < overflowRing.capacity() - PRIORITY_RESERVE;
+            if (room && overflowRing.publish(type, event, props, sampleWeight)) {
+                scheduleStagingDrain();
+                return;
             }
+            if (priority && publishWithin(overflowRing, PRIORITY_WAIT_MS, type, event, props, sampleWeight)) {
+                return;
+            }
+        } else if (policy == TikTokBusinessSdk.OverflowPolicy.DROP_OLDEST) {
+            // other producers may take the released slot, so retry a few times
+            for (int i = 0; i < 3; i++) {
+                if (stagingRing.evictOldest()) {
+                    TTAppEventsQueue.countDropped();
+                }
+                if (stagingRing.publish(type, event, props, sampleWeight)) {
+                    scheduleStagingDrain();
+                    return;
+                }
+            }
+        } else if (policy == TikTokBusinessSdk.OverflowPolicy.BLOCK
+                && publishWithin(stagingRing, TTAppEventsQueue.getBlockTimeoutMS(), type, event, props, sampleWeight)) {
+            return;
+        }
+        TTAppEventsQueue.countDropped();
+    }
+
+    private boolean publishWithin(TTEventStagingRing ring, long timeoutMS, TTAppEvent.TTAppEventType type,
+                                  String event, @Nullable Object props, double sampleWeight) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMS);
+        while (System.nanoTime() < deadline) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            if (ring.publish(type, event, props, sampleWeight)) {
+                scheduleStagingDrain();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tracks a group of events with a single eventLoop task, the group is appended to the memory
+     * in one step, the listeners are notified and the flush conditions evaluated once
+     */
+    public void trackEvents(Collection<TTTrackEvent> events) {
+        if (!TikTokBusinessSdk.isSystemActivated() || events == null || events.isEmpty()) {
+            return;
+        }
+        long timestamp = System.currentTimeMillis();
+        TTUserInfo userInfo = TTUserInfo.snapshot();
+        List<TTTrackEvent> admitted = new ArrayList<>(events.size());
+        double[] sampleWeights = new double[events.size()];
+        for (TTTrackEvent event : events) {
+            if (event == null) {
+                continue;
+            }
+            double sampleWeight = TTAppEvent.isPriority(TTAppEvent.TTAppEventType.track, event.getEventName())
+                    ? TTEventRateLimiter.NOT_SAMPLED : rateLimiter.admit(event.getEventName());
+            if (sampleWeight != TTEventRateLimiter.DISCARDED) {
+                sampleWeights[admitted.size()] = sampleWeight;
+                admitted.add(event);
+            }
+        }
+        if (admitted.isEmpty()) {
+            return;
+        }
+        addToQ(() -> addGroupToQueue(admitted, sampleWeights, timestamp, userInfo));
+    }
+
+    private void addGroupToQueue(List<TTTrackEvent> events, double[] sampleWeights,
+                                 long timestamp, TTUserInfo userInfo) {
+        // events tracked one by one before the group go first
+        drainStagingRing();
+
+        List<TTAppEvent> appEvents = new ArrayList<>(events.size());
+        boolean priority = false;
+        for (int i = 0; i < events.size(); i++) {
+            TTTrackEvent event = events.get(i);
+            TTAppEvent appEvent = newAppEvent(TTAppEvent.TTAppEventType.track, event.getEventName(),
+                    event.getProperties(), event.getTimestampMS() > 0 ? event.getTimestampMS() : timestamp,
+                    userInfo, sampleWeights[i]);
+            priority |= appEvent.isPriority();
+            appEvents.add(appEvent);
+        }
+        List<TTAppEvent> toSpill = TTAppEventsQueue.addEvents(appEvents);
+        if (!toSpill.isEmpty()) {
+            spillToDisk(toSpill);
+        }
+        if (priority) {
+            requestFlush(FlushReason.PRIORITY);
+        }
+        if (overThreshold()) {
+            requestFlush(FlushReason.THRESHOLD);
+        }
+        if (future == null) {
+            scheduleNextFlush(false);
+        }
+    }
+
+    private void drainStagedEvents() {
+        // reset before draining, so that events published from now on schedule another drain
+        stagingDrainScheduled.set(false);
+        drainStagingRing();
+        if (overThreshold()) {
+            requestFlush(FlushReason.THRESHOLD);
+        }
+    }
+
+    /**
+     * For the THRESHOLD flush: {@link TTAppEventsQueue#size()} counts the events of both lanes,
+     * while {@link TTAppEventsQueue#isFull()} only looks at the bulk lane
+     */
+    private static boolean overThreshold() {
+        return TTAppEventsQueue.size() > flushScheduler.flushThreshold();
+    }
+
+    /**
+     * The staging ring, then what did not fit in it
+     */
+    private void drainStagingRing() {
+        TTEventStagingRing.SlotConsumer toQueue = slot -> addToQueue(slot.type, slot.eventName, slot.props,
+                slot.timestamp, slot.userInfo, slot.sampleWeight);
+        stagingRing.drain(toQueue, Integer.MAX_VALUE);
+        overflowRing.drain(toQueue, Integer.MAX_VALUE);
+    }
+
+    /**
+     * For the crash handler: turns what the track calls staged into events on the calling thread,
+     * unless the eventLoop is draining them at this moment
+     */
+    static void tryDrainStaged(List<TTAppEvent> out) {
+        TTEventStagingRing.SlotConsumer toEvents = slot -> {
+            TTAppEvent appEvent = new TTAppEvent(slot.type, slot.eventName, new Date(slot.timestamp),
+                    slot.props != null ? slot.props.toString() : "{}", slot.userInfo);
+            appEvent.setSampleWeight(slot.sampleWeight);
+            out.add(appEvent);
         };
-        addToQ(task);
+        stagingRing.tryDrain(toEvents, Integer.MAX_VALUE);
+        overflowRing.tryDrain(toEvents, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param props JSONObject or TTProperties, both turn into json text with toString
+     */
+    private TTAppEvent newAppEvent(TTAppEvent.TTAppEventType type, String event, @Nullable Object props,
+                                   long timestamp, TTUserInfo userInfo, double sampleWeight) {
+        if (logger.logLevel == TikTokBusinessSdk.LogLevel.DEBUG) {
+            logger.debug("track " + event + " : "
+                    + (props instanceof JSONObject ? TTUtil.ppStr((JSONObject) props) : String.valueOf(props)));
+        }
+
+        String propsJson = props != null ? props.toString() : "{}";
+        TTAppEvent appEvent = new TTAppEvent(type, event, new Date(timestamp), propsJson, userInfo);
+        appEvent.setSampleWeight(sampleWeight);
+        flushScheduler.onEventQueued(propsJson.length());
+        return appEvent;
+    }
+
+    private void addToQueue(TTAppEvent.TTAppEventType type, String event, @Nullable Object props,
+                            long timestamp, TTUserInfo userInfo, double sampleWeight) {
+        TTAppEvent appEvent = newAppEvent(type, event, props, timestamp, userInfo, sampleWeight);
+        // the bulk lane only, a full priority lane is spilled below whatever the overflow policy
+        if (TTAppEventsQueue.isFull()) {
+            requestFlush(FlushReason.THRESHOLD);
+        }
+        if (!TTAppEventsQueue.addEvent(appEvent)) {
+            List<TTAppEvent> toSpill = new ArrayList<>(1);
+            toSpill.add(appEvent);
+            spillToDisk(toSpill);
+        }
+        if (appEvent.isPriority()) {
+            requestFlush(FlushReason.PRIORITY);
+        }
+        if (future == null) {
+            scheduleNextFlush(false);
+        }
+    }
+
+    /**
+     * {@link TikTokBusinessSdk.OverflowPolicy#SPILL_TO_DISK}, move the memory and the new events
+     * to the diskLoop, which persists them. When only priority events found no room, only the
+     * priority lane goes along, the diskLoop writes them to the priority log, the bulk lane and
+     * its overflow policy are left alone.
+     */
+    private void spillToDisk(List<TTAppEvent> appEvents) {
+        boolean bulk = false;
+        for (TTAppEvent appEvent : appEvents) {
+            bulk |= !appEvent.isPriority();
+        }
+        List<TTAppEvent> spilled = new ArrayList<>(TTAppEventsQueue.size() + appEvents.size());
+        if (bulk) {
+            TTAppEventsQueue.drainTo(spilled, Integer.MAX_VALUE);
+        } else {
+            TTAppEventsQueue.drainPriorityTo(spilled, Integer.MAX_VALUE);
+        }
+        spilled.addAll(appEvents);
+        TTAppEventsQueue.countSpilled(spilled.size());
+        logger.debug("Memory queue is full, spill %d events to disk", spilled.size());
+        addToDiskQ(() -> TTAppEventStorage.persist(spilled));
+    }
+
+    public long getDroppedEventCount() {
+        return TTAppEventsQueue.getDroppedEvents();
+    }
+
+    public long getSpilledEventCount() {
+        return TTAppEventsQueue.getSpilledEvents();
     }
 
 
@@ -232,16 +573,61 @@ public class TTAppEventLogger {
 
     public void flushWithReason(FlushReason reason) {
         logger.debug(reason.name() + " triggered flush");
-        addToQ(() -> flush(reason));
+        // go through the eventLoop, so that the events tracked before are part of the flush
+        addToQ(() -> requestFlush(reason));
     }
 
     // only when this method is called will the whole sdk be activated
     private void activateSdk() {
         autoEventsManager.trackOnAppOpenEvents();
         startScheduler();
-        flush(FlushReason.START_UP);
+        flushWithReason(FlushReason.START_UP);
+    }
+
+    /**
+     * Hand a flush over to the uploadLoop, can be called from any thread.
+     * If a flush is already running, the request is served by one follow-up flush once it is done.
+     */
+    void requestFlush(FlushReason reason) {
+        if (reason == FlushReason.PRIORITY) {
+            // any other pending flush sends the priority lane first anyway, do not downgrade it
+            pendingFlush.compareAndSet(null, reason);
+        } else {
+            pendingFlush.set(reason);
+        }
+        if (flushRunning.compareAndSet(false, true)) {
+            try {
+                uploadLoop.execute(this::runPendingFlushes);
+            } catch (Exception e) {
+                flushRunning.set(false);
+                TTCrashHandler.handleCrash(TAG, e);
+            }
+        }
     }
 
+    private void runPendingFlushes() {
+        try {
+            FlushReason reason;
+            while ((reason = pendingFlush.getAndSet(null)) != null) {
+                flush(reason);
+            }
+        } finally {
+            flushRunning.set(false);
+        }
+        // the delay of the next timer flush depends on what is left and on how this flush went
+        scheduleNextFlush(false);
+        // a request might have arrived between the last check and the reset of flushRunning
+        FlushReason missed = pendingFlush.get();
+        if (missed != null) {
+            requestFlush(missed);
+        }
+    }
+
+    /**
+     * The flush itself, runs on the uploadLoop.
+     * The disk reads and write-backs that belong to the flush are done inline on the uploadLoop,
+     * {@link TTAppEventStorage} serializes them with the diskLoop.
+     */
     void flush(FlushReason reason) {
         long initTimeMS = System.currentTimeMillis();
         TTUtil.checkThread(TAG);
@@ -259,30 +645,80 @@ public class TTAppEventLogger {
         }
 
         int flushSize = 0;
+        int rolledUp = 0;
 
         try {
-            if (TikTokBusinessSdk.getNetworkSwitch()) {
+            // in a multi-process app only one process sends, see TTUploaderLock
+            boolean uploader = TTUploaderLock.isUploader();
+            // until the retry delay is over the disk is left alone too, whatever the reason, a burst of
+            // tracked events does not hit the api again right away, only a flush of the app goes through
+            boolean backingOff = reason != FlushReason.FORCE_FLUSH && TTRequest.backoff.isWaiting(initTimeMS);
+            boolean networkOn = TikTokBusinessSdk.getNetworkSwitch();
+            if (networkOn && uploader && !backingOff) {
                 logger.debug("Start flush, version %d reason is %s", flushId, reason.name());
 
-                TTAppEventPersist appEventPersist = TTAppEventStorage.readFromDisk();
-
-                appEventPersist.addEvents(TTAppEventsQueue.exportAllEvents());
+                TTAppEventPersist appEventPersist;
+                if (reason == FlushReason.PRIORITY) {
+                    // expedited, the bulk lane waits for the next regular flush
+                    appEventPersist = TTAppEventStorage.readPriorityFromDisk(FLUSH_WINDOW_EVENTS);
+                } else {
+                    appEventPersist = TTAppEventStorage.readFromDisk(FLUSH_WINDOW_EVENTS);
+                }
+                // the events stay on the disk until the server acknowledges them
+                List<TTAppEvent> fromDisk = new ArrayList<>(appEventPersist.getAppEvents());
+                if (reason == FlushReason.PRIORITY) {
+                    TTAppEventsQueue.drainPriorityTo(appEventPersist.getAppEvents(), Integer.MAX_VALUE);
+                } else {
+                    // both come priority lane first, the priority events in memory are moved
+                    // ahead of the bulk events of the disk
+                    List<TTAppEvent> events = appEventPersist.getAppEvents();
+                    int diskPriority = 0;
+                    while (diskPriority < events.size() && events.get(diskPriority).isPriority()) {
+                        diskPriority++;
+                    }
+                    if (diskPriority < events.size() && TTAppEventsQueue.prioritySize() > 0) {
+                        List<TTAppEvent> memoryPriority = new ArrayList<>();
+                        TTAppEventsQueue.drainPriorityTo(memoryPriority, Integer.MAX_VALUE);
+                        events.addAll(diskPriority, memoryPriority);
+                    }
+                    TTAppEventsQueue.drainTo(events, Integer.MAX_VALUE);
+                }
 
                 flushSize = appEventPersist.getAppEvents().size();
 
+                List<TTAppEvent> toReport = appEventPersist.getAppEvents();
+                if (TikTokBusinessSdk.isEventRollupEnabled()) {
+                    toReport = TTEventRollup.rollup(toReport);
+                    rolledUp = flushSize - toReport.size();
+                }
+
                 List<TTAppEvent> failedEvents = TTRequest
-                        .reportAppEvent(TTRequestBuilder.getBasePayload(), appEventPersist.getAppEvents());
+                        .reportAppEvent(TTRequestBuilder.getBasePayload(), toReport);
 
-                if (!failedEvents.isEmpty()) { // flush failed, persist events
-                    logger.debug("Failed to send %d events, will save to disk", failedEvents.size());
-                    TTAppEventStorage.persist(failedEvents);
+                acknowledge(appEventPersist, fromDisk, failedEvents, rolledUp == 0);
+                if (failedEvents.isEmpty() && fromDisk.size() >= FLUSH_WINDOW_EVENTS) {
+                    // the disk holds more than one window
+                    requestFlush(reason);
                 }
+                flushScheduler.onFlushed(System.currentTimeMillis() - initTimeMS, failedEvents.isEmpty());
                 logger.debug("END flush, version %d reason is %s", flushId, reason.name());
 
                 flushId++;
+            } else if (!uploader) {
+                logger.debug("Another process uploads, hand the events over to it");
+                TTAppEventStorage.persist(null);
+                // nothing is left to send from this process, the timer is not armed again
+                flushScheduler.onHandedOver();
             } else {
-                logger.info(NETWORK_IS_TURNED_OFF);
+                if (!networkOn) {
+                    logger.info(NETWORK_IS_TURNED_OFF);
+                } else {
+                    logger.debug("The api is unreachable, uploads resume in %d s",
+                            TTRequest.backoff.remainingMS(initTimeMS) / 1000);
+                }
+                // the events stay on the disk of this process
                 TTAppEventStorage.persist(null);
+                flushScheduler.onFlushSkipped();
             }
         } catch (Exception e) {
             TTCrashHandler.handleCrash(TAG, e);
@@ -294,16 +730,71 @@ public class TTAppEventLogger {
                 JSONObject meta = TTUtil.getMetaWithTS(initTimeMS)
                         .put("latency", endTimeMS-initTimeMS)
                         .put("type",reason.name())
-                        .put("interval", TIME_BUFFER)
-                        .put("size", flushSize);
+                        .put("interval", flushScheduler.lastDelayMS() / 1000)
+                        .put("size", flushSize)
+                        .put("dropped", TTAppEventsQueue.getDroppedEvents())
+                        .put("spilled", TTAppEventsQueue.getSpilledEvents())
+                        .put("rolled_up", rolledUp);
                 monitorMetric("flush", meta, null);
             } catch (Exception ignored) {}
         }
 
-        addToQ(TTCrashHandler::initCrashReporter);
+        addToUploadQ(TTCrashHandler::initCrashReporter);
+    }
+
+    /**
+     * Commits the disk events of the flush which the server has acknowledged.
+     * When the disk events that failed are all at the end of the window, typically because the
+     * network went away, they simply stay on the disk. Otherwise the failed events are appended
+     * again before the whole window is committed, a crash in between sends them twice, not never.
+     *
+     * @param exact false if events were merged by the rollup, a merged record only stands for
+     *              its repeats in the memory, so it has to be written again if it failed
+     */
+    private void acknowledge(TTAppEventPersist read, List<TTAppEvent> fromDisk,
+                                    List<TTAppEvent> failedEvents, boolean exact) {
+        Set<TTAppEvent> failed = Collections.newSetFromMap(new IdentityHashMap<TTAppEvent, Boolean>());
+        failed.addAll(failedEvents);
+        int acked = 0;
+        while (acked < fromDisk.size() && !failed.contains(fromDisk.get(acked))) {
+            acked++;
+        }
+        boolean failedTail = exact;
+        for (int i = acked; failedTail && i < fromDisk.size(); i++) {
+            failedTail = failed.contains(fromDisk.get(i));
+        }
+        if (failedTail) {
+            // the tail of the window stays where it is, only the failed memory events are written
+            failed.removeAll(fromDisk.subList(acked, fromDisk.size()));
+            List<TTAppEvent> toSave = failedEvents;
+            if (failed.size() < failedEvents.size()) {
+                toSave = new ArrayList<>(failedEvents.size());
+                for (TTAppEvent event : failedEvents) {
+                    if (failed.contains(event)) {
+                        toSave.add(event);
+                    }
+                }
+            }
+            if (!toSave.isEmpty()) {
+                TTAppEventStorage.persist(toSave);
+            }
+            // also when nothing was acked, the retention may evict the window again
+            TTAppEventStorage.commit(read, acked);
+        } else {
+            if (!failedEvents.isEmpty()) {
+                TTAppEventStorage.persist(failedEvents);
+            }
+            TTAppEventStorage.commit(read, fromDisk.size());
+        }
+        if (!failedEvents.isEmpty()) {
+            logger.debug("Failed to send %d events, %d of them stay on disk",
+                    failedEvents.size(), fromDisk.size() - acked);
+        }
     }
 
     public void destroy() {
+        stagingRing.clear();
+        overflowRing.clear();
         TTAppEventsQueue.clearAll();
         stopScheduler();
     }
@@ -318,6 +809,7 @@ public class TTAppEventLogger {
         FORCE_FLUSH, // when developer calls flush from app
         IDENTIFY, // when calling identify
         LOGOUT, //when logging out
+        PRIORITY, // when a priority event is tracked, only the priority lane is sent
     }
 
     private void addToQ(Runnable task) {
@@ -330,6 +822,22 @@ public class TTAppEventLogger {
     }
 
 
+    private void addToUploadQ(Runnable task) {
+        try {
+            uploadLoop.execute(task);
+        } catch (Exception e) {
+            TTCrashHandler.handleCrash(TAG, e);
+        }
+    }
+
+    private void addToDiskQ(Runnable task) {
+        try {
+            diskLoop.execute(task);
+        } catch (Exception e) {
+            TTCrashHandler.handleCrash(TAG, e);
+        }
+    }
+
     // Do not remove, for the ease of local test
     private void addToLater(Runnable task, int seconds) {
         // http://www.javabyexamples.com/handling-exceptions-from-executorservice-tasks
@@ -345,6 +853,8 @@ public class TTAppEventLogger {
     }
 
     private void clearAllImmediately() {
+        stagingRing.clear();
+        overflowRing.clear();
         TTAppEventsQueue.clearAll();
         TTAppEventStorage.clearAll();
     }
@@ -357,7 +867,7 @@ public class TTAppEventLogger {
      * any events in the memory will be gone when the app is closed.
      */
     public void fetchGlobalConfig(int delaySeconds) {
-        addToLater(() -> {
+        addToUploadLater(() -> {
             try {
                 logger.info("Fetching global config....");
 
@@ -390,6 +900,7 @@ public class TTAppEventLogger {
                 }
                 TikTokBusinessSdk.setApiAvailableVersion(availableVersion);
                 TikTokBusinessSdk.setApiTrackDomain(trackEventDomain);
+                rateLimiter.updateRules(businessSdkConfig.optJSONObject("event_sampling"));
                 logger.debug("available_version=" + availableVersion);
                 TikTokBusinessSdk.setGlobalConfigFetched();
             } catch (JSONException e) {
@@ -407,11 +918,20 @@ public class TTAppEventLogger {
         }, delaySeconds);
     }
 
+    private void addToUploadLater(Runnable task, int seconds) {
+        try {
+            uploadLoop.schedule(task, seconds, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            TTCrashHandler.handleCrash(TAG, e);
+        }
+    }
+
     public void monitorMetric(@NonNull String name,
                               @Nullable JSONObject meta,
                               @Nullable JSONObject extra) {
         if (!metricsEnabled) return;
-        addToQ(() -> {
+        // monitors may trigger a report to the network
+        addToUploadQ(() -> {
             JSONObject stat = new JSONObject();
             try {
                 stat = TTRequestBuilder.getHealthMonitorBase();
@@ -433,6 +953,7 @@ public class TTAppEventLogger {
     }
 
     void persistMonitor() {
-        addToQ(TTCrashHandler::persistToFile);
+        // stays on the uploadLoop, where the rest of the monitor state is handled
+        addToUploadQ(TTCrashHandler::persistToFile);
     }
 }
\ No newline at end of file
@@ -19,6 +19,10 @@ class TTAppEventPersist implements Serializable {
 
     private List<TTAppEvent> appEvents = new ArrayList<>();
 
+    // where the events were read from, see TTAppEventStorage#commit
+    private transient TTEventStore.Window priorityWindow;
+    private transient TTEventStore.Window bulkWindow;
+
     public void addEvents(List<TTAppEvent> appEventList) {
         if (appEventList == null || appEventList.isEmpty()) {
             return;
@@ -35,6 +39,19 @@ class TTAppEventPersist implements Serializable {
         this.appEvents = appEvents;
     }
 
+    void setWindows(TTEventStore.Window priorityWindow, TTEventStore.Window bulkWindow) {
+        this.priorityWindow = priorityWindow;
+        this.bulkWindow = bulkWindow;
+    }
+
+    TTEventStore.Window getPriorityWindow() {
+        return priorityWindow;
+    }
+
+    TTEventStore.Window getBulkWindow() {
+        return bulkWindow;
+    }
+
     public boolean isEmpty() {
         return appEvents.isEmpty();
     }
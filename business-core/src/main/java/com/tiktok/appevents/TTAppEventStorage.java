@@ -7,6 +7,10 @@
 package com.tiktok.appevents;
 
 import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.FileObserver;
+
+import androidx.annotation.Nullable;
 
 import com.tiktok.TikTokBusinessSdk;
 import com.tiktok.util.TTLogger;
@@ -14,30 +18,389 @@ import com.tiktok.util.TTUtil;
 import org.json.JSONObject;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 class TTAppEventStorage {
     private static final String TAG = TTAppEventStorage.class.getCanonicalName();
 
     private static final TTLogger logger = new TTLogger(TAG, TikTokBusinessSdk.getLogLevel());
 
+    // files of older versions, imported into the logs
     private static final String EVENT_STORAGE_FILE = "events_cache";
+    private static final String PRIORITY_STORAGE_FILE = "priority_events_cache";
+
+    // one log per lane, the priority lane, see TTAppEvent#isPriority, so that conversions are not
+    // trimmed with bulk events and can be flushed on their own
+    static final String EVENT_LOG_DIR = "tt_event_log";
+    // written next to the logs and imported by the uploader, see TTUploaderLock, one file per crash,
+    // and one per group commit of the processes other than the uploader
+    private static final String SPILL_PREFIX = "crash_";
+    private static final String HANDOVER_PREFIX = "proc_";
+    private static final String SPILL_SUFFIX = ".spill";
+    // files are written aside and renamed, a leftover of a process killed meanwhile is deleted after a while
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final long STALE_TMP_MS = 60 * 60 * 1000;
+    private static final AtomicInteger handoverFiles = new AtomicInteger(0);
+    // set while files of the other processes wait for a flush to import them, see TTAppEventLogger#scheduleNextFlush
+    private static final AtomicBoolean spillsWaiting = new AtomicBoolean(false);
+    // kept referenced, an observer which is collected stops watching
+    private static FileObserver spillObserver;
+    // the crashing thread gives up on the events it could not write by then
+    static final long CRASH_SPILL_DEADLINE_MS = 5;
+    // resolved by open(), so that the crashing thread only opens, writes and renames a file
+    private static volatile File spillDir;
+    private static String spillProcessName;
+
+    // one store per lane, see TikTokBusinessSdk.StorageEngine
+    private static TTEventStore bulkLog;
+    private static TTEventStore priorityLog;
+
+    // persist requests within this delay are written at once
+    static final long GROUP_COMMIT_DELAY_MS = 500;
+    // the failed and spilled events waiting for the group commit, lock free so that the crash
+    // handler can copy them
+    private static final ConcurrentLinkedQueue<TTAppEvent> pendingEvents = new ConcurrentLinkedQueue<>();
+    private static final AtomicBoolean groupCommitScheduled = new AtomicBoolean(false);
+
+    /**
+     * Opens the stores ahead of the first read, which would otherwise open them
+     */
+    synchronized static void open() {
+        TTUtil.checkThread(TAG);
+        // every process spills on crash, the uploader included
+        resolveSpillDir();
+        if (!TTUploaderLock.isUploader()) {
+            return;
+        }
+        long initTimeMS = System.currentTimeMillis();
+        openLogs();
+        try {
+            long endTimeMS = System.currentTimeMillis();
+            JSONObject meta = TTUtil.getMetaWithTS(initTimeMS)
+                    .put("latency", endTimeMS - initTimeMS)
+                    .put("size", bulkLog.size() + priorityLog.size());
+            TikTokBusinessSdk.getAppEventLogger().monitorMetric("file_open", meta, null);
+        } catch (Exception ignored) {}
+    }
+
+    /**
+     * Opens the stores of the configured engine on first use, and imports the events of the other
+     * engine and the files written by older versions
+     */
+    private static void openLogs() {
+        if (bulkLog != null) {
+            return;
+        }
+        Context context = TikTokBusinessSdk.getApplicationContext();
+        File root = new File(context.getFilesDir(), EVENT_LOG_DIR);
+        // also when this process takes the lock over later on
+        watchSpills();
+        if (TikTokBusinessSdk.getStorageEngine() == TikTokBusinessSdk.StorageEngine.SQLITE) {
+            try {
+                SQLiteDatabase db = TTSQLiteEventStore.open(context);
+                bulkLog = new TTSQLiteEventStore(db, false);
+                priorityLog = new TTSQLiteEventStore(db, true);
+            } catch (Exception e) {
+                // falls back to the files
+                TTCrashHandler.handleCrash(TAG, e);
+                bulkLog = null;
+            }
+        }
+        if (bulkLog != null) {
+            importLogDir(new File(root, "bulk"), false, bulkLog);
+            importLogDir(new File(root, "priority"), true, priorityLog);
+        } else {
+            bulkLog = new TTEventLog(new File(root, "bulk"), false, TTAppEventLogger.diskLoop);
+            priorityLog = new TTEventLog(new File(root, "priority"), true, TTAppEventLogger.diskLoop);
+            if (TTSQLiteEventStore.exists(context)) {
+                try {
+                    SQLiteDatabase db = TTSQLiteEventStore.open(context);
+                    importStore(new TTSQLiteEventStore(db, false), bulkLog);
+                    importStore(new TTSQLiteEventStore(db, true), priorityLog);
+                    db.close();
+                } catch (Exception e) {
+                    TTCrashHandler.handleCrash(TAG, e);
+                }
+            }
+        }
+        importLegacyFile(context, EVENT_STORAGE_FILE, bulkLog);
+        importLegacyFile(context, PRIORITY_STORAGE_FILE, priorityLog);
+        importSpills();
+    }
+
+    /**
+     * Watches the files handed over by the other processes, so that an idle uploader, which has no
+     * timer armed, flushes them too
+     */
+    private static void watchSpills() {
+        if (spillObserver != null) {
+            return;
+        }
+        File root = new File(TikTokBusinessSdk.getApplicationContext().getFilesDir(), EVENT_LOG_DIR);
+        spillObserver = new FileObserver(root.getPath(), FileObserver.MOVED_TO) {
+            @Override
+            public void onEvent(int event, @Nullable String path) {
+                if (path == null || !path.startsWith(HANDOVER_PREFIX) || !path.endsWith(SPILL_SUFFIX)) {
+                    return;
+                }
+                spillsWaiting.set(true);
+                TTAppEventLogger appEventLogger = TikTokBusinessSdk.getAppEventLogger();
+                if (appEventLogger != null) {
+                    appEventLogger.scheduleNextFlush(false);
+                }
+            }
+        };
+        spillObserver.startWatching();
+        // handed over before this process took the lock
+        String[] names = root.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(HANDOVER_PREFIX) && name.endsWith(SPILL_SUFFIX)) {
+                    spillsWaiting.set(true);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return whether files of the other processes wait for the next flush
+     */
+    static boolean hasSpillsWaiting() {
+        return spillsWaiting.get();
+    }
+
+    /**
+     * Imports the files of crashes and of the other processes. A file is deleted once its events
+     * are synced to the logs, one which could not be imported is left for the next read.
+     */
+    private static void importSpills() {
+        File[] files = new File(TikTokBusinessSdk.getApplicationContext().getFilesDir(), EVENT_LOG_DIR).listFiles();
+        if (files == null) {
+            return;
+        }
+        // oldest first
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return a.lastModified() < b.lastModified() ? -1 : (a.lastModified() == b.lastModified() ? 0 : 1);
+            }
+        });
+        long now = System.currentTimeMillis();
+        List<File> imported = new ArrayList<>();
+        for (File f : files) {
+            String name = f.getName();
+            if (name.endsWith(SPILL_SUFFIX + TMP_SUFFIX) && now - f.lastModified() > STALE_TMP_MS) {
+                f.delete();
+                continue;
+            }
+            if (!(name.startsWith(SPILL_PREFIX) || name.startsWith(HANDOVER_PREFIX)) || !name.endsWith(SPILL_SUFFIX)) {
+                continue;
+            }
+            List<TTAppEvent> events = TTEventLog.readSpill(f);
+            List<TTAppEvent> bulk = new ArrayList<>();
+            List<TTAppEvent> priority = new ArrayList<>();
+            splitLanes(events, bulk, priority);
+            try {
+                priorityLog.append(priority);
+                bulkLog.append(bulk);
+                imported.add(f);
+                logger.debug("Imported %d events from %s", events.size(), name);
+            } catch (Exception e) {
+                TTCrashHandler.handleCrash(TAG, e);
+                spillsWaiting.set(true);
+            }
+        }
+        if (imported.isEmpty()) {
+            return;
+        }
+        try {
+            priorityLog.sync();
+            bulkLog.sync();
+        } catch (Exception e) {
+            TTCrashHandler.handleCrash(TAG, e);
+            spillsWaiting.set(true);
+            return;
+        }
+        for (File f : imported) {
+            f.delete();
+        }
+    }
+
+    /**
+     * Called by the uncaught exception handler on the crashing thread, the events in the memory, the
+     * ones staged by track calls and the ones waiting for the group commit are written to a file of
+     * their own within {@link #CRASH_SPILL_DEADLINE_MS}. No lock is waited for, a lane that is being
+     * drained at the moment is skipped, the logs are not touched, they may be in the middle of a write.
+     */
+    static void spillOnCrash() {
+        long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CRASH_SPILL_DEADLINE_MS);
+        try {
+            if (!TikTokBusinessSdk.isSystemActivated()) {
+                return;
+            }
+            if (spillDir == null) {
+                // too early, open() has not run yet
+                return;
+            }
+            // taken out, so that a process which survives does not commit them as well
+            List<TTAppEvent> events = new ArrayList<>();
+            TTAppEvent pending;
+            while ((pending = pendingEvents.poll()) != null) {
+                events.add(pending);
+            }
+            TTAppEventsQueue.tryDrainTo(events);
+            TTAppEventLogger.tryDrainStaged(events);
+            if (events.isEmpty()) {
+                return;
+            }
+            writeSpillFile(SPILL_PREFIX, events, deadlineNanos, false);
+        } catch (Throwable ignored) {
+            // the app is going down anyway
+        }
+    }
+
+    private static void importLogDir(File dir, boolean priority, TTEventStore to) {
+        if (TTEventLog.hasSegments(dir)) {
+            importStore(new TTEventLog(dir, priority, TTAppEventLogger.diskLoop), to);
+        }
+    }
+
+    /**
+     * Moves the events kept by the engine used before
+     */
+    private static void importStore(TTEventStore from, TTEventStore to) {
+        try {
+            TTEventStore.Window window = from.read(Integer.MAX_VALUE);
+            if (window.events.isEmpty()) {
+                return;
+            }
+            to.append(window.events);
+            from.commit(window, window.events.size());
+            logger.debug("Imported %d events from the other storage engine", window.events.size());
+        } catch (Exception e) {
+            TTCrashHandler.handleCrash(TAG, e);
+        }
+    }
+
+    /**
+     * The file is deleted once its events are synced to the log, or if it cannot be read at all,
+     * otherwise it is imported again by the next run
+     */
+    private static void importLegacyFile(Context context, String fileName, TTEventStore log) {
+        File f = new File(context.getFilesDir(), fileName);
+        if (!f.exists()) {
+            return;
+        }
+        TTAppEventPersist persist = readFile(context, fileName);
+        if (persist == null) {
+            deleteFile(f);
+            return;
+        }
+        List<TTAppEvent> events = persist.getAppEvents();
+        try {
+            log.append(events);
+            log.sync();
+            logger.debug("Imported %d events from %s", events.size(), fileName);
+        } catch (Exception e) {
+            TTCrashHandler.handleCrash(TAG, e);
+            return;
+        }
+        deleteFile(f);
+    }
+
+    /**
+     * The directory and the process name of the spill files, the process name may be read from /proc
+     */
+    private static synchronized void resolveSpillDir() {
+        if (spillDir != null) {
+            return;
+        }
+        Context context = TikTokBusinessSdk.getApplicationContext();
+        File root = new File(context.getFilesDir(), EVENT_LOG_DIR);
+        if (!root.exists()) {
+            root.mkdirs();
+        }
+        String suffix = TTUtil.getProcessSuffix(context);
+        spillProcessName = suffix.isEmpty() ? "main" : suffix;
+        spillDir = root;
+    }
 
-    private static final int MAX_PERSIST_EVENTS_NUM = 500;
+    /**
+     * Writes the events into a file for the uploader, complete once it has its name,
+     * {@link #resolveSpillDir()} must have been called
+     */
+    private static void writeSpillFile(String prefix, List<TTAppEvent> events, long deadlineNanos,
+                                       boolean durable) throws IOException {
+        File root = spillDir;
+        String name = prefix + spillProcessName + "_" + System.currentTimeMillis()
+                + "_" + handoverFiles.getAndIncrement() + SPILL_SUFFIX;
+        File tmp = new File(root, name + TMP_SUFFIX);
+        TTEventLog.writeSpill(tmp, events, deadlineNanos);
+        if (durable) {
+            try (FileOutputStream out = new FileOutputStream(tmp, true)) {
+                out.getFD().sync();
+            }
+        }
+        if (!tmp.renameTo(new File(root, name))) {
+            tmp.delete();
+            throw new IOException("Failed to hand over " + events.size() + " events");
+        }
+    }
 
     /**
-     * write events into file
+     * Marks the store dirty: the events of the memory, and the failed events if any, are appended to
+     * the logs by one group commit within {@link #GROUP_COMMIT_DELAY_MS}, together with the requests
+     * made in the meantime. See {@link #persistDurably()} for a barrier.
      *
      * @param failedEvents if flush failed, failedEvents is not null
      */
-    public synchronized static void persist(List<TTAppEvent> failedEvents) {
+    public static void persist(List<TTAppEvent> failedEvents) {
+        if (failedEvents != null) {
+            pendingEvents.addAll(failedEvents);
+        }
+        if (!groupCommitScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            TTAppEventLogger.eventLoop.schedule(() -> TTAppEventLogger.diskLoop.execute(
+                    () -> write(false)), GROUP_COMMIT_DELAY_MS, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            TTCrashHandler.handleCrash(TAG, e);
+            write(false);
+        }
+    }
+
+    /**
+     * The durable barrier, for onStop: everything pending and the events of the memory are
+     * written and synced to the disk when it returns
+     */
+    public static void persistDurably() {
+        write(true);
+    }
+
+    private synchronized static void write(boolean durable) {
         TTUtil.checkThread(TAG);
 
+        // reset before taking the events, a request coming in the meantime schedules another commit
+        groupCommitScheduled.set(false);
+        List<TTAppEvent> failedEvents = new ArrayList<>();
+        TTAppEvent pending;
+        while ((pending = pendingEvents.poll()) != null) {
+            failedEvents.add(pending);
+        }
+
         logger.debug("Tried to persist to disk");
         if (!TikTokBusinessSdk.isSystemActivated()) {
             logger.debug("Quit persisting to disk because global switch is turned off");
@@ -46,68 +409,98 @@ class TTAppEventStorage {
 
         List<TTAppEvent> eventsFromMemory = TTAppEventsQueue.exportAllEvents();
 
-        TTAppEventPersist eventsFromDisk = readFromDisk();
-
-        if (eventsFromMemory.isEmpty() && eventsFromDisk.isEmpty() &&
-                (failedEvents == null || failedEvents.isEmpty())) {
+        if (eventsFromMemory.isEmpty() && failedEvents.isEmpty() && !durable) {
             return;
         }
-
-        TTAppEventPersist toBeSaved = new TTAppEventPersist();
-        // maintain events ordering, the events in the network should be earlier than the
-        // events on the disk, finally come the events in the memory
-        if (failedEvents != null) {
-            toBeSaved.addEvents(failedEvents);
+        if (!TTUploaderLock.isUploader()) {
+            handOver(failedEvents, eventsFromMemory, durable);
+            return;
         }
-        toBeSaved.addEvents(eventsFromDisk.getAppEvents());
-        toBeSaved.addEvents(eventsFromMemory);
+        openLogs();
+
+        List<TTAppEvent> toBeSaved = new ArrayList<>();
+        List<TTAppEvent> priorityToBeSaved = new ArrayList<>();
+        // the events in the network are earlier than the events in the memory, the events
+        // appended since the flush read its window come first, the uploader orders by timestamp
+        splitLanes(failedEvents, toBeSaved, priorityToBeSaved);
+        splitLanes(eventsFromMemory, toBeSaved, priorityToBeSaved);
 
-        //If end up persisting more than 10,000 events, persist the latest 10,000 events by timestamp
-        discardOldEvents(toBeSaved, MAX_PERSIST_EVENTS_NUM);
-        saveToDisk(toBeSaved);
+        appendToDisk(priorityLog, priorityToBeSaved);
+        appendToDisk(bulkLog, toBeSaved);
+        discardOldEvents();
+        if (durable) {
+            // also what earlier group commits left to the page cache
+            try {
+                priorityLog.sync();
+                bulkLog.sync();
+            } catch (Exception e) {
+                TTCrashHandler.handleCrash(TAG, e);
+            }
+        }
     }
 
     /**
-     * discard old events
-     * In order not to overwhelm users' disk, only maxPersistNum is allowed to be persisted to disk
-     *
-     * @param ttAppEventPersist
+     * The logs belong to the uploader process, the others write their events to files it imports
      */
-    private static void discardOldEvents(TTAppEventPersist ttAppEventPersist, int maxPersistNum) {
-        if (ttAppEventPersist == null || ttAppEventPersist.isEmpty()) {
+    private static void handOver(List<TTAppEvent> failedEvents, List<TTAppEvent> eventsFromMemory, boolean durable) {
+        List<TTAppEvent> events = new ArrayList<>(failedEvents.size() + eventsFromMemory.size());
+        events.addAll(failedEvents);
+        events.addAll(eventsFromMemory);
+        if (events.isEmpty()) {
             return;
         }
+        try {
+            resolveSpillDir();
+            writeSpillFile(HANDOVER_PREFIX, events, Long.MAX_VALUE, durable);
+            logger.debug("Handed %d events over to the uploader process", events.size());
+        } catch (Exception e) {
+            TTCrashHandler.handleCrash(TAG, e);
+        }
+    }
 
-        List<TTAppEvent> appEvents = ttAppEventPersist.getAppEvents();
+    private static void splitLanes(List<TTAppEvent> events, List<TTAppEvent> bulk, List<TTAppEvent> priority) {
+        for (TTAppEvent event : events) {
+            if (event.isPriority()) {
+                priority.add(event);
+            } else {
+                bulk.add(event);
+            }
+        }
+    }
 
-        int size = appEvents.size();
+    /**
+     * In order not to overwhelm users' disk, the logs are kept within the limits of
+     * {@link TikTokBusinessSdk.TTConfig#setDiskRetention(long, long, int)}
+     */
+    private static void discardOldEvents() {
+        TTDiskRetention retention = new TTDiskRetention(TikTokBusinessSdk.getDiskQuotaBytes(),
+                TikTokBusinessSdk.getMaxEventAgeSeconds() * 1000, TikTokBusinessSdk.getMaxDiskEvents(),
+                TTDiskRetention.forPolicy(TikTokBusinessSdk.getEvictionPolicy()));
+        int dropped = retention.enforce(System.currentTimeMillis(), priorityLog, bulkLog);
+        if (dropped > 0) {
+            logger.debug("Way too many events, dropped %d", dropped);
+            onDumped(dropped);
+        }
+    }
 
-        if (size > maxPersistNum) {
-            logger.debug("Way too many events(%d), slim it!", size);
-            TTAppEventLogger.totalDumped += size - maxPersistNum;
+    private static void onDumped(int dumped) {
+        TTAppEventLogger.totalDumped += dumped;
+        if (TikTokBusinessSdk.diskListener != null) {
             TikTokBusinessSdk.diskListener.onDumped(TTAppEventLogger.totalDumped);
-            ttAppEventPersist.setAppEvents(new ArrayList<>(appEvents.subList(size - maxPersistNum, size)));
         }
     }
 
-    private static boolean saveToDisk(TTAppEventPersist appEventPersist) {
-        if (appEventPersist.isEmpty()) {
+    private static boolean appendToDisk(TTEventStore log, List<TTAppEvent> events) {
+        if (events.isEmpty()) {
             return false;
         }
         long initTimeMS = System.currentTimeMillis();
-//        try {
-//            JSONObject meta = TTUtil.getMetaWithTS(initTimeMS)
-//                    .put("size", appEventPersist.getAppEvents().size());
-//            TikTokBusinessSdk.getAppEventLogger().monitorMetric("file_w_start", meta, null);
-//        } catch (Exception ignored) {}
-        Context context = TikTokBusinessSdk.getApplicationContext();
         boolean success = false;
-        try (ObjectOutputStream oos = new ObjectOutputStream(
-                new BufferedOutputStream(context.openFileOutput(EVENT_STORAGE_FILE, Context.MODE_PRIVATE)))) {
-            oos.writeObject(appEventPersist);
-            logger.debug("Saving %d events to disk", appEventPersist.getAppEvents().size());
+        try {
+            log.append(events);
+            logger.debug("Saving %d events to disk", events.size());
             if (TikTokBusinessSdk.diskListener != null) {
-                TikTokBusinessSdk.diskListener.onDiskChange(appEventPersist.getAppEvents().size(), false);
+                TikTokBusinessSdk.diskListener.onDiskChange(bulkLog.size() + priorityLog.size(), false);
             }
             success = true;
         } catch (Exception e) {
@@ -118,7 +511,7 @@ class TTAppEventStorage {
             JSONObject meta = TTUtil.getMetaWithTS(initTimeMS)
                     .put("latency", endTimeMS-initTimeMS)
                     .put("success", success)
-                    .put("size", appEventPersist.getAppEvents().size());
+                    .put("size", events.size());
             TikTokBusinessSdk.getAppEventLogger().monitorMetric("file_w", meta, null);
         } catch (Exception ignored) {}
         return  success;
@@ -130,30 +523,44 @@ class TTAppEventStorage {
         }
     }
 
-    synchronized static TTAppEventPersist readFromDisk() {
+    /**
+     * Reads up to maxEvents events of both lanes, the priority lane first.
+     * Nothing is removed until the events are passed to {@link #commit}.
+     */
+    synchronized static TTAppEventPersist readFromDisk(int maxEvents) {
+        return readLanes(true, maxEvents);
+    }
+
+    /**
+     * Reads up to maxEvents events of the priority lane only, used by the expedited flush
+     */
+    synchronized static TTAppEventPersist readPriorityFromDisk(int maxEvents) {
+        return readLanes(false, maxEvents);
+    }
+
+    private static TTAppEventPersist readLanes(boolean includeBulk, int maxEvents) {
         long initTimeMS = System.currentTimeMillis();
         TTUtil.checkThread(TAG);
 
-        Context context = TikTokBusinessSdk.getApplicationContext();
-        File f = new File(context.getFilesDir(), EVENT_STORAGE_FILE);
-        if (!f.exists()) {
+        if (!TTUploaderLock.isUploader()) {
             return new TTAppEventPersist();
         }
-
+        openLogs();
+        // the events of the other processes since the last read, a file handed over from now on
+        // arms another flush
+        spillsWaiting.set(false);
+        importSpills();
+        // events may have grown too old while the app was not running
+        discardOldEvents();
         TTAppEventPersist appEventPersist = new TTAppEventPersist();
-
-        try (ObjectInputStream ois = new ObjectInputStream(
-                new BufferedInputStream(context.openFileInput(EVENT_STORAGE_FILE)))) {
-            appEventPersist = (TTAppEventPersist) ois.readObject();
-            logger.debug("disk read data: %s", appEventPersist);
-            deleteFile(f);
-            if (TikTokBusinessSdk.diskListener != null) {
-                TikTokBusinessSdk.diskListener.onDiskChange(0, true);
-            }
-        } catch (Exception e) {
-            deleteFile(f);
-            TTCrashHandler.handleCrash(TAG, e);
+        TTEventStore.Window priority = priorityLog.read(maxEvents);
+        appEventPersist.addEvents(priority.events);
+        TTEventStore.Window bulk = null;
+        if (includeBulk) {
+            bulk = bulkLog.read(maxEvents - priority.events.size());
+            appEventPersist.addEvents(bulk.events);
         }
+        appEventPersist.setWindows(priority, bulk);
 
         try {
             long endTimeMS = System.currentTimeMillis();
@@ -166,12 +573,68 @@ class TTAppEventStorage {
         return appEventPersist;
     }
 
+    /**
+     * Removes the first acked events read by {@link #readFromDisk} or {@link #readPriorityFromDisk},
+     * in the order they were read, once the server has acknowledged them
+     */
+    synchronized static void commit(TTAppEventPersist read, int acked) {
+        TTUtil.checkThread(TAG);
+
+        if (!pendingEvents.isEmpty()) {
+            // the failed events of the flush are on the disk before the window goes
+            write(false);
+        }
+        if (!TTUploaderLock.isUploader()) {
+            return;
+        }
+        openLogs();
+        TTEventStore.Window priority = read.getPriorityWindow();
+        if (priority != null) {
+            priorityLog.commit(priority, acked);
+            acked -= priority.events.size();
+        }
+        TTEventStore.Window bulk = read.getBulkWindow();
+        if (bulk != null) {
+            // also when nothing of it was acked, it is not in flight any more
+            bulkLog.commit(bulk, Math.max(acked, 0));
+        }
+        if (TikTokBusinessSdk.diskListener != null) {
+            TikTokBusinessSdk.diskListener.onDiskChange(bulkLog.size() + priorityLog.size(), true);
+        }
+    }
+
+    /**
+     * Reads a file written by the versions before TTEventLog, the file is left in place
+     *
+     * @return null if the file cannot be read
+     */
+    @Nullable
+    private static TTAppEventPersist readFile(Context context, String fileName) {
+        try (ObjectInputStream ois = new ObjectInputStream(
+                new BufferedInputStream(context.openFileInput(fileName)))) {
+            TTAppEventPersist appEventPersist = (TTAppEventPersist) ois.readObject();
+            logger.debug("disk read data: %s", appEventPersist);
+            return appEventPersist;
+        } catch (Exception e) {
+            TTCrashHandler.handleCrash(TAG, e);
+            return null;
+        }
+    }
+
     public synchronized static void clearAll() {
         TTUtil.checkThread(TAG);
 
+        if (!TTUploaderLock.isUploader()) {
+            // the logs are the uploader's, only what waits to be handed over is dropped
+            pendingEvents.clear();
+            return;
+        }
         Context context = TikTokBusinessSdk.getApplicationContext();
-        File f = new File(context.getFilesDir(), EVENT_STORAGE_FILE);
-        deleteFile(f);
+        deleteFile(new File(context.getFilesDir(), EVENT_STORAGE_FILE));
+        deleteFile(new File(context.getFilesDir(), PRIORITY_STORAGE_FILE));
+        openLogs();
+        bulkLog.clear();
+        priorityLog.clear();
         if (TikTokBusinessSdk.diskListener != null) {
             TikTokBusinessSdk.diskListener.onDiskChange(0, true);
         }
@@ -7,51 +7,246 @@
 package com.tiktok.appevents;
 
 import com.tiktok.TikTokBusinessSdk;
+import com.tiktok.TikTokBusinessSdk.OverflowPolicy;
 import com.tiktok.util.TTUtil;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 class TTAppEventsQueue {
 
     private static String TAG = TTAppEventsQueue.class.getCanonicalName();
-    private static List<TTAppEvent> memory = new ArrayList<>();
+
+    // flushes normally kick in at the flush threshold, this is just the upper bound
+    static final int DEFAULT_CAPACITY = 1024;
+
+    // events are produced from many threads while only the flush consumes them,
+    // so a lock-free MPSC ring is used instead of a synchronized list
+    private static volatile TTRingBuffer<TTAppEvent> memory = new TTRingBuffer<>(DEFAULT_CAPACITY);
+
+    // priority events (see TTAppEvent#isPriority) have their own lane, they are never dropped
+    // by the overflow policy of the bulk lane and are flushed ahead of it,
+    // when the lane itself is full the caller spills them to the priority log on the disk
+    static final int PRIORITY_CAPACITY = 128;
+    private static final TTRingBuffer<TTAppEvent> priorityLane = new TTRingBuffer<>(PRIORITY_CAPACITY);
+
+    // what to do with a new event when the memory is full
+    private static volatile OverflowPolicy overflowPolicy = OverflowPolicy.SPILL_TO_DISK;
+    private static volatile long blockTimeoutMS = 0;
+
+    // stats of the overflow policy for the whole lifecycle
+    private static final AtomicLong droppedEvents = new AtomicLong(0);
+    private static final AtomicLong spilledEvents = new AtomicLong(0);
 
     private TTAppEventsQueue() {
     }
 
     private static void notifyChange() {
         if (TikTokBusinessSdk.memoryListener != null) {
-            TikTokBusinessSdk.memoryListener.onMemoryChange(memory.size());
+            TikTokBusinessSdk.memoryListener.onMemoryChange(size());
         }
 
         if (TikTokBusinessSdk.nextTimeFlushListener != null) {
-            int left = TTAppEventLogger.THRESHOLD - size();
-            TikTokBusinessSdk.nextTimeFlushListener.thresholdLeft(TTAppEventLogger.THRESHOLD, Math.max(left, 0));
+            int threshold = TTAppEventLogger.flushScheduler.flushThreshold();
+            TikTokBusinessSdk.nextTimeFlushListener.thresholdLeft(threshold, Math.max(threshold - size(), 0));
         }
     }
 
-    public static synchronized void addEvent(TTAppEvent event) {
-        TTUtil.checkThread(TAG);
-        memory.add(event);
+    /**
+     * Should be called before any event is added
+     *
+     * @param capacity rounded up to the next power of two
+     */
+    static void configure(int capacity, OverflowPolicy policy, long blockTimeoutMS) {
+        if (capacity > 0 && capacity != memory.capacity()) {
+            memory = new TTRingBuffer<>(capacity);
+        }
+        if (policy != null) {
+            overflowPolicy = policy;
+        }
+        TTAppEventsQueue.blockTimeoutMS = Math.max(blockTimeoutMS, 0);
+    }
+
+    /**
+     * Can be called from any thread, when the memory is full the {@link OverflowPolicy} applies
+     *
+     * @return false if the event was not kept in memory and the caller has to spill it to the disk,
+     * with {@link OverflowPolicy#SPILL_TO_DISK}, or for a priority event whose lane is full
+     * whatever the policy
+     */
+    public static boolean addEvent(TTAppEvent event) {
+        if (event.isPriority()) {
+            boolean kept = priorityLane.offer(event);
+            notifyChange();
+            return kept;
+        }
+        TTRingBuffer<TTAppEvent> ring = memory;
+        boolean handled = ring.offer(event) || handleOverflow(ring, event);
         notifyChange();
+        return handled;
+    }
+
+    /**
+     * Appends a group of events in one step, the listeners are notified once.
+     * Same overflow handling as {@link #addEvent(TTAppEvent)}.
+     *
+     * @return the events the caller has to spill to the disk, usually none
+     */
+    static List<TTAppEvent> addEvents(List<TTAppEvent> events) {
+        List<TTAppEvent> bulk = new ArrayList<>(events.size());
+        List<TTAppEvent> toSpill = Collections.emptyList();
+        for (TTAppEvent event : events) {
+            if (!event.isPriority()) {
+                bulk.add(event);
+            } else if (!priorityLane.offer(event)) {
+                if (toSpill.isEmpty()) {
+                    toSpill = new ArrayList<>();
+                }
+                toSpill.add(event);
+            }
+        }
+        TTRingBuffer<TTAppEvent> ring = memory;
+        int added = ring.offerAll(bulk, 0);
+        for (int i = added; i < bulk.size(); i++) {
+            TTAppEvent event = bulk.get(i);
+            if (!ring.offer(event) && !handleOverflow(ring, event)) {
+                if (toSpill.isEmpty()) {
+                    toSpill = new ArrayList<>(bulk.size() - i);
+                }
+                toSpill.add(event);
+            }
+        }
+        notifyChange();
+        return toSpill;
+    }
+
+    private static boolean handleOverflow(TTRingBuffer<TTAppEvent> ring, TTAppEvent event) {
+        switch (overflowPolicy) {
+            case DROP_NEWEST:
+                droppedEvents.incrementAndGet();
+                return true;
+            case DROP_OLDEST:
+                // other producers may take the released slot, so retry a few times
+                for (int i = 0; i < 3; i++) {
+                    if (ring.poll() != null) {
+                        droppedEvents.incrementAndGet();
+                    }
+                    if (ring.offer(event)) {
+                        return true;
+                    }
+                }
+                droppedEvents.incrementAndGet();
+                return true;
+            case BLOCK:
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(blockTimeoutMS);
+                while (System.nanoTime() < deadline) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                    if (ring.offer(event)) {
+                        return true;
+                    }
+                }
+                droppedEvents.incrementAndGet();
+                return true;
+            case SPILL_TO_DISK:
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * both lanes
+     */
+    public static int size() {
+        return memory.size() + priorityLane.size();
+    }
+
+    static int prioritySize() {
+        return priorityLane.size();
     }
 
-    public static synchronized int size() {
-        return memory.size();
+    /**
+     * whether the bulk lane is full, unlike {@link #size()} the priority lane is not looked at,
+     * it never applies the overflow policy
+     */
+    public static boolean isFull() {
+        TTRingBuffer<TTAppEvent> ring = memory;
+        return ring.size() >= ring.capacity();
     }
 
-    public static synchronized void clearAll() {
+    static void countSpilled(int count) {
+        spilledEvents.addAndGet(count);
+    }
+
+    static void countDropped() {
+        droppedEvents.incrementAndGet();
+    }
+
+    static OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    static long getBlockTimeoutMS() {
+        return blockTimeoutMS;
+    }
+
+    static long getDroppedEvents() {
+        return droppedEvents.get();
+    }
+
+    static long getSpilledEvents() {
+        return spilledEvents.get();
+    }
+
+    public static void clearAll() {
         TTUtil.checkThread(TAG);
-        memory = new ArrayList<>();
+        memory.clear();
+        priorityLane.clear();
         notifyChange();
     }
 
-    public static synchronized List<TTAppEvent> exportAllEvents() {
-        List<TTAppEvent> appEvents = memory;
-        memory = new ArrayList<>();
-        notifyChange();
+    public static List<TTAppEvent> exportAllEvents() {
+        List<TTAppEvent> appEvents = new ArrayList<>(size());
+        drainTo(appEvents, Integer.MAX_VALUE);
         return appEvents;
     }
 
+    /**
+     * Move at most max events into target, the priority lane first, oldest first in each lane
+     *
+     * @return number of events moved
+     */
+    public static int drainTo(Collection<TTAppEvent> target, int max) {
+        return drain(target::add, max);
+    }
+
+    public static int drain(TTRingBuffer.Consumer<TTAppEvent> consumer, int max) {
+        int drained = priorityLane.drain(consumer, max);
+        drained += memory.drain(consumer, max - drained);
+        notifyChange();
+        return drained;
+    }
+
+    /**
+     * For the crash handler: moves what it can without waiting for a lock, and without notifying
+     * the listeners, the priority lane first
+     */
+    static int tryDrainTo(Collection<TTAppEvent> target) {
+        int drained = priorityLane.tryDrain(target::add, Integer.MAX_VALUE);
+        return drained + memory.tryDrain(target::add, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Move at most max events of the priority lane only into target
+     */
+    static int drainPriorityTo(Collection<TTAppEvent> target, int max) {
+        int drained = priorityLane.drainTo(target, max);
+        notifyChange();
+        return drained;
+    }
+
 }
@@ -11,6 +11,7 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import com.tiktok.TikTokBusinessSdk;
 import com.tiktok.util.HttpRequestUtil;
+import com.tiktok.util.TTApiResponse;
 import com.tiktok.util.TTLogger;
 import com.tiktok.util.TTUtil;
 import org.json.JSONArray;
@@ -31,6 +32,7 @@ public class TTCrashHandler {
     private static final String TAG = TTCrashHandler.class.getCanonicalName();
     private static final TTLogger ttLogger = new TTLogger(TAG, TikTokBusinessSdk.getLogLevel());
 
+    // one file per process, see TTUtil#getProcessSuffix
     private static final String CRASH_REPORT_FILE = "tt_crash_log";
 
     private static final int MONITOR_RETRY_LIMIT = 2;
@@ -64,7 +66,7 @@ public class TTCrashHandler {
             crashReport.reports.addAll(fileReport.reports);
             try {
                 Context context = TikTokBusinessSdk.getApplicationContext();
-                File f = new File(context.getFilesDir(), CRASH_REPORT_FILE);
+                File f = new File(context.getFilesDir(), crashReportFile(context));
                 if (f.exists()) f.delete();
             } catch (Exception ignored) {}
         }
@@ -91,7 +93,7 @@ public class TTCrashHandler {
             try {
                 req.put("batch", new JSONArray(batchReq));
             } catch (Exception ignored) {}
-            String resp = TTRequest.reportMonitorEvent(req);
+            TTApiResponse resp = TTRequest.reportMonitorEvent(req);
             if (HttpRequestUtil.getCodeFromApi(resp) != 0) {
                 for (TTCrashReport.Monitor o : batch) {
                     ttCrashReport.addReport(o.monitor, System.currentTimeMillis(), o.attempt+1);
@@ -145,7 +147,7 @@ public class TTCrashHandler {
     private static void saveToFile(TTCrashReport cr) {
         try {
             Context context = TikTokBusinessSdk.getApplicationContext();
-            FileOutputStream fos = context.openFileOutput(CRASH_REPORT_FILE, Context.MODE_PRIVATE);
+            FileOutputStream fos = context.openFileOutput(crashReportFile(context), Context.MODE_PRIVATE);
             ObjectOutputStream os = new ObjectOutputStream(fos);
             os.writeObject(cr);
             os.close();
@@ -160,7 +162,7 @@ public class TTCrashHandler {
         TTCrashReport meta = new TTCrashReport();
         Context context = TikTokBusinessSdk.getApplicationContext();
         try {
-            FileInputStream fis = context.openFileInput(CRASH_REPORT_FILE);
+            FileInputStream fis = context.openFileInput(crashReportFile(context));
             ObjectInputStream is = new ObjectInputStream(fis);
             meta = (TTCrashReport) is.readObject();
             is.close();
@@ -169,6 +171,11 @@ public class TTCrashHandler {
         return meta;
     }
 
+    private static String crashReportFile(Context context) {
+        String suffix = TTUtil.getProcessSuffix(context);
+        return suffix.isEmpty() ? CRASH_REPORT_FILE : CRASH_REPORT_FILE + "_" + suffix;
+    }
+
     private static String getStackTrace(Throwable t) {
         StringBuilder buffer = new StringBuilder();
         for (StackTraceElement curr : t.getStackTrace()) {
@@ -0,0 +1,165 @@
+/*******************************************************************************
+ * Copyright (c) 2020. Bytedance Inc.
+ *
+ * This source code is licensed under the MIT license found in the LICENSE file in the root directory of this source tree.
+ ******************************************************************************/
+
+package com.tiktok.appevents;
+
+import com.tiktok.TikTokBusinessSdk;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Keeps the events on the disk within a byte quota, a maximum age and a maximum count.
+ * <p>
+ * Whole segments of a {@link TTEventStore} are evicted, so nothing is read to decide: a segment is too old
+ * once its newest event is, and the quotas are met by evicting segments in the order of an
+ * {@link EvictionStrategy}, until the rest fits. The segments of the window being uploaded are
+ * kept whatever their age, the upload commits them, or they are evicted after it failed.
+ */
+class TTDiskRetention {
+
+    /**
+     * Decides which segments go first when the disk is over quota
+     */
+    interface EvictionStrategy {
+        /**
+         * @param segments the segments of both lanes, each lane oldest first
+         * @return the segments in the order they should be evicted, the ones left out are kept
+         */
+        List<TTEventStore.SegmentInfo> evictionOrder(List<TTEventStore.SegmentInfo> segments);
+    }
+
+    private static final Comparator<TTEventStore.SegmentInfo> OLDEST_FIRST = new Comparator<TTEventStore.SegmentInfo>() {
+        @Override
+        public int compare(TTEventStore.SegmentInfo a, TTEventStore.SegmentInfo b) {
+            return a.minTimestampMS < b.minTimestampMS ? -1 : (a.minTimestampMS == b.minTimestampMS ? 0 : 1);
+        }
+    };
+
+    /**
+     * The oldest events go first, whatever their lane
+     */
+    static final EvictionStrategy OLDEST_FIRST_STRATEGY = new EvictionStrategy() {
+        @Override
+        public List<TTEventStore.SegmentInfo> evictionOrder(List<TTEventStore.SegmentInfo> segments) {
+            List<TTEventStore.SegmentInfo> order = new ArrayList<>(segments);
+            Collections.sort(order, OLDEST_FIRST);
+            return order;
+        }
+    };
+
+    /**
+     * The bulk lane goes first, oldest first, conversions and identify events only when nothing else is left
+     */
+    static final EvictionStrategy LOWEST_PRIORITY_FIRST_STRATEGY = new EvictionStrategy() {
+        @Override
+        public List<TTEventStore.SegmentInfo> evictionOrder(List<TTEventStore.SegmentInfo> segments) {
+            List<TTEventStore.SegmentInfo> order = OLDEST_FIRST_STRATEGY.evictionOrder(segments);
+            List<TTEventStore.SegmentInfo> priority = new ArrayList<>();
+            List<TTEventStore.SegmentInfo> bulk = new ArrayList<>();
+            for (TTEventStore.SegmentInfo segment : order) {
+                (segment.priority ? priority : bulk).add(segment);
+            }
+            bulk.addAll(priority);
+            return bulk;
+        }
+    };
+
+    /**
+     * Every other segment goes first, then every other of the rest and so on, so that what is kept
+     * still covers the whole offline period, only thinner
+     */
+    static final EvictionStrategy SAMPLED_THINNING_STRATEGY = new EvictionStrategy() {
+        @Override
+        public List<TTEventStore.SegmentInfo> evictionOrder(List<TTEventStore.SegmentInfo> segments) {
+            List<TTEventStore.SegmentInfo> rest = OLDEST_FIRST_STRATEGY.evictionOrder(segments);
+            List<TTEventStore.SegmentInfo> order = new ArrayList<>(rest.size());
+            while (!rest.isEmpty()) {
+                List<TTEventStore.SegmentInfo> kept = new ArrayList<>(rest.size() / 2 + 1);
+                for (int i = 0; i < rest.size(); i++) {
+                    // the newest one is kept the longest
+                    boolean newest = i == rest.size() - 1 && rest.size() > 1;
+                    if (i % 2 == 0 && !newest) {
+                        order.add(rest.get(i));
+                    } else {
+                        kept.add(rest.get(i));
+                    }
+                }
+                rest = kept;
+            }
+            return order;
+        }
+    };
+
+    static EvictionStrategy forPolicy(TikTokBusinessSdk.EvictionPolicy policy) {
+        if (policy == null) {
+            return LOWEST_PRIORITY_FIRST_STRATEGY;
+        }
+        switch (policy) {
+            case OLDEST_FIRST:
+                return OLDEST_FIRST_STRATEGY;
+            case SAMPLED_THINNING:
+                return SAMPLED_THINNING_STRATEGY;
+            default:
+                return LOWEST_PRIORITY_FIRST_STRATEGY;
+        }
+    }
+
+    private final long maxBytes;
+    private final long maxAgeMS;
+    private final int maxEvents;
+    private final EvictionStrategy strategy;
+
+    /**
+     * non positive limits do not apply
+     */
+    TTDiskRetention(long maxBytes, long maxAgeMS, int maxEvents, EvictionStrategy strategy) {
+        this.maxBytes = maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+        this.maxAgeMS = maxAgeMS > 0 ? maxAgeMS : Long.MAX_VALUE;
+        this.maxEvents = maxEvents > 0 ? maxEvents : Integer.MAX_VALUE;
+        this.strategy = strategy;
+    }
+
+    /**
+     * @return number of events evicted
+     */
+    int enforce(long nowMS, TTEventStore... stores) {
+        List<TTEventStore.SegmentInfo> segments = new ArrayList<>();
+        for (TTEventStore store : stores) {
+            segments.addAll(store.segments());
+        }
+        int evicted = 0;
+        long bytes = 0;
+        long events = 0;
+        List<TTEventStore.SegmentInfo> kept = new ArrayList<>(segments.size());
+        for (TTEventStore.SegmentInfo segment : segments) {
+            if (!segment.inFlight && nowMS - segment.maxTimestampMS > maxAgeMS) {
+                evicted += segment.store.evict(segment.seq);
+            } else {
+                kept.add(segment);
+                bytes += segment.bytes;
+                events += segment.pending;
+            }
+        }
+        if (bytes <= maxBytes && events <= maxEvents) {
+            return evicted;
+        }
+        for (TTEventStore.SegmentInfo segment : strategy.evictionOrder(kept)) {
+            if (bytes <= maxBytes && events <= maxEvents) {
+                break;
+            }
+            if (segment.inFlight) {
+                continue;
+            }
+            evicted += segment.store.evict(segment.seq);
+            bytes -= segment.bytes;
+            events -= segment.pending;
+        }
+        return evicted;
+    }
+}
@@ -0,0 +1,289 @@
+/*******************************************************************************
+ * Copyright (c) 2020. Bytedance Inc.
+ *
+ * This source code is licensed under the MIT license found in the LICENSE file in the root directory of this source tree.
+ ******************************************************************************/
+
+package com.tiktok.appevents;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The binary format of an event in a {@link TTEventLog} segment, version {@link #VERSION}.
+ * <pre>
+ * record  := flags:byte timestamp:uvarint uniqueIdDelta:svarint
+ *            [name:string] [properties:bytes] [user:string*5] [count:uvarint lastTimestampDelta:uvarint]
+ *            [sampleWeight:double]
+ * string  := 0 (null) | 1 len:uvarint utf8 (new string, gets the next id) | id + 2:uvarint
+ * bytes   := len:uvarint utf8
+ * </pre>
+ * The optional parts are present according to the FLAG_ bits. The string table lives as long as
+ * the segment: event names and the ids of the user are written once per segment and referred to by
+ * their id afterwards, so an encoder and a decoder each see the records of one segment in order.
+ * Records decoded with the same user ids share one TTUserInfo, as the events tracked did.
+ */
+class TTEventCodec {
+
+    static final int VERSION = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int FLAG_IDENTIFY = 1;
+    private static final int FLAG_NAME = 1 << 1;
+    private static final int FLAG_PROPERTIES = 1 << 2;
+    private static final int FLAG_USER = 1 << 3;
+    private static final int FLAG_COUNT = 1 << 4;
+    private static final int FLAG_WEIGHT = 1 << 5;
+
+    private static final int REF_NULL = 0;
+    private static final int REF_NEW = 1;
+    private static final int REF_OFFSET = 2;
+
+    private TTEventCodec() {
+    }
+
+    /**
+     * Not thread safe, one per segment being written
+     */
+    static class Encoder {
+        private final Map<String, Integer> strings = new HashMap<>();
+        private byte[] buf = new byte[256];
+        private int pos;
+
+        byte[] encode(TTAppEvent event) {
+            pos = 0;
+            long timestamp = event.getTimeStamp().getTime();
+            TTUserInfo user = event.getUserInfo();
+            String props = event.getPropertiesJson();
+            int flags = 0;
+            if (TTAppEvent.TTAppEventType.identify.name().equals(event.getType())) {
+                flags |= FLAG_IDENTIFY;
+            }
+            if (event.getEventName() != null) {
+                flags |= FLAG_NAME;
+            }
+            if (props != null) {
+                flags |= FLAG_PROPERTIES;
+            }
+            if (user != null) {
+                flags |= FLAG_USER;
+            }
+            if (event.getCount() > 1) {
+                flags |= FLAG_COUNT;
+            }
+            if (event.getSampleWeight() != 1) {
+                flags |= FLAG_WEIGHT;
+            }
+            writeByte(flags);
+            writeVarLong(timestamp);
+            Long uniqueId = event.getUniqueId();
+            // the ids come from a counter started at a timestamp, so they are close to the timestamp
+            writeVarLong(zigzag((uniqueId == null ? 0 : uniqueId) - timestamp));
+            if (event.getEventName() != null) {
+                writeString(event.getEventName());
+            }
+            if (props != null) {
+                writeBytes(props.getBytes(UTF_8));
+            }
+            if (user != null) {
+                writeString(user.anonymousId);
+                writeString(user.externalId);
+                writeString(user.externalUserName);
+                writeString(user.phoneNumber);
+                writeString(user.email);
+            }
+            if (event.getCount() > 1) {
+                writeVarLong(event.getCount());
+                writeVarLong(event.getLastTimeStamp().getTime() - timestamp);
+            }
+            if (event.getSampleWeight() != 1) {
+                long bits = Double.doubleToLongBits(event.getSampleWeight());
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    writeByte((int) (bits >>> shift));
+                }
+            }
+            return Arrays.copyOf(buf, pos);
+        }
+
+        private void writeString(String s) {
+            if (s == null) {
+                writeVarLong(REF_NULL);
+                return;
+            }
+            Integer id = strings.get(s);
+            if (id != null) {
+                writeVarLong(id + REF_OFFSET);
+                return;
+            }
+            strings.put(s, strings.size());
+            writeVarLong(REF_NEW);
+            writeBytes(s.getBytes(UTF_8));
+        }
+
+        private void writeBytes(byte[] bytes) {
+            writeVarLong(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        private void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[pos++] = (byte) value;
+        }
+
+        private void writeByte(int b) {
+            ensure(1);
+            buf[pos++] = (byte) b;
+        }
+
+        private void ensure(int more) {
+            if (pos + more > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + more));
+            }
+        }
+    }
+
+    /**
+     * Not thread safe, one per segment being read
+     */
+    static class Decoder {
+        private final List<String> strings = new ArrayList<>();
+        private TTUserInfo lastUser;
+        private byte[] buf;
+        private int pos;
+        private int limit;
+
+        TTAppEvent decode(byte[] payload) throws IOException {
+            buf = payload;
+            pos = 0;
+            limit = payload.length;
+            int flags = readByte();
+            long timestamp = readVarLong();
+            long uniqueId = unzigzag(readVarLong()) + timestamp;
+            String name = (flags & FLAG_NAME) != 0 ? readString() : null;
+            String props = (flags & FLAG_PROPERTIES) != 0 ? new String(readBytes(), UTF_8) : null;
+            TTUserInfo user = null;
+            if ((flags & FLAG_USER) != 0) {
+                user = readUser();
+            }
+            int count = 1;
+            Date lastTimeStamp = null;
+            if ((flags & FLAG_COUNT) != 0) {
+                count = (int) readVarLong();
+                lastTimeStamp = new Date(timestamp + readVarLong());
+            }
+            double sampleWeight = 1;
+            if ((flags & FLAG_WEIGHT) != 0) {
+                long bits = 0;
+                for (int i = 0; i < 8; i++) {
+                    bits = (bits << 8) | (readByte() & 0xFF);
+                }
+                sampleWeight = Double.longBitsToDouble(bits);
+            }
+            TTAppEvent.TTAppEventType type = (flags & FLAG_IDENTIFY) != 0
+                    ? TTAppEvent.TTAppEventType.identify : TTAppEvent.TTAppEventType.track;
+            return new TTAppEvent(type, name, new Date(timestamp), props, user,
+                    uniqueId, sampleWeight, count, lastTimeStamp);
+        }
+
+        private TTUserInfo readUser() throws IOException {
+            String anonymousId = readString();
+            String externalId = readString();
+            String externalUserName = readString();
+            String phoneNumber = readString();
+            String email = readString();
+            // the strings come from the table, so equal ids are the same instances
+            TTUserInfo last = lastUser;
+            if (last != null && last.anonymousId == anonymousId && last.externalId == externalId
+                    && last.externalUserName == externalUserName && last.phoneNumber == phoneNumber
+                    && last.email == email) {
+                return last;
+            }
+            TTUserInfo user = new TTUserInfo();
+            user.anonymousId = anonymousId;
+            user.externalId = externalId;
+            user.externalUserName = externalUserName;
+            user.phoneNumber = phoneNumber;
+            user.email = email;
+            lastUser = user;
+            return user;
+        }
+
+        private String readString() throws IOException {
+            long ref = readVarLong();
+            if (ref == REF_NULL) {
+                return null;
+            }
+            if (ref == REF_NEW) {
+                String s = new String(readBytes(), UTF_8);
+                strings.add(s);
+                return s;
+            }
+            long id = ref - REF_OFFSET;
+            if (id >= strings.size()) {
+                throw new IOException("Unknown string " + id);
+            }
+            return strings.get((int) id);
+        }
+
+        private byte[] readBytes() throws IOException {
+            long length = readVarLong();
+            if (length > limit - pos) {
+                throw new IOException("Truncated record");
+            }
+            byte[] bytes = Arrays.copyOfRange(buf, pos, pos + (int) length);
+            pos += (int) length;
+            return bytes;
+        }
+
+        private long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        private int readByte() throws IOException {
+            if (pos >= limit) {
+                throw new IOException("Truncated record");
+            }
+            return buf[pos++];
+        }
+    }
+
+    /**
+     * @return the timestamp of a record, without decoding the rest of it
+     */
+    static long peekTimestamp(byte[] payload) throws IOException {
+        Decoder decoder = new Decoder();
+        decoder.buf = payload;
+        decoder.limit = payload.length;
+        decoder.pos = 1;
+        return decoder.readVarLong();
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
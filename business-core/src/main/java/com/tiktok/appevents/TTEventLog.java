@@ -0,0 +1,897 @@
+/*******************************************************************************
+ * Copyright (c) 2020. Bytedance Inc.
+ *
+ * This source code is licensed under the MIT license found in the LICENSE file in the root directory of this source tree.
+ ******************************************************************************/
+
+package com.tiktok.appevents;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The file engine of {@link TTEventStore}, an append-only log of events split into segment files.
+ * <p>
+ * A segment starts with a header, {@link #MAGIC} and the version of the records, followed by frames of
+ * [int length][int crc32][payload], the payload being one event encoded by {@link TTEventCodec}.
+ * Appending writes the new frames at the end of the active segment only, so it costs the size of the
+ * new events, not of the backlog.
+ * A crash in the middle of a write leaves a partial frame at the end of the active segment, it fails
+ * the length or checksum check and is cut off when the log is opened again.
+ * <p>
+ * A closed segment gets an index file with its number of records and event times, so opening the log
+ * reads the indexes only, the events are decoded when a window needs them. A segment without a valid
+ * index, e.g. the one active during a crash, is scanned instead.
+ * <p>
+ * Once a segment is closed it is compressed in the background, the frames after the header are deflated
+ * with {@link #DICTIONARY} and the header says {@link #COMPRESSED_VERSION}. The compressed segment is
+ * written aside and renamed over, and it is read by inflating the frames one by one.
+ * <p>
+ * Reading does not remove anything. The uploader reads a {@link Window} from the committed cursor and
+ * commits it once the server has acknowledged it, the cursor is saved in its own file. A process that
+ * dies during an upload sends the window again after the restart. Segments behind the cursor are
+ * acknowledged by renaming them, which is atomic, and deleted later by the deleter executor.
+ */
+class TTEventLog implements TTEventStore {
+    private static final String TAG = TTEventLog.class.getCanonicalName();
+
+    static final int MAGIC = 0x54544556; // TTEV
+    static final byte VERSION = TTEventCodec.VERSION;
+    // frames of VERSION deflated with DICTIONARY, a new dictionary needs a new version
+    static final byte COMPRESSED_VERSION = 2;
+    static final int HEADER_BYTES = 5;
+    private static final int FRAME_HEADER_BYTES = 8;
+    // a new segment is started once the active one is this large, holds this many events,
+    // or spans this much time, segments are the unit of TTDiskRetention
+    static final long SEGMENT_MAX_BYTES = 64 * 1024;
+    static final int SEGMENT_MAX_RECORDS = 100;
+    static final long SEGMENT_MAX_SPAN_MS = 60 * 60 * 1000;
+    // anything larger is garbage, not an event
+    private static final int MAX_RECORD_BYTES = 1024 * 1024;
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String COMPRESSED_SUFFIX = ".segz";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String ACKED_SUFFIX = ".ack";
+    private static final String CURSOR_FILE = "cursor";
+
+    /**
+     * The strings most segments contain, the more common the closer to the end.
+     * Event names and user ids are in the string table of the codec, the rest is property json.
+     */
+    private static final byte[] DICTIONARY = ("\"description\":\"\"query\":\"\"order_id\":\"\"content_name\":\""
+            + "\"content_category\":\"CompleteRegistrationInstallAppLaunchAPPSearchAddToWishlistCheckout"
+            + "\"contents\":[{\"content_type\":\"product\",\"quantity\":1,\"price\":"
+            + "\"currency\":\"USD\",\"value\":ViewContentAddToCartPurchase"
+            + "{\"content_id\":\"").getBytes(Charset.forName("UTF-8"));
+
+    private static class Segment {
+        final long seq;
+        File file;
+        boolean compressed;
+        int records;
+        long bytes;
+        // the segments found when the log is opened, or after a failed write, are not appended to,
+        // the string table of the encoder is only known while the segment is written
+        boolean sealed;
+        TTEventCodec.Encoder encoder;
+        // event times, unknown (0) for a segment without records
+        long minTimestampMS = Long.MAX_VALUE;
+        long maxTimestampMS = 0;
+
+        Segment(long seq, File file) {
+            this.seq = seq;
+            this.file = file;
+        }
+    }
+
+    /**
+     * Events read from the cursor, and where they were read from, so that a commit does not
+     * depend on what happened to the log in between
+     */
+    static class Window extends TTEventStore.Window {
+        // per segment read: its seq, the index of the first record read and the number read
+        private final long[] seqs;
+        private final int[] firstIndexes;
+        private final int[] counts;
+        private int segments = 0;
+
+        private Window(int maxSegments, int maxEvents) {
+            super(new ArrayList<TTAppEvent>(maxEvents));
+            seqs = new long[maxSegments];
+            firstIndexes = new int[maxSegments];
+            counts = new int[maxSegments];
+        }
+
+        private void add(long seq, int firstIndex, int count) {
+            seqs[segments] = seq;
+            firstIndexes[segments] = firstIndex;
+            counts[segments] = count;
+            segments++;
+        }
+
+        private boolean covers(long seq) {
+            for (int i = 0; i < segments; i++) {
+                if (seqs[i] == seq) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The content of an index file, valid as long as the segment file has the length it was written for
+     */
+    private static class Index {
+        byte version;
+        int records;
+        long minTimestampMS;
+        long maxTimestampMS;
+    }
+
+    private static class ScanResult {
+        byte version;
+        // of the uncompressed frames
+        long validBytes = 0;
+        int records = 0;
+        long minTimestampMS = Long.MAX_VALUE;
+        long maxTimestampMS = 0;
+    }
+
+    private final File dir;
+    private final boolean priority;
+    private final Executor deleter;
+    // oldest first, the last one is the active segment, none is behind the cursor
+    private final List<Segment> segments = new ArrayList<>();
+    private int records = 0;
+    private long nextSeq = 1;
+    // the records before it are committed
+    private long cursorSeq = 0;
+    private int cursorIndex = 0;
+    // the last window read, until it is committed its segments are not evicted, see TTDiskRetention
+    private Window inFlight;
+    // appended to since the last sync, their writes may still be in the page cache only
+    private final List<Segment> unsynced = new ArrayList<>();
+
+    /**
+     * Opens the log, checks every frame and cuts off a partial frame left by a crash
+     *
+     * @param priority whether the log holds the priority lane, see {@link TTAppEvent#isPriority()}
+     * @param deleter  runs the deletion of acknowledged segments
+     */
+    TTEventLog(File dir, boolean priority, Executor deleter) {
+        this.dir = dir;
+        this.priority = priority;
+        this.deleter = deleter;
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        recover();
+    }
+
+    /**
+     * @return whether a log in the dir holds segments, without opening it
+     */
+    static boolean hasSegments(File dir) {
+        String[] names = dir.list();
+        if (names == null) {
+            return false;
+        }
+        for (String name : names) {
+            if (name.endsWith(SEGMENT_SUFFIX) || name.endsWith(COMPRESSED_SUFFIX)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return number of events not committed yet
+     */
+    @Override
+    public synchronized int size() {
+        if (!segments.isEmpty() && segments.get(0).seq == cursorSeq) {
+            return records - cursorIndex;
+        }
+        return records;
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Appends the events at the end of the log
+     */
+    @Override
+    public synchronized void append(List<TTAppEvent> events) throws IOException {
+        if (events == null || events.isEmpty()) {
+            return;
+        }
+        Segment active = activeSegment();
+        markUnsynced(active);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(active.file, true)));
+        try {
+            if (active.bytes == 0) {
+                writeHeader(out, active);
+            }
+            CRC32 crc = new CRC32();
+            for (TTAppEvent event : events) {
+                long timestamp = event.getTimeStamp().getTime();
+                if (isFull(active, timestamp)) {
+                    out.close();
+                    active = newSegment();
+                    markUnsynced(active);
+                    out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(active.file, true)));
+                    writeHeader(out, active);
+                }
+                byte[] payload = active.encoder.encode(event);
+                crc.reset();
+                crc.update(payload, 0, payload.length);
+                out.writeInt(payload.length);
+                out.writeInt((int) crc.getValue());
+                out.write(payload);
+                active.bytes += FRAME_HEADER_BYTES + payload.length;
+                active.records++;
+                active.minTimestampMS = Math.min(active.minTimestampMS, timestamp);
+                active.maxTimestampMS = Math.max(active.maxTimestampMS, timestamp);
+                records++;
+            }
+            out.close();
+        } catch (IOException e) {
+            // the file may end with a partial frame, and the encoder may know strings that are not written
+            active.sealed = true;
+            try {
+                out.close();
+            } catch (IOException ignored) {}
+            throw e;
+        }
+    }
+
+    private void markUnsynced(Segment segment) {
+        if (unsynced.isEmpty() || unsynced.get(unsynced.size() - 1) != segment) {
+            unsynced.add(segment);
+        }
+    }
+
+    /**
+     * Flushes what was appended since the last sync to the storage device, so that it survives
+     * the power going off, not only the process dying
+     */
+    @Override
+    public synchronized void sync() throws IOException {
+        for (Segment segment : unsynced) {
+            if (!segments.contains(segment)) {
+                // acknowledged or evicted meanwhile
+                continue;
+            }
+            try (FileOutputStream out = new FileOutputStream(segment.file, true)) {
+                out.getFD().sync();
+            }
+        }
+        unsynced.clear();
+    }
+
+    /**
+     * Writes the events into a standalone file in the segment format, for the crash handler:
+     * no lock is taken and the writing stops at the deadline, what is written until then is readable
+     *
+     * @return number of events written
+     */
+    static int writeSpill(File f, List<TTAppEvent> events, long deadlineNanos) throws IOException {
+        TTEventCodec.Encoder encoder = new TTEventCodec.Encoder();
+        CRC32 crc = new CRC32();
+        int written = 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            for (TTAppEvent event : events) {
+                if (System.nanoTime() > deadlineNanos) {
+                    break;
+                }
+                byte[] payload = encoder.encode(event);
+                crc.reset();
+                crc.update(payload, 0, payload.length);
+                out.writeInt(payload.length);
+                out.writeInt((int) crc.getValue());
+                out.write(payload);
+                written++;
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Reads a file written by {@link #writeSpill}, up to the first partial or corrupted frame
+     */
+    static List<TTAppEvent> readSpill(File f) {
+        List<TTAppEvent> events = new ArrayList<>();
+        scan(f, 0, Integer.MAX_VALUE, events);
+        return events;
+    }
+
+    private static boolean isFull(Segment segment, long timestamp) {
+        return segment.bytes >= SEGMENT_MAX_BYTES || segment.records >= SEGMENT_MAX_RECORDS
+                || (segment.records > 0 && Math.abs(timestamp - segment.minTimestampMS) >= SEGMENT_MAX_SPAN_MS);
+    }
+
+    private static void writeHeader(DataOutputStream out, Segment segment) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        segment.bytes = HEADER_BYTES;
+    }
+
+    /**
+     * Reads up to maxEvents events from the cursor, nothing is removed until {@link #commit}
+     */
+    @Override
+    public synchronized Window read(int maxEvents) {
+        Window window = new Window(segments.size(), Math.min(size(), maxEvents));
+        for (Segment segment : segments) {
+            int remaining = maxEvents - window.events.size();
+            if (remaining <= 0) {
+                break;
+            }
+            int skip = segment.seq == cursorSeq ? cursorIndex : 0;
+            if (skip >= segment.records) {
+                continue;
+            }
+            int before = window.events.size();
+            scan(segment.file, skip, remaining, window.events);
+            int count = window.events.size() - before;
+            if (count > 0) {
+                window.add(segment.seq, skip, count);
+            }
+            if (count < Math.min(remaining, segment.records - skip)) {
+                // the segment has been damaged since it was opened, the rest is unreadable
+                break;
+            }
+        }
+        inFlight = window;
+        return window;
+    }
+
+    /**
+     * Moves the cursor behind the first acked events of the window and saves it
+     */
+    @Override
+    public synchronized void commit(TTEventStore.Window read, int acked) {
+        if (read == inFlight) {
+            inFlight = null;
+        }
+        if (!(read instanceof Window) || acked <= 0) {
+            return;
+        }
+        Window window = (Window) read;
+        acked = Math.min(acked, window.events.size());
+        for (int i = 0; i < window.segments; i++) {
+            if (acked <= window.counts[i]) {
+                moveCursor(window.seqs[i], window.firstIndexes[i] + acked);
+                return;
+            }
+            acked -= window.counts[i];
+        }
+    }
+
+    /**
+     * @return the segments holding events not committed yet, oldest first
+     */
+    @Override
+    public synchronized List<SegmentInfo> segments() {
+        List<SegmentInfo> infos = new ArrayList<>(segments.size());
+        for (Segment segment : segments) {
+            int pending = segment.seq == cursorSeq ? segment.records - cursorIndex : segment.records;
+            if (pending > 0) {
+                infos.add(new SegmentInfo(this, segment.seq, priority, pending, segment.bytes,
+                        segment.minTimestampMS, segment.maxTimestampMS, inFlight != null && inFlight.covers(segment.seq)));
+            }
+        }
+        return infos;
+    }
+
+    /**
+     * Drops a segment, wherever it is in the log
+     *
+     * @return number of events dropped which were not committed yet
+     */
+    @Override
+    public synchronized int evict(long seq) {
+        for (int i = 0; i < segments.size(); i++) {
+            Segment segment = segments.get(i);
+            if (segment.seq != seq) {
+                continue;
+            }
+            if (i == 0) {
+                int pending = size();
+                int records = segment.records;
+                // same as committing it
+                moveCursor(seq, records);
+                return pending - size();
+            }
+            segments.remove(i);
+            records -= segment.records;
+            File acked = new File(dir, segment.file.getName() + ACKED_SUFFIX);
+            if (!segment.file.renameTo(acked)) {
+                segment.file.delete();
+            }
+            indexFile(segment.seq).delete();
+            scheduleDeletion();
+            return segment.records;
+        }
+        return 0;
+    }
+
+    /**
+     * Deletes everything right away
+     */
+    @Override
+    public synchronized void clear() {
+        for (Segment segment : segments) {
+            segment.file.delete();
+            indexFile(segment.seq).delete();
+        }
+        segments.clear();
+        unsynced.clear();
+        inFlight = null;
+        records = 0;
+        cursorSeq = nextSeq;
+        cursorIndex = 0;
+        saveCursor();
+        deleteAcknowledged();
+    }
+
+    private void moveCursor(long seq, int index) {
+        if (seq < cursorSeq || (seq == cursorSeq && index <= cursorIndex)) {
+            // already committed, e.g. by a trim in the meantime
+            return;
+        }
+        cursorSeq = seq;
+        cursorIndex = index;
+        int acknowledged = 0;
+        while (acknowledged < segments.size()) {
+            Segment segment = segments.get(acknowledged);
+            if (segment.seq > cursorSeq || (segment.seq == cursorSeq && cursorIndex < segment.records)) {
+                break;
+            }
+            acknowledged++;
+        }
+        if (acknowledged > 0 && acknowledged == segments.size()) {
+            // everything is committed, the next append starts a new segment
+            cursorSeq = nextSeq;
+            cursorIndex = 0;
+        }
+        // the cursor is saved before the segments go, a crash in between only leaves files to delete
+        saveCursor();
+        acknowledge(acknowledged);
+    }
+
+    private void acknowledge(int count) {
+        if (count == 0) {
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            Segment segment = segments.remove(0);
+            records -= segment.records;
+            File acked = new File(dir, segment.file.getName() + ACKED_SUFFIX);
+            if (!segment.file.renameTo(acked)) {
+                segment.file.delete();
+            }
+            indexFile(segment.seq).delete();
+        }
+        scheduleDeletion();
+    }
+
+    private void scheduleDeletion() {
+        try {
+            deleter.execute(this::deleteAcknowledged);
+        } catch (Exception e) {
+            // a rejected task just leaves the files to the next acknowledgement or to recover()
+            TTCrashHandler.handleCrash(TAG, e);
+        }
+    }
+
+    private void deleteAcknowledged() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            if (f.getName().endsWith(ACKED_SUFFIX)) {
+                f.delete();
+            }
+        }
+    }
+
+    /**
+     * Written to a temporary file which replaces the cursor file, so a crash leaves either cursor
+     */
+    private void saveCursor() {
+        File tmp = new File(dir, CURSOR_FILE + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+            out.writeLong(cursorSeq);
+            out.writeInt(cursorIndex);
+            out.writeInt((int) (cursorSeq ^ cursorIndex ^ MAGIC));
+        } catch (IOException e) {
+            TTCrashHandler.handleCrash(TAG, e);
+            return;
+        }
+        if (!tmp.renameTo(new File(dir, CURSOR_FILE))) {
+            TTCrashHandler.handleCrash(TAG, new IOException("Failed to save the cursor of " + dir));
+        }
+    }
+
+    private void loadCursor() {
+        File f = new File(dir, CURSOR_FILE);
+        if (!f.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(f))) {
+            long seq = in.readLong();
+            int index = in.readInt();
+            if (in.readInt() == (int) (seq ^ index ^ MAGIC) && index >= 0) {
+                cursorSeq = seq;
+                cursorIndex = index;
+            }
+        } catch (IOException ignored) {
+            // a damaged cursor sends the log again, which beats losing it
+        }
+    }
+
+    private Segment activeSegment() {
+        if (segments.isEmpty()) {
+            return newSegment();
+        }
+        Segment last = segments.get(segments.size() - 1);
+        return last.sealed || last.bytes >= SEGMENT_MAX_BYTES || last.records >= SEGMENT_MAX_RECORDS
+                ? newSegment() : last;
+    }
+
+    private Segment newSegment() {
+        if (!segments.isEmpty()) {
+            Segment previous = segments.get(segments.size() - 1);
+            previous.sealed = true;
+            if (previous.encoder != null) {
+                // written by this process, the recovered ones have their index already
+                writeIndex(previous, VERSION);
+            }
+            scheduleCompression(previous);
+        }
+        long seq = nextSeq++;
+        Segment segment = new Segment(seq, new File(dir, segmentName(seq)));
+        segment.encoder = new TTEventCodec.Encoder();
+        segments.add(segment);
+        return segment;
+    }
+
+    private static String segmentName(long seq) {
+        return String.format("%010d", seq) + SEGMENT_SUFFIX;
+    }
+
+    private static String compressedName(long seq) {
+        return String.format("%010d", seq) + COMPRESSED_SUFFIX;
+    }
+
+    private File indexFile(long seq) {
+        return new File(dir, String.format("%010d", seq) + INDEX_SUFFIX);
+    }
+
+    /**
+     * Written aside and renamed over, a stale or partial index does not match the segment and is ignored
+     */
+    private void writeIndex(Segment segment, byte version) {
+        File tmp = new File(dir, indexFile(segment.seq).getName() + ".tmp");
+        long length = segment.file.length();
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+            out.writeInt(MAGIC);
+            out.writeByte(version);
+            out.writeLong(length);
+            out.writeInt(segment.records);
+            out.writeLong(segment.minTimestampMS);
+            out.writeLong(segment.maxTimestampMS);
+            out.writeLong(length ^ segment.records ^ segment.minTimestampMS ^ segment.maxTimestampMS ^ MAGIC);
+        } catch (IOException e) {
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(indexFile(segment.seq))) {
+            tmp.delete();
+        }
+    }
+
+    private Index readIndex(long seq, File segmentFile) {
+        File f = indexFile(seq);
+        if (!f.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(f))) {
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+            Index index = new Index();
+            index.version = in.readByte();
+            long length = in.readLong();
+            index.records = in.readInt();
+            index.minTimestampMS = in.readLong();
+            index.maxTimestampMS = in.readLong();
+            long check = in.readLong();
+            if (check != (length ^ index.records ^ index.minTimestampMS ^ index.maxTimestampMS ^ MAGIC)
+                    || length != segmentFile.length() || index.records < 0) {
+                return null;
+            }
+            return index;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void scheduleCompression(final Segment segment) {
+        if (segment.compressed || segment.records == 0) {
+            return;
+        }
+        final long seq = segment.seq;
+        final File source = segment.file;
+        try {
+            deleter.execute(() -> compress(seq, source));
+        } catch (Exception e) {
+            // stays uncompressed
+            TTCrashHandler.handleCrash(TAG, e);
+        }
+    }
+
+    /**
+     * Runs outside of the lock, a closed segment is not written anymore, it can only be
+     * acknowledged or evicted in the meantime, which is checked before the compressed file is used
+     */
+    private void compress(long seq, File source) {
+        File tmp = new File(dir, compressedName(seq) + ".tmp");
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        deflater.setDictionary(DICTIONARY);
+        try (InputStream in = new BufferedInputStream(new FileInputStream(source));
+             FileOutputStream fileOut = new FileOutputStream(tmp)) {
+            byte[] header = new byte[HEADER_BYTES];
+            if (in.read(header) != HEADER_BYTES || header[HEADER_BYTES - 1] != VERSION) {
+                tmp.delete();
+                return;
+            }
+            DataOutputStream headerOut = new DataOutputStream(fileOut);
+            headerOut.writeInt(MAGIC);
+            headerOut.writeByte(COMPRESSED_VERSION);
+            DeflaterOutputStream out = new DeflaterOutputStream(fileOut, deflater, 8192);
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            out.finish();
+        } catch (IOException e) {
+            // the source may have been acknowledged meanwhile
+            tmp.delete();
+            return;
+        } finally {
+            deflater.end();
+        }
+        synchronized (this) {
+            Segment segment = null;
+            for (Segment s : segments) {
+                if (s.seq == seq) {
+                    segment = s;
+                    break;
+                }
+            }
+            if (segment == null || segment.compressed || !segment.file.equals(source)) {
+                tmp.delete();
+                return;
+            }
+            File compressed = new File(dir, compressedName(seq));
+            if (!tmp.renameTo(compressed)) {
+                tmp.delete();
+                return;
+            }
+            source.delete();
+            segment.file = compressed;
+            segment.compressed = true;
+            segment.bytes = compressed.length();
+            writeIndex(segment, COMPRESSED_VERSION);
+        }
+    }
+
+    private void recover() {
+        deleteAcknowledged();
+        loadCursor();
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File f : files) {
+            String name = f.getName();
+            if (name.endsWith(".tmp") && !name.startsWith(CURSOR_FILE)) {
+                // a compression which did not finish
+                f.delete();
+                continue;
+            }
+            if (name.endsWith(INDEX_SUFFIX)) {
+                String prefix = name.substring(0, name.length() - INDEX_SUFFIX.length());
+                if (!new File(dir, prefix + SEGMENT_SUFFIX).exists()
+                        && !new File(dir, prefix + COMPRESSED_SUFFIX).exists()) {
+                    // the segment was acknowledged
+                    f.delete();
+                }
+                continue;
+            }
+            boolean compressed = name.endsWith(COMPRESSED_SUFFIX);
+            if (!compressed && !name.endsWith(SEGMENT_SUFFIX)) {
+                continue;
+            }
+            long seq;
+            try {
+                seq = Long.parseLong(name.substring(0, name.length()
+                        - (compressed ? COMPRESSED_SUFFIX : SEGMENT_SUFFIX).length()));
+            } catch (NumberFormatException e) {
+                f.delete();
+                continue;
+            }
+            if (!compressed && new File(dir, compressedName(seq)).exists()) {
+                // compressed, but not deleted yet
+                f.delete();
+                continue;
+            }
+            nextSeq = Math.max(nextSeq, seq + 1);
+            Index index = readIndex(seq, f);
+            if (index != null) {
+                Segment segment = new Segment(seq, f);
+                segment.records = index.records;
+                segment.bytes = f.length();
+                segment.compressed = compressed;
+                segment.sealed = true;
+                segment.minTimestampMS = index.minTimestampMS;
+                segment.maxTimestampMS = index.maxTimestampMS;
+                segments.add(segment);
+                records += segment.records;
+                if (!compressed && index.version == VERSION) {
+                    scheduleCompression(segment);
+                }
+                continue;
+            }
+            ScanResult result = scan(f, 0, Integer.MAX_VALUE, null);
+            if (result.validBytes < HEADER_BYTES) {
+                f.delete();
+                continue;
+            }
+            if (!compressed && result.validBytes < f.length()) {
+                truncate(f, result.validBytes);
+            }
+            Segment segment = new Segment(seq, f);
+            segment.records = result.records;
+            segment.bytes = compressed ? f.length() : result.validBytes;
+            segment.compressed = compressed;
+            segment.sealed = true;
+            if (result.maxTimestampMS > 0) {
+                segment.minTimestampMS = result.minTimestampMS;
+                segment.maxTimestampMS = result.maxTimestampMS;
+            } else {
+                // no records
+                segment.minTimestampMS = f.lastModified();
+                segment.maxTimestampMS = f.lastModified();
+            }
+            segments.add(segment);
+            records += segment.records;
+            writeIndex(segment, compressed ? COMPRESSED_VERSION : result.version);
+            if (!compressed && result.version == VERSION) {
+                scheduleCompression(segment);
+            }
+        }
+        nextSeq = Math.max(nextSeq, cursorSeq + 1);
+        // the segments committed before a crash
+        int committed = 0;
+        while (committed < segments.size() && (segments.get(committed).seq < cursorSeq
+                || (segments.get(committed).seq == cursorSeq && cursorIndex >= segments.get(committed).records))) {
+            committed++;
+        }
+        acknowledge(committed);
+    }
+
+    private static void truncate(File f, long length) {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.setLength(length);
+        } catch (IOException e) {
+            TTCrashHandler.handleCrash(TAG, e);
+        }
+    }
+
+    /**
+     * Reads the frames of a segment, stopping at the first partial or corrupted one
+     *
+     * @param skip frames skipped without being returned, they are not checked, but decoded all the
+     *             same for the strings they define
+     * @param max  number of events to read after the skipped ones
+     * @param out  receives the events, null to only check and count them
+     */
+    private static ScanResult scan(File f, int skip, int max, List<TTAppEvent> out) {
+        ScanResult result = new ScanResult();
+        Inflater inflater = null;
+        try (InputStream fileIn = new BufferedInputStream(new FileInputStream(f))) {
+            DataInputStream in = new DataInputStream(fileIn);
+            if (in.readInt() != MAGIC) {
+                return result;
+            }
+            byte version = in.readByte();
+            if (version == COMPRESSED_VERSION) {
+                inflater = new Inflater(true);
+                inflater.setDictionary(DICTIONARY);
+                in = new DataInputStream(new InflaterInputStream(fileIn, inflater, 8192));
+            } else if (version != VERSION) {
+                return result;
+            }
+            result.version = version;
+            TTEventCodec.Decoder decoder = new TTEventCodec.Decoder();
+            result.validBytes = HEADER_BYTES;
+            for (int i = 0; i < skip; i++) {
+                int length = in.readInt();
+                in.readInt();
+                if (length <= 0 || length > MAX_RECORD_BYTES) {
+                    return result;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                decoder.decode(payload);
+                result.validBytes += FRAME_HEADER_BYTES + length;
+            }
+            CRC32 crc = new CRC32();
+            while (result.records < max) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length <= 0 || length > MAX_RECORD_BYTES) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                if (out != null) {
+                    out.add(decoder.decode(payload));
+                } else {
+                    long timestamp = TTEventCodec.peekTimestamp(payload);
+                    result.minTimestampMS = Math.min(result.minTimestampMS, timestamp);
+                    result.maxTimestampMS = Math.max(result.maxTimestampMS, timestamp);
+                }
+                result.records++;
+                result.validBytes += FRAME_HEADER_BYTES + length;
+            }
+        } catch (EOFException ignored) {
+            // the end of the file, or a partial frame
+        } catch (IOException e) {
+            TTCrashHandler.handleCrash(TAG, e);
+        } finally {
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+        return result;
+    }
+}
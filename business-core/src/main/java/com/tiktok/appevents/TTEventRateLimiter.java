@@ -0,0 +1,155 @@
+/*******************************************************************************
+ * Copyright (c) 2020. Bytedance Inc.
+ *
+ * This source code is licensed under the MIT license found in the LICENSE file in the root directory of this source tree.
+ ******************************************************************************/
+
+package com.tiktok.appevents;
+
+import androidx.annotation.Nullable;
+
+import com.tiktok.TikTokBusinessSdk;
+import com.tiktok.util.TTLogger;
+
+import org.json.JSONObject;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Sampling and token bucket rate limiting per event name, applied before an event is enqueued.
+ * <p>
+ * The rules come from the event_sampling part of the business_sdk_config, e.g.
+ * <pre>
+ * "event_sampling": {
+ *     "VideoProgress": {"sample_rate": 0.1, "rate_limit": 2, "burst": 10}
+ * }
+ * </pre>
+ * sample_rate: the probability an event is kept, 1 by default <br/>
+ * rate_limit: max events per second on average, 0 (unlimited) by default <br/>
+ * burst: size of the token bucket, defaults to max(1, rate_limit) <br/>
+ * <p>
+ * Every kept event carries a sample weight, the number of tracked events it stands for,
+ * so that the server can extrapolate. Events without a rule are not affected at all, neither
+ * are the priority ones (see {@link TTAppEvent#isPriority}), which never go through the limiter.
+ */
+class TTEventRateLimiter {
+    private static final String TAG = TTEventRateLimiter.class.getCanonicalName();
+    private static final TTLogger logger = new TTLogger(TAG, TikTokBusinessSdk.getLogLevel());
+
+    static final double NOT_SAMPLED = 1;
+    static final double DISCARDED = 0;
+
+    static final class Rule {
+        final double sampleRate;
+        final double ratePerSecond;
+        final double burst;
+
+        Rule(double sampleRate, double ratePerSecond, double burst) {
+            this.sampleRate = Math.min(sampleRate, 1);
+            this.ratePerSecond = Math.max(ratePerSecond, 0);
+            this.burst = Math.max(burst, 1);
+        }
+    }
+
+    private static final class Bucket {
+        private final Rule rule;
+        private final Random random = new Random();
+        private double tokens;
+        private long lastRefillNanos;
+        // weight of the sampled events the bucket rejected, carried over by the next kept event
+        private double suppressedWeight = 0;
+
+        Bucket(Rule rule, long nowNanos) {
+            this.rule = rule;
+            this.tokens = rule.burst;
+            this.lastRefillNanos = nowNanos;
+        }
+
+        synchronized double admit(long nowNanos) {
+            if (rule.sampleRate <= 0) {
+                return DISCARDED;
+            }
+            double weight = NOT_SAMPLED;
+            if (rule.sampleRate < 1) {
+                if (random.nextDouble() >= rule.sampleRate) {
+                    return DISCARDED;
+                }
+                weight = 1 / rule.sampleRate;
+            }
+            if (rule.ratePerSecond > 0) {
+                tokens = Math.min(rule.burst, tokens + (nowNanos - lastRefillNanos) * rule.ratePerSecond / 1e9);
+                lastRefillNanos = nowNanos;
+                if (tokens < 1) {
+                    suppressedWeight += weight;
+                    return DISCARDED;
+                }
+                tokens -= 1;
+            }
+            weight += suppressedWeight;
+            suppressedWeight = 0;
+            return weight;
+        }
+    }
+
+    // replaced as a whole whenever the rules change, read without locking on the track path
+    private volatile Map<String, Bucket> buckets = Collections.emptyMap();
+
+    /**
+     * Safe to call from any thread, does not allocate
+     *
+     * @return the sample weight of the event, {@link #DISCARDED} if it should not be tracked
+     */
+    double admit(@Nullable String eventName) {
+        return admit(eventName, System.nanoTime());
+    }
+
+    double admit(@Nullable String eventName, long nowNanos) {
+        if (eventName == null) {
+            return NOT_SAMPLED;
+        }
+        Map<String, Bucket> current = buckets;
+        if (current.isEmpty()) {
+            return NOT_SAMPLED;
+        }
+        Bucket bucket = current.get(eventName);
+        if (bucket == null) {
+            return NOT_SAMPLED;
+        }
+        return bucket.admit(nowNanos);
+    }
+
+    void setRules(Map<String, Rule> rules) {
+        long now = System.nanoTime();
+        Map<String, Bucket> newBuckets = new HashMap<>();
+        for (Map.Entry<String, Rule> entry : rules.entrySet()) {
+            newBuckets.put(entry.getKey(), new Bucket(entry.getValue(), now));
+        }
+        buckets = newBuckets;
+    }
+
+    /**
+     * @param samplingConfig the event_sampling object of business_sdk_config, null clears the rules
+     */
+    void updateRules(@Nullable JSONObject samplingConfig) {
+        Map<String, Rule> rules = new HashMap<>();
+        if (samplingConfig != null) {
+            Iterator<String> names = samplingConfig.keys();
+            while (names.hasNext()) {
+                String name = names.next();
+                JSONObject ruleJson = samplingConfig.optJSONObject(name);
+                if (ruleJson == null) {
+                    continue;
+                }
+                double rateLimit = ruleJson.optDouble("rate_limit", 0);
+                rules.put(name, new Rule(ruleJson.optDouble("sample_rate", 1), rateLimit,
+                        ruleJson.optDouble("burst", Math.max(1, rateLimit))));
+            }
+        }
+        logger.debug("event sampling rules updated for %d events", rules.size());
+        setRules(rules);
+    }
+}
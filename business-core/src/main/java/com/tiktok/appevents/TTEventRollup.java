@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * Copyright (c) 2020. Bytedance Inc.
+ *
+ * This source code is licensed under the MIT license found in the LICENSE file in the root directory of this source tree.
+ ******************************************************************************/
+
+package com.tiktok.appevents;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merges repeated track events of a flush into one record with a count and first/last timestamps.
+ * <p>
+ * Two events are repeats when they have the same name, the same serialized properties and the
+ * same user info snapshot. The properties are compared as the json string built at track time,
+ * so the key costs a cached String hash and, on a hash match, a string comparison; no json is
+ * parsed. Properties put in a different order are not considered equal.
+ * <p>
+ * The priority events, see {@link TTAppEvent#isPriority()}, are never merged, two purchases
+ * with the same properties are still two purchases.
+ */
+class TTEventRollup {
+
+    private TTEventRollup() {
+    }
+
+    private static final class Key {
+        private final TTAppEvent event;
+        private final int hash;
+
+        Key(TTAppEvent event) {
+            this.event = event;
+            String props = event.getPropertiesJson();
+            this.hash = 31 * event.getEventName().hashCode() + (props == null ? 0 : props.hashCode());
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            if (hash != other.hash) return false;
+            TTAppEvent that = other.event;
+            // the snapshot is shared by all the events tracked with the same user info
+            return event.getUserInfo() == that.getUserInfo()
+                    && event.getEventName().equals(that.getEventName())
+                    && (event.getPropertiesJson() == null
+                    ? that.getPropertiesJson() == null
+                    : event.getPropertiesJson().equals(that.getPropertiesJson()));
+        }
+    }
+
+    /**
+     * Order is kept, a merged record takes the place of its first occurrence.
+     * The merged events are updated in place.
+     *
+     * @return the input list if there is nothing to merge
+     */
+    static List<TTAppEvent> rollup(List<TTAppEvent> events) {
+        if (events.size() < 2) {
+            return events;
+        }
+        Map<Key, TTAppEvent> firstOccurrences = new HashMap<>();
+        List<TTAppEvent> result = new ArrayList<>(events.size());
+        for (TTAppEvent event : events) {
+            if (!TTAppEvent.TTAppEventType.track.name().equals(event.getType()) || event.getEventName() == null
+                    || event.isPriority()) {
+                result.add(event);
+                continue;
+            }
+            Key key = new Key(event);
+            TTAppEvent first = firstOccurrences.get(key);
+            if (first == null) {
+                firstOccurrences.put(key, event);
+                result.add(event);
+            } else {
+                first.merge(event);
+            }
+        }
+        return result.size() == events.size() ? events : result;
+    }
+}
@@ -0,0 +1,204 @@
+/*******************************************************************************
+ * Copyright (c) 2020. Bytedance Inc.
+ *
+ * This source code is licensed under the MIT license found in the LICENSE file in the root directory of this source tree.
+ ******************************************************************************/
+
+package com.tiktok.appevents;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Caller side staging area for {@link TTAppEventLogger#track(String, JSONObject)}.
+ * <p>
+ * The slots are preallocated and reused, the calling thread only copies a few references and
+ * a timestamp into a claimed slot, so once warmed up a track call produces no garbage.
+ * Building the {@link TTAppEvent} (date, id, serialized props) is deferred to the eventLoop,
+ * which drains the slots. The claim/publish protocol is the same as {@link TTRingBuffer}.
+ */
+class TTEventStagingRing {
+
+    static final class Slot {
+        TTAppEvent.TTAppEventType type;
+        String eventName;
+        // JSONObject or TTProperties
+        Object props;
+        long timestamp;
+        TTUserInfo userInfo;
+        double sampleWeight;
+
+        private void clear() {
+            type = null;
+            eventName = null;
+            props = null;
+            userInfo = null;
+        }
+    }
+
+    interface SlotConsumer {
+        void accept(Slot slot);
+    }
+
+    private final int capacity;
+    private final int mask;
+    private final Slot[] slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong(0);
+    // only written by the consumer holding consumerLock
+    private volatile long head = 0;
+    private final ReentrantLock consumerLock = new ReentrantLock();
+
+    /**
+     * @param capacity rounded up to the next power of two
+     */
+    TTEventStagingRing(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        this.slots = new Slot[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Safe to call from any thread, does not allocate
+     *
+     * @return false if all the slots are taken
+     */
+    boolean publish(TTAppEvent.TTAppEventType type, String eventName, Object props, double sampleWeight) {
+        long pos = tail.get();
+        int index;
+        while (true) {
+            index = (int) (pos & mask);
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+        Slot slot = slots[index];
+        slot.type = type;
+        slot.eventName = eventName;
+        slot.props = props;
+        slot.timestamp = System.currentTimeMillis();
+        slot.userInfo = TTUserInfo.snapshot();
+        slot.sampleWeight = sampleWeight;
+        sequences.lazySet(index, pos + 1);
+        return true;
+    }
+
+    /**
+     * The slot handed to the consumer is recycled as soon as accept returns,
+     * so it must not be retained.
+     *
+     * @return number of drained slots
+     */
+    int drain(SlotConsumer consumer, int max) {
+        consumerLock.lock();
+        try {
+            return drainLocked(consumer, max);
+        } finally {
+            consumerLock.unlock();
+        }
+    }
+
+    /**
+     * Same as {@link #drain}, but gives up instead of waiting when the eventLoop is draining
+     *
+     * @return number of drained slots, 0 if the lock was taken
+     */
+    int tryDrain(SlotConsumer consumer, int max) {
+        if (!consumerLock.tryLock()) {
+            return 0;
+        }
+        try {
+            return drainLocked(consumer, max);
+        } finally {
+            consumerLock.unlock();
+        }
+    }
+
+    private int drainLocked(SlotConsumer consumer, int max) {
+        int drained = 0;
+        while (drained < max) {
+            long pos = head;
+            int index = (int) (pos & mask);
+            if (sequences.get(index) != pos + 1) {
+                break;
+            }
+            Slot slot = slots[index];
+            try {
+                consumer.accept(slot);
+            } finally {
+                slot.clear();
+                sequences.lazySet(index, pos + capacity);
+                head = pos + 1;
+            }
+            drained++;
+        }
+        return drained;
+    }
+
+    /**
+     * Frees the oldest slot, for {@link com.tiktok.TikTokBusinessSdk.OverflowPolicy#DROP_OLDEST},
+     * safe to call from any thread, does not allocate. A priority event is never evicted, nothing
+     * is waited for either: while the eventLoop drains, slots are freed anyway.
+     *
+     * @return whether a staged event was dropped
+     */
+    boolean evictOldest() {
+        if (!consumerLock.tryLock()) {
+            return false;
+        }
+        try {
+            long pos = head;
+            int index = (int) (pos & mask);
+            if (sequences.get(index) != pos + 1) {
+                return false;
+            }
+            Slot slot = slots[index];
+            if (TTAppEvent.isPriority(slot.type, slot.eventName)) {
+                return false;
+            }
+            slot.clear();
+            sequences.lazySet(index, pos + capacity);
+            head = pos + 1;
+            return true;
+        } finally {
+            consumerLock.unlock();
+        }
+    }
+
+    void clear() {
+        drain(slot -> {
+        }, Integer.MAX_VALUE);
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    int size() {
+        long size = tail.get() - head;
+        if (size < 0) {
+            return 0;
+        }
+        return (int) Math.min(size, capacity);
+    }
+}
@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright (c) 2020. Bytedance Inc.
+ *
+ * This source code is licensed under the MIT license found in the LICENSE file in the root directory of this source tree.
+ ******************************************************************************/
+
+package com.tiktok.appevents;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The events of one lane of {@link TTAppEventStorage} on the disk, see
+ * {@link com.tiktok.TikTokBusinessSdk.TTConfig#setStorageEngine} for the engines.
+ * <p>
+ * Reading does not remove anything, the uploader reads a {@link Window} and commits it once the
+ * server has acknowledged it. The events are kept in batches, which are the unit of {@link TTDiskRetention}.
+ */
+interface TTEventStore {
+
+    /**
+     * Events read from the store, and whatever the engine needs to commit them later
+     */
+    class Window {
+        final List<TTAppEvent> events;
+
+        Window(List<TTAppEvent> events) {
+            this.events = events;
+        }
+    }
+
+    /**
+     * What {@link TTDiskRetention} knows about a batch of events, taken without reading the events
+     */
+    class SegmentInfo {
+        final TTEventStore store;
+        final long seq;
+        final boolean priority;
+        // events not committed yet
+        final int pending;
+        final long bytes;
+        final long minTimestampMS;
+        final long maxTimestampMS;
+        // holds events of the window being uploaded, which commits them once acknowledged
+        final boolean inFlight;
+
+        SegmentInfo(TTEventStore store, long seq, boolean priority, int pending, long bytes,
+                    long minTimestampMS, long maxTimestampMS, boolean inFlight) {
+            this.store = store;
+            this.seq = seq;
+            this.priority = priority;
+            this.pending = pending;
+            this.bytes = bytes;
+            this.minTimestampMS = minTimestampMS;
+            this.maxTimestampMS = maxTimestampMS;
+            this.inFlight = inFlight;
+        }
+    }
+
+    /**
+     * @return number of events not committed yet
+     */
+    int size();
+
+    boolean isEmpty();
+
+    /**
+     * Appends the events at the end of the store
+     */
+    void append(List<TTAppEvent> events) throws IOException;
+
+    /**
+     * Reads up to maxEvents events, oldest first, nothing is removed until {@link #commit}
+     */
+    Window read(int maxEvents);
+
+    /**
+     * Removes the first acked events of a window read from this store
+     */
+    void commit(Window window, int acked);
+
+    /**
+     * @return the batches holding events not committed yet, oldest first
+     */
+    List<SegmentInfo> segments();
+
+    /**
+     * Drops a batch, wherever it is in the store
+     *
+     * @return number of events dropped which were not committed yet
+     */
+    int evict(long seq);
+
+    /**
+     * Makes what was appended so far survive the power going off
+     */
+    void sync() throws IOException;
+
+    /**
+     * Deletes everything right away
+     */
+    void clear();
+}
@@ -0,0 +1,173 @@
+/*******************************************************************************
+ * Copyright (c) 2020. Bytedance Inc.
+ *
+ * This source code is licensed under the MIT license found in the LICENSE file in the root directory of this source tree.
+ ******************************************************************************/
+
+package com.tiktok.appevents;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Picks when the next timer flush happens and how many events trigger a threshold flush.
+ * <p>
+ * The goal is a batch of a size that suits the network, so the target batch is expressed in bytes
+ * per network class and turned into events with the average size of the recent events.
+ * The delay is the time the observed event rate needs to fill the rest of that batch,
+ * stretched to a few upload round trips on a slow network and kept within [min, max].
+ * With nothing to send, no timer is armed at all, see {@link #hasUnsentEvents()}.
+ */
+class TTFlushScheduler {
+
+    static final long DEFAULT_MIN_DELAY_MS = 5_000;
+    static final long DEFAULT_MAX_DELAY_MS = 60_000;
+
+    // weight of the newest sample in the moving averages
+    private static final double ALPHA = 0.3;
+    // assumed until events are seen, roughly an event with a handful of properties plus its context
+    private static final double DEFAULT_EVENT_BYTES = 320;
+    private static final int MIN_BATCH_EVENTS = 20;
+    private static final int MAX_BATCH_EVENTS = 500;
+    // a timer flush waits for at least this many upload round trips
+    private static final int LATENCY_FACTOR = 4;
+
+    private volatile long minDelayMS = DEFAULT_MIN_DELAY_MS;
+    private volatile long maxDelayMS = DEFAULT_MAX_DELAY_MS;
+
+    // written by the threads enqueuing events
+    private final AtomicLong arrivedEvents = new AtomicLong(0);
+    private final AtomicLong arrivedBytes = new AtomicLong(0);
+
+    // guarded by this
+    private long lastSampleMS;
+    private double eventsPerSecond = 0;
+    private double eventBytes = DEFAULT_EVENT_BYTES;
+    private double latencyMS = 0;
+    private boolean unsentEvents = false;
+    private long lastDelayMS = 0;
+
+    private volatile int flushThreshold = TTAppEventLogger.THRESHOLD;
+
+    /**
+     * @param nowMS the events queued from now on make up the first rate sample
+     */
+    TTFlushScheduler(long nowMS) {
+        this.lastSampleMS = nowMS;
+    }
+
+    /**
+     * non positive values keep the defaults
+     */
+    void configure(long minDelayMS, long maxDelayMS) {
+        long min = minDelayMS > 0 ? minDelayMS : DEFAULT_MIN_DELAY_MS;
+        long max = maxDelayMS > 0 ? maxDelayMS : DEFAULT_MAX_DELAY_MS;
+        this.minDelayMS = Math.min(min, max);
+        this.maxDelayMS = max;
+    }
+
+    /**
+     * Called for every event put in memory, from any thread
+     */
+    void onEventQueued(int bytes) {
+        arrivedEvents.incrementAndGet();
+        arrivedBytes.addAndGet(bytes);
+    }
+
+    /**
+     * @param success false if some events are left on the disk for a later flush
+     */
+    synchronized void onFlushed(long latencyMS, boolean success) {
+        this.latencyMS = this.latencyMS == 0 ? latencyMS : ALPHA * latencyMS + (1 - ALPHA) * this.latencyMS;
+        this.unsentEvents = !success;
+    }
+
+    /**
+     * The flush did not reach the network, its events wait on the disk
+     */
+    synchronized void onFlushSkipped() {
+        this.unsentEvents = true;
+    }
+
+    /**
+     * The events went to the uploader process, nothing waits here, the next event arms the timer
+     */
+    synchronized void onHandedOver() {
+        this.unsentEvents = false;
+    }
+
+    synchronized boolean hasUnsentEvents() {
+        return unsentEvents;
+    }
+
+    /**
+     * Number of events in memory which triggers a flush, {@link TTAppEventLogger#THRESHOLD}
+     * until the first delay has been computed
+     */
+    int flushThreshold() {
+        return flushThreshold;
+    }
+
+    synchronized long lastDelayMS() {
+        return lastDelayMS;
+    }
+
+    /**
+     * @param networkClass  see {@link com.tiktok.util.SystemInfoUtil#getNetworkClass}
+     * @param pendingEvents events waiting in memory
+     */
+    synchronized long nextDelayMS(String networkClass, int pendingEvents, long nowMS) {
+        sample(nowMS);
+
+        int targetEvents = (int) (targetBatchBytes(networkClass) / eventBytes);
+        targetEvents = Math.max(MIN_BATCH_EVENTS, Math.min(MAX_BATCH_EVENTS, targetEvents));
+        flushThreshold = targetEvents;
+
+        double delay;
+        int missing = targetEvents - pendingEvents;
+        if (missing <= 0) {
+            delay = minDelayMS;
+        } else if (eventsPerSecond < 0.01) {
+            // idle, only a retry of what is on the disk or a few stray events
+            delay = maxDelayMS;
+        } else {
+            delay = missing / eventsPerSecond * 1000;
+        }
+        delay = Math.max(delay, latencyMS * LATENCY_FACTOR);
+        lastDelayMS = Math.max(minDelayMS, Math.min(maxDelayMS, (long) delay));
+        return lastDelayMS;
+    }
+
+    private void sample(long nowMS) {
+        long events = arrivedEvents.getAndSet(0);
+        long bytes = arrivedBytes.getAndSet(0);
+        if (events > 0) {
+            eventBytes = ALPHA * ((double) bytes / events) + (1 - ALPHA) * eventBytes;
+        }
+        long elapsed = Math.max(nowMS - lastSampleMS, 1);
+        lastSampleMS = nowMS;
+        double rate = events * 1000.0 / elapsed;
+        eventsPerSecond = eventsPerSecond == 0 ? rate : ALPHA * rate + (1 - ALPHA) * eventsPerSecond;
+    }
+
+    /**
+     * Slower networks get smaller batches, so that a request does not take ages
+     */
+    private static long targetBatchBytes(String networkClass) {
+        if (networkClass == null) {
+            return 32 * 1024;
+        }
+        switch (networkClass) {
+            case "WIFI":
+            case "5G":
+                return 64 * 1024;
+            case "4G":
+                return 32 * 1024;
+            case "3G":
+                return 16 * 1024;
+            case "2G":
+                return 8 * 1024;
+            default:
+                return 32 * 1024;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright (c) 2020. Bytedance Inc.
+ *
+ * This source code is licensed under the MIT license found in the LICENSE file in the root directory of this source tree.
+ ******************************************************************************/
+
+package com.tiktok.appevents;
+
+import com.tiktok.util.TTJsonWriter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Typed properties of an event, an alternative to JSONObject for
+ * {@link com.tiktok.TikTokBusinessSdk#trackTypedEvent(String, TTProperties)}.
+ * <p>
+ * The values are written right away into the json text which is stored with the event and
+ * spliced as it is into the request body, no json tree is built or parsed on the way.
+ * <pre>
+ * {@code
+ *      TikTokBusinessSdk.trackTypedEvent("Purchase", new TTProperties()
+ *              .put("currency", "USD")
+ *              .put("value", 9.99)
+ *              .addContent(new TTProperties().put("content_id", "sku_1").put("quantity", 2)));
+ * }
+ * </pre>
+ * Each key should be set once, duplicated keys are not detected.
+ */
+public class TTProperties {
+    // the members written so far, without the braces
+    private final StringBuilder members = new StringBuilder(64);
+    // arrays are kept apart so that their items can be added in any order
+    private List<String> arrayKeys;
+    private List<StringBuilder> arrayItems;
+
+    private StringBuilder name(String key) {
+        if (members.length() > 0) {
+            members.append(',');
+        }
+        TTJsonWriter.appendString(members, key);
+        return members.append(':');
+    }
+
+    public TTProperties put(String key, String value) {
+        if (value == null) {
+            name(key).append("null");
+        } else {
+            TTJsonWriter.appendString(name(key), value);
+        }
+        return this;
+    }
+
+    public TTProperties put(String key, long value) {
+        name(key).append(value);
+        return this;
+    }
+
+    /**
+     * NaN and infinities are not valid json, they are sent as null
+     */
+    public TTProperties put(String key, double value) {
+        TTJsonWriter.appendNumber(name(key), value);
+        return this;
+    }
+
+    public TTProperties put(String key, boolean value) {
+        name(key).append(value);
+        return this;
+    }
+
+    public TTProperties put(String key, TTProperties value) {
+        if (value == null) {
+            name(key).append("null");
+        } else {
+            value.appendTo(name(key));
+        }
+        return this;
+    }
+
+    /**
+     * Appends an object to the array under key, the array is created by the first call
+     */
+    public TTProperties add(String key, TTProperties item) {
+        if (arrayKeys == null) {
+            arrayKeys = new ArrayList<>(1);
+            arrayItems = new ArrayList<>(1);
+        }
+        int index = arrayKeys.indexOf(key);
+        StringBuilder items;
+        if (index < 0) {
+            items = new StringBuilder(64);
+            arrayKeys.add(key);
+            arrayItems.add(items);
+        } else {
+            items = arrayItems.get(index);
+            items.append(',');
+        }
+        item.appendTo(items);
+        return this;
+    }
+
+    /**
+     * Appends an item to the standard contents array, e.g. content_id, content_type, quantity, price
+     */
+    public TTProperties addContent(TTProperties content) {
+        return add("contents", content);
+    }
+
+    void appendTo(StringBuilder sb) {
+        sb.append('{').append(members);
+        if (arrayKeys != null) {
+            for (int i = 0; i < arrayKeys.size(); i++) {
+                if (members.length() > 0 || i > 0) {
+                    sb.append(',');
+                }
+                TTJsonWriter.appendString(sb, arrayKeys.get(i));
+                sb.append(":[").append(arrayItems.get(i)).append(']');
+            }
+        }
+        sb.append('}');
+    }
+
+    /**
+     * @return the properties as json text
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(members.length() + 16);
+        appendTo(sb);
+        return sb.toString();
+    }
+}
@@ -6,26 +6,39 @@
 
 package com.tiktok.appevents;
 
+import androidx.annotation.Nullable;
+
 import com.tiktok.BuildConfig;
 import com.tiktok.TikTokBusinessSdk;
 import com.tiktok.util.HttpRequestUtil;
 import com.tiktok.util.SystemInfoUtil;
+import com.tiktok.util.TTApiResponse;
 import com.tiktok.util.TTConst;
+import com.tiktok.util.TTJsonWriter;
 import com.tiktok.util.TTLogger;
 import com.tiktok.util.TTUtil;
 import com.tiktok.util.TimeUtil;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 class TTRequest {
     private static final String TAG = TTRequest.class.getCanonicalName();
@@ -33,10 +46,26 @@ class TTRequest {
 
     private static final int MAX_EVENT_SIZE = 50;
 
+    // how many chunks of a flush are in flight, adapts to the latency and the errors of the uploads
+    static final TTUploadConcurrency concurrency = new TTUploadConcurrency();
+    // keeps the flushes away from the api while it is unreachable, restored by TTAppEventLogger
+    static final TTUploadBackoff backoff = new TTUploadBackoff(new Random());
+    // the threads go away when there is nothing to send
+    private static final ThreadPoolExecutor uploadPool = new ThreadPoolExecutor(TTUploadConcurrency.MAX_LIMIT,
+            TTUploadConcurrency.MAX_LIMIT, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new TTThreadFactory());
+
+    static {
+        uploadPool.allowCoreThreadTimeOut(true);
+    }
+
     // stats for the current batch
     private static int toBeSentRequests = 0;
     private static int failedRequests = 0;
     private static int successfulRequests = 0;
+    // whether a chunk of the current batch reached the api, or found it unreachable
+    private static boolean apiReached = false;
+    private static boolean apiUnreachable = false;
+    private static long retryAfterMS = -1;
 
     // stats for the whole lifecycle
     private static final TreeSet<Long> allRequestIds = new TreeSet<>();
@@ -76,15 +105,13 @@ class TTRequest {
 
         String url = "https://business-api.tiktok.com/open_api/business_sdk_config/get/?" + TTUtil.mapToString(paramsMap, "&");
         logger.debug(url);
-        String result = HttpRequestUtil.doGet(url, getHeadParamMap);
-        logger.debug(result);
+        TTApiResponse result = HttpRequestUtil.doGetResponse(url, getHeadParamMap);
+        logger.debug(String.valueOf(result));
         JSONObject config = null;
         if (result != null) {
             try {
-                JSONObject resultJson = new JSONObject(result);
-                Integer code = (Integer) resultJson.get("code");
-                if (code == 0) {
-                    config = (JSONObject) resultJson.get("data");
+                if (result.code == 0) {
+                    config = new JSONObject(result.data);
                 }
                 logger.info("Global config fetched: " + TTUtil.ppStr(config));
             } catch (Exception e) {
@@ -112,7 +139,7 @@ class TTRequest {
     /**
      * Try to send events to api with MTU set to 1000 app events,
      * If there are more than 1000 events, they will be split into several chunks and
-     * then be sent separately,
+     * then be sent separately, a few at a time, see {@link TTUploadConcurrency},
      * Any failed events will be accumulated and finally returned.
      *
      * @param appEventList
@@ -130,6 +157,9 @@ class TTRequest {
         }
         failedRequests = 0;
         successfulRequests = 0;
+        apiReached = false;
+        apiUnreachable = false;
+        retryAfterMS = -1;
         notifyChange();
         //  dynamic req domain and version
         String url = "https://" + TikTokBusinessSdk.getApiTrackDomain() + "/open_api/" + TikTokBusinessSdk.getApiAvailableVersion() + "/app/batch/";
@@ -137,107 +167,38 @@ class TTRequest {
         List<TTAppEvent> failedEventsToBeSaved = new ArrayList<>();
         List<TTAppEvent> failedEventsToBeDiscarded = new ArrayList<>();
 
-        List<List<TTAppEvent>> chunks = averageAssign(appEventList, MAX_EVENT_SIZE);
-
-        for (List<TTAppEvent> currentBatch : chunks) {
-//            long initTimeMS = System.currentTimeMillis();
-//            try {
-//                JSONObject initMeta = TTUtil.getMetaWithTS(initTimeMS)
-//                        .put("size", currentBatch.size())
-//                        .put("total", appEventList.size());
-//                TikTokBusinessSdk.getAppEventLogger().monitorMetric("track_api_start", initMeta, null);
-//            } catch (Exception ignored) {}
-
-            List<JSONObject> batch = new ArrayList<>();
-            for (TTAppEvent event : currentBatch) {
-                JSONObject propertiesJson = transferJson(event);
-                if (propertiesJson == null) {
-                    continue;
-                }
-                batch.add(propertiesJson);
-            }
+        List<List<TTAppEvent>> chunks = averageAssign(validEvents(appEventList, failedEventsToBeDiscarded), MAX_EVENT_SIZE);
 
-            JSONObject bodyJson = basePayload;
-            try {
-                bodyJson.put("batch", new JSONArray(batch));
-            } catch (Exception e) {
-                failedEventsToBeSaved.addAll(currentBatch);
-                TTCrashHandler.handleCrash(TAG, e);
-                continue;
+        // up to concurrency.limit() chunks are in flight, the results are merged in the order of the
+        // chunks, so the saved and discarded events come out the same as if they were sent one by one
+        ArrayDeque<InFlight> inFlight = new ArrayDeque<>();
+        int next = 0;
+        while (next < chunks.size() || !inFlight.isEmpty()) {
+            // once the api is found unreachable, the chunks not sent yet are not even tried
+            while (!apiUnreachable && next < chunks.size() && (inFlight.size() < concurrency.limit() || inFlight.isEmpty())) {
+                inFlight.add(post(url, basePayload, chunks.get(next++)));
             }
-
-            try {
-                String bodyStr = bodyJson.toString(4);
-                logger.debug("To Api:\n" + bodyStr);
-            } catch (JSONException ignored) {}
-
-            String result = HttpRequestUtil.doPost(url, headParamMap, bodyJson.toString());
-
-            if (result == null) {
-                failedEventsToBeSaved.addAll(currentBatch);
-                failedRequests += currentBatch.size();
-            } else {
-                try {
-                    JSONObject resultJson = new JSONObject(result);
-                    int code = resultJson.getInt("code");
-
-                    if (code == TTConst.ApiErrorCodes.API_ERROR.code) {
-                        failedEventsToBeDiscarded.addAll(currentBatch);
-                        failedRequests += currentBatch.size();
-                    }
-                    // some events made it while others not.
-                    else if (code == TTConst.ApiErrorCodes.PARTIAL_SUCCESS.code) {
-                        try {
-                            JSONArray partialFailedEvents = resultJson.getJSONObject("data").getJSONArray("failed_events");
-                            int length = partialFailedEvents.length();
-                            Set<Integer> failedIndices = new HashSet<>();
-                            for (int i = 0; i < length; i++) {
-                                JSONObject errorObj = partialFailedEvents.getJSONObject(i);
-                                failedIndices.add(errorObj.getInt("order_in_batch"));
-                            }
-                            int totalSize = currentBatch.size();
-                            for (int i = 0; i < totalSize; i++) {
-                                TTAppEvent curr = currentBatch.get(i);
-                                if (failedIndices.contains(i)) {
-                                    failedEventsToBeDiscarded.add(curr);
-                                    failedRequests += 1;
-                                } else {
-                                    successfullySentRequests.add(curr);
-                                    successfulRequests += 1;
-                                }
-                            }
-                        } catch (Exception e) {
-                            TTCrashHandler.handleCrash(TAG, e);
-                            failedEventsToBeSaved.addAll(currentBatch);
-                            failedRequests += currentBatch.size();
-                        }
-                    } else if (code != 0) {
-                        failedEventsToBeSaved.addAll(currentBatch);
-                        failedRequests += currentBatch.size();
-                    } else {
-                        successfulRequests += currentBatch.size();
-                        successfullySentRequests.addAll(currentBatch);
-                    }
-                } catch (JSONException e) {
-                    failedRequests += currentBatch.size();
-                    failedEventsToBeSaved.addAll(currentBatch);
-                    TTCrashHandler.handleCrash(TAG, e);
+            if (inFlight.isEmpty()) {
+                for (; next < chunks.size(); next++) {
+                    failedEventsToBeSaved.addAll(chunks.get(next));
+                    failedRequests += chunks.get(next).size();
                 }
-                logger.debug(TTUtil.ppStr(result));
+                break;
             }
-            notifyChange();
-
-//            long endTimeMS = System.currentTimeMillis();
-//            try {
-//                JSONObject endMeta = TTUtil.getMetaWithTS(endTimeMS)
-//                        .put("size", currentBatch.size())
-//                        .put("total", appEventList.size())
-//                        .put("log_id", HttpRequestUtil.getLogIDFromApi(result))
-//                        .put("latency", endTimeMS-initTimeMS)
-//                        .put("status_code", HttpRequestUtil.getCodeFromApi(result))
-//                        .put("success", result != null);
-//                TikTokBusinessSdk.getAppEventLogger().monitorMetric("track_api_end", endMeta, null);
-//            } catch (Exception ignored) {}
+            merge(inFlight.poll(), failedEventsToBeSaved, failedEventsToBeDiscarded);
+            if ((next < chunks.size() || !inFlight.isEmpty()) && !apiUnreachable) {
+                // merged next, while the bulk chunks already in flight go on
+                InFlight priority = postPriorityLane(url, basePayload, failedEventsToBeDiscarded);
+                if (priority != null) {
+                    inFlight.addFirst(priority);
+                }
+            }
+        }
+        if (apiUnreachable) {
+            backoff.onFailure(System.currentTimeMillis(), retryAfterMS);
+            logger.debug("The api is unreachable, %d failed uploads in a row", backoff.failures());
+        } else if (apiReached) {
+            backoff.onSuccess();
         }
         logger.debug("Flushed %d events successfully", successfulRequests);
 
@@ -263,6 +224,217 @@ class TTRequest {
         return failedEventsToBeSaved;
     }
 
+    /**
+     * Priority events tracked while a bulk backlog is being sent do not wait for the rest
+     * of the backlog, they jump ahead of the chunks not merged yet
+     *
+     * @return the chunk of priority events in flight, null if there are none
+     */
+    @Nullable
+    private static InFlight postPriorityLane(String url, JSONObject basePayload,
+                                             List<TTAppEvent> failedEventsToBeDiscarded) {
+        if (TTAppEventsQueue.prioritySize() == 0) {
+            return null;
+        }
+        List<TTAppEvent> priorityEvents = new ArrayList<>();
+        TTAppEventsQueue.drainPriorityTo(priorityEvents, MAX_EVENT_SIZE);
+        if (priorityEvents.isEmpty()) {
+            return null;
+        }
+        logger.debug("Send %d priority events ahead of the backlog", priorityEvents.size());
+        toBeSentRequests += priorityEvents.size();
+        for (TTAppEvent event : priorityEvents) {
+            allRequestIds.add(event.getUniqueId());
+        }
+        priorityEvents = validEvents(priorityEvents, failedEventsToBeDiscarded);
+        if (priorityEvents.isEmpty()) {
+            return null;
+        }
+        return post(url, basePayload, priorityEvents);
+    }
+
+    /**
+     * Events whose properties are not a json object would break the whole body, they are discarded
+     * before the chunks are built, so that the order_in_batch of the api matches the chunk
+     *
+     * @return the events which can be sent
+     */
+    private static List<TTAppEvent> validEvents(List<TTAppEvent> events, List<TTAppEvent> failedEventsToBeDiscarded) {
+        List<TTAppEvent> valid = new ArrayList<>(events.size());
+        for (TTAppEvent event : events) {
+            if (hasValidProperties(event)) {
+                valid.add(event);
+            } else {
+                TTCrashHandler.handleCrash(TAG, new JSONException("Invalid properties " + event.getPropertiesJson()));
+                failedEventsToBeDiscarded.add(event);
+                failedRequests += 1;
+            }
+        }
+        return valid;
+    }
+
+    private static boolean hasValidProperties(TTAppEvent event) {
+        String properties = event.getPropertiesJson();
+        if (properties == null) {
+            return true;
+        }
+        properties = properties.trim();
+        return properties.startsWith("{") && properties.endsWith("}");
+    }
+
+    /**
+     * A chunk handed to the uploadPool, the body is built on the calling thread,
+     * or written by the upload thread straight into the connection with gzip
+     */
+    private static class InFlight {
+        final List<TTAppEvent> events;
+        // null if the body could not be built
+        Future<TTApiResponse> result;
+        volatile long latencyMS;
+
+        InFlight(List<TTAppEvent> events) {
+            this.events = events;
+        }
+    }
+
+    private static InFlight post(String url, JSONObject basePayload, List<TTAppEvent> currentBatch) {
+        InFlight chunk = new InFlight(currentBatch);
+        final boolean gzip = TikTokBusinessSdk.isGzipEnabled();
+        final String body;
+        try {
+            // with gzip the body is only built to be logged
+            body = !gzip || logger.logLevel == TikTokBusinessSdk.LogLevel.DEBUG
+                    ? buildBatchBody(basePayload, currentBatch) : null;
+        } catch (Exception e) {
+            TTCrashHandler.handleCrash(TAG, e);
+            return chunk;
+        }
+
+        if (logger.logLevel == TikTokBusinessSdk.LogLevel.DEBUG) {
+            logger.debug("To Api:\n" + body);
+        }
+
+        FutureTask<TTApiResponse> task = new FutureTask<>(() -> {
+            long startMS = System.currentTimeMillis();
+            try {
+                if (gzip) {
+                    return HttpRequestUtil.doPostGzip(url, headParamMap, out -> writeBatchBody(out, basePayload, currentBatch));
+                }
+                return HttpRequestUtil.doPostResponse(url, headParamMap, body);
+            } finally {
+                chunk.latencyMS = System.currentTimeMillis() - startMS;
+            }
+        });
+        chunk.result = task;
+        try {
+            uploadPool.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+        return chunk;
+    }
+
+    /**
+     * Waits for the chunk and sorts its events into the successful, the saved and the discarded ones
+     */
+    private static void merge(InFlight chunk, List<TTAppEvent> failedEventsToBeSaved,
+                              List<TTAppEvent> failedEventsToBeDiscarded) {
+        List<TTAppEvent> currentBatch = chunk.events;
+        if (chunk.result == null) {
+            failedEventsToBeSaved.addAll(currentBatch);
+            failedRequests += currentBatch.size();
+            notifyChange();
+            return;
+        }
+        TTApiResponse result;
+        try {
+            result = chunk.result.get();
+        } catch (Exception e) {
+            TTCrashHandler.handleCrash(TAG, e);
+            result = null;
+        }
+        boolean unreachable = isUnreachable(result);
+        concurrency.onChunk(chunk.latencyMS, !unreachable);
+        if (unreachable) {
+            apiUnreachable = true;
+            if (result != null) {
+                retryAfterMS = Math.max(retryAfterMS, result.retryAfterMS);
+            }
+        } else {
+            apiReached = true;
+        }
+
+        if (result == null || result.code == TTApiResponse.NO_CODE) {
+            failedEventsToBeSaved.addAll(currentBatch);
+            failedRequests += currentBatch.size();
+        } else {
+            int code = result.code;
+            if (code == TTConst.ApiErrorCodes.API_ERROR.code) {
+                failedEventsToBeDiscarded.addAll(currentBatch);
+                failedRequests += currentBatch.size();
+            }
+            // some events made it while others not.
+            else if (code == TTConst.ApiErrorCodes.PARTIAL_SUCCESS.code) {
+                Set<Integer> failedIndices = result.failedIndices;
+                if (failedIndices == null) {
+                    TTCrashHandler.handleCrash(TAG, new JSONException("No failed_events in a partial success"));
+                    failedEventsToBeSaved.addAll(currentBatch);
+                    failedRequests += currentBatch.size();
+                } else {
+                    int totalSize = currentBatch.size();
+                    for (int i = 0; i < totalSize; i++) {
+                        TTAppEvent curr = currentBatch.get(i);
+                        if (failedIndices.contains(i)) {
+                            failedEventsToBeDiscarded.add(curr);
+                            failedRequests += 1;
+                        } else {
+                            successfullySentRequests.add(curr);
+                            successfulRequests += 1;
+                        }
+                    }
+                }
+            } else if (code != 0) {
+                failedEventsToBeSaved.addAll(currentBatch);
+                failedRequests += currentBatch.size();
+            } else {
+                successfulRequests += currentBatch.size();
+                successfullySentRequests.addAll(currentBatch);
+            }
+            logger.debug(result.toString());
+        }
+        notifyChange();
+
+//        long endTimeMS = System.currentTimeMillis();
+//        try {
+//            JSONObject endMeta = TTUtil.getMetaWithTS(endTimeMS)
+//                    .put("size", currentBatch.size())
+//                    .put("total", appEventList.size())
+//                    .put("log_id", HttpRequestUtil.getLogIDFromApi(result))
+//                    .put("latency", endTimeMS-initTimeMS)
+//                    .put("status_code", HttpRequestUtil.getCodeFromApi(result))
+//                    .put("success", result != null);
+//            TikTokBusinessSdk.getAppEventLogger().monitorMetric("track_api_end", endMeta, null);
+//        } catch (Exception ignored) {}
+    }
+
+    /**
+     * Whether the uploads should back off, see {@link TTUploadBackoff}: no answer at all, an http error
+     * such as 429 or 503, a body which is not the api's, or an error code other than the ones
+     * about the events themselves
+     */
+    static boolean isUnreachable(TTApiResponse result) {
+        if (result == null || result.code == TTApiResponse.NO_CODE) {
+            return true;
+        }
+        if (result.code == TTApiResponse.NO_RESPONSE) {
+            int status = result.httpStatus;
+            return status == 429 || status >= HttpURLConnection.HTTP_INTERNAL_ERROR || result.retryAfterMS >= 0;
+        }
+        return result.code != 0
+                && result.code != TTConst.ApiErrorCodes.API_ERROR.code
+                && result.code != TTConst.ApiErrorCodes.PARTIAL_SUCCESS.code;
+    }
+
     private static void notifyChange() {
         if (TikTokBusinessSdk.networkListener != null) {
             TikTokBusinessSdk.networkListener.onNetworkChange(toBeSentRequests, successfulRequests,
@@ -270,27 +442,74 @@ class TTRequest {
         }
     }
 
-    private static JSONObject transferJson(TTAppEvent event) {
-        if (event == null) {
-            return null;
-        }
+    /**
+     * The body is written as text, the properties of the events are spliced in as they were
+     * serialized at track time, no JSONObject is built or parsed per event
+     */
+    static String buildBatchBody(JSONObject basePayload, List<TTAppEvent> events) throws JSONException {
+        TTJsonWriter writer = new TTJsonWriter(256 + events.size() * 512);
+        writeBatchBody(writer, basePayload, events);
+        return writer.toString();
+    }
+
+    /**
+     * Same as {@link #buildBatchBody}, the text is passed on to out a few events at a time
+     */
+    static void writeBatchBody(Writer out, JSONObject basePayload, List<TTAppEvent> events) throws IOException {
+        TTJsonWriter writer = new TTJsonWriter(out);
         try {
-            JSONObject propertiesJson = new JSONObject();
-            propertiesJson.put("type", event.getType());
-            if (event.getEventName() != null) {
-                propertiesJson.put("event", event.getEventName());
-            }
-            propertiesJson.put("timestamp", TimeUtil.getISO8601Timestamp(event.getTimeStamp()));
-            JSONObject properties = new JSONObject(event.getPropertiesJson());
-            if (properties.length() != 0) {
-                propertiesJson.put("properties", properties);
-            }
-            propertiesJson.put("context", TTRequestBuilder.getContextForApi(event));
-            return propertiesJson;
+            writeBatchBody(writer, basePayload, events);
         } catch (JSONException e) {
-            TTCrashHandler.handleCrash(TAG, e);
-            return null;
+            throw new IOException(e);
+        }
+        writer.flush();
+    }
+
+    private static void writeBatchBody(TTJsonWriter writer, JSONObject basePayload, List<TTAppEvent> events) throws JSONException {
+        writer.beginObject();
+        writer.rawMembers(basePayload.toString());
+        writer.name("batch").beginArray();
+        for (TTAppEvent event : events) {
+            writeEvent(writer, event);
+        }
+        writer.endArray();
+        writer.endObject();
+    }
+
+    private static void writeEvent(TTJsonWriter writer, TTAppEvent event) throws JSONException {
+        // the events with invalid properties never reach a chunk, see validEvents, so the
+        // order_in_batch of the api is the index of the event in its chunk
+        String properties = event.getPropertiesJson();
+        if (properties != null) {
+            properties = properties.trim();
+        }
+        writer.beginObject();
+        writer.name("type").value(event.getType());
+        if (event.getEventName() != null) {
+            writer.name("event").value(event.getEventName());
+        }
+        writer.name("timestamp").value(TimeUtil.getISO8601Timestamp(event.getTimeStamp()));
+        if (event.getCount() > 1) {
+            writer.name("count").value(event.getCount());
+            writer.name("last_timestamp").value(TimeUtil.getISO8601Timestamp(event.getLastTimeStamp()));
+        }
+        if (event.getSampleWeight() != 1) {
+            writer.name("sample_weight").value(event.getSampleWeight());
+        }
+        if (properties != null && !isEmptyObject(properties)) {
+            writer.name("properties").rawValue(properties);
+        }
+        writer.name("context").rawValue(TTRequestBuilder.getContextJsonForApi(event));
+        writer.endObject();
+    }
+
+    private static boolean isEmptyObject(String json) {
+        for (int i = 1; i < json.length() - 1; i++) {
+            if (!Character.isWhitespace(json.charAt(i))) {
+                return false;
+            }
         }
+        return true;
     }
 
     /**
@@ -313,8 +532,8 @@ class TTRequest {
         return result;
     }
 
-    public static String reportMonitorEvent(JSONObject stat) {
+    public static TTApiResponse reportMonitorEvent(JSONObject stat) {
         String url = "https://" + TikTokBusinessSdk.getApiTrackDomain() + "/open_api/" + TikTokBusinessSdk.getApiAvailableVersion() + "/app/monitor/";
-        return HttpRequestUtil.doPost(url, headParamMap, stat.toString());
+        return HttpRequestUtil.doPostResponse(url, headParamMap, stat.toString());
     }
 }
\ No newline at end of file
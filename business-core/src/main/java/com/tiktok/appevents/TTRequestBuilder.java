@@ -76,11 +76,31 @@ class TTRequestBuilder {
         return contextForApiCache;
     }
 
-    public static JSONObject getContextForApi(TTAppEvent event) throws JSONException {
-        JSONObject immutablePart = getImmutableContextForApi();
-        JSONObject finalObj = new JSONObject(immutablePart.toString());
-        finalObj.put("user", event.getUserInfo().toJsonObject());
-        return finalObj;
+    // the immutable context as text without its closing brace
+    private static String contextForApiPrefixCache = null;
+    // events tracked with the same user info share a snapshot, so the user part is reused
+    private static TTUserInfo lastUserInfo = null;
+    private static String lastUserJson = null;
+
+    /**
+     * @return the context of the event as json text, the user is the only part that changes
+     */
+    public static synchronized String getContextJsonForApi(TTAppEvent event) throws JSONException {
+        if (contextForApiPrefixCache == null) {
+            String immutablePart = getImmutableContextForApi().toString();
+            contextForApiPrefixCache = immutablePart.substring(0, immutablePart.lastIndexOf('}'));
+        }
+        TTUserInfo userInfo = event.getUserInfo();
+        if (userInfo != lastUserInfo || lastUserJson == null) {
+            lastUserJson = userInfo.toJsonObject().toString();
+            lastUserInfo = userInfo;
+        }
+        StringBuilder sb = new StringBuilder(contextForApiPrefixCache.length() + lastUserJson.length() + 10);
+        sb.append(contextForApiPrefixCache);
+        if (contextForApiPrefixCache.length() > 1) {
+            sb.append(',');
+        }
+        return sb.append("\"user\":").append(lastUserJson).append('}').toString();
     }
 
     private static Locale getCurrentLocale() {
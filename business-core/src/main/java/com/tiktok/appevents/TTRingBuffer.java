@@ -0,0 +1,229 @@
+/*******************************************************************************
+ * Copyright (c) 2020. Bytedance Inc.
+ *
+ * This source code is licensed under the MIT license found in the LICENSE file in the root directory of this source tree.
+ ******************************************************************************/
+
+package com.tiktok.appevents;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded, lock-free, multi-producer/single-consumer ring buffer.
+ * <p>
+ * Every slot carries a sequence number, a producer claims a slot by CAS-ing the tail cursor
+ * and publishes it by advancing the slot sequence, so producers never block each other nor
+ * the consumer. Consumers are serialized by a lock that producers never touch, which means a
+ * flush draining the buffer does not contend with the threads tracking events.
+ *
+ * @param <T> element type
+ */
+class TTRingBuffer<T> {
+
+    interface Consumer<T> {
+        void accept(T t);
+    }
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<T> buffer;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong(0);
+    // only written by the consumer holding consumerLock
+    private volatile long head = 0;
+    private final ReentrantLock consumerLock = new ReentrantLock();
+
+    /**
+     * @param capacity rounded up to the next power of two
+     */
+    TTRingBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        }
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        this.buffer = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Safe to call from any thread
+     *
+     * @return false if the buffer is full
+     */
+    boolean offer(T element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+        long pos = tail.get();
+        int index;
+        while (true) {
+            index = (int) (pos & mask);
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                // the consumer has not released this slot yet
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+        buffer.set(index, element);
+        sequences.lazySet(index, pos + 1);
+        return true;
+    }
+
+    /**
+     * Reserves a run of slots with a single CAS and publishes elements from, from + 1, ... into it,
+     * as many as there is room for. Safe to call from any thread.
+     *
+     * @return how many elements were published, the rest did not fit
+     */
+    int offerAll(List<? extends T> elements, int from) {
+        int remaining = elements.size() - from;
+        if (remaining <= 0) {
+            return 0;
+        }
+        long pos;
+        int count;
+        while (true) {
+            pos = tail.get();
+            // the consumer releases the slots in order, so everything below head + capacity is free
+            long free = head + capacity - pos;
+            if (free <= 0) {
+                return 0;
+            }
+            count = (int) Math.min(remaining, free);
+            if (tail.compareAndSet(pos, pos + count)) {
+                break;
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            T element = elements.get(from + i);
+            if (element == null) {
+                throw new NullPointerException();
+            }
+            int index = (int) ((pos + i) & mask);
+            buffer.set(index, element);
+            sequences.lazySet(index, pos + i + 1);
+        }
+        return count;
+    }
+
+    /**
+     * @return the oldest published element, or null if there is none
+     */
+    T poll() {
+        consumerLock.lock();
+        try {
+            return pollLocked();
+        } finally {
+            consumerLock.unlock();
+        }
+    }
+
+    private T pollLocked() {
+        long pos = head;
+        int index = (int) (pos & mask);
+        if (sequences.get(index) != pos + 1) {
+            // empty, or the producer that claimed this slot has not published yet
+            return null;
+        }
+        T element = buffer.get(index);
+        buffer.lazySet(index, null);
+        sequences.lazySet(index, pos + capacity);
+        head = pos + 1;
+        return element;
+    }
+
+    /**
+     * Hands at most max elements to the consumer in FIFO order without any intermediate copy
+     *
+     * @return how many elements were drained
+     */
+    int drain(Consumer<? super T> consumer, int max) {
+        consumerLock.lock();
+        try {
+            int drained = 0;
+            T element;
+            while (drained < max && (element = pollLocked()) != null) {
+                consumer.accept(element);
+                drained++;
+            }
+            return drained;
+        } finally {
+            consumerLock.unlock();
+        }
+    }
+
+    /**
+     * Same as {@link #drain}, but gives up instead of waiting when another consumer is draining,
+     * for a thread that must not block
+     *
+     * @return how many elements were drained, 0 if the lock was taken
+     */
+    int tryDrain(Consumer<? super T> consumer, int max) {
+        if (!consumerLock.tryLock()) {
+            return 0;
+        }
+        try {
+            int drained = 0;
+            T element;
+            while (drained < max && (element = pollLocked()) != null) {
+                consumer.accept(element);
+                drained++;
+            }
+            return drained;
+        } finally {
+            consumerLock.unlock();
+        }
+    }
+
+    int drainTo(Collection<? super T> target, int max) {
+        return drain(target::add, max);
+    }
+
+    void clear() {
+        consumerLock.lock();
+        try {
+            while (pollLocked() != null) ;
+        } finally {
+            consumerLock.unlock();
+        }
+    }
+
+    /**
+     * An approximation when producers are active, claimed but unpublished slots are counted
+     */
+    int size() {
+        long size = tail.get() - head;
+        if (size < 0) {
+            return 0;
+        }
+        return (int) Math.min(size, capacity);
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+}
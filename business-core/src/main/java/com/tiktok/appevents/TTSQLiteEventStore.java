@@ -0,0 +1,255 @@
+/*******************************************************************************
+ * Copyright (c) 2020. Bytedance Inc.
+ *
+ * This source code is licensed under the MIT license found in the LICENSE file in the root directory of this source tree.
+ ******************************************************************************/
+
+package com.tiktok.appevents;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The SQLite engine of {@link TTEventStore}, for apps that already ship SQLite.
+ * <p>
+ * Both lanes share one table, each event is a row holding the event encoded by {@link TTEventCodec}.
+ * The rows are keyed by an id which only grows, and a lane is read in the order the events
+ * were appended. The unique_id of the events is not a key: each process starts its counter at the
+ * time it starts, the ids of the handed over events or of an earlier run may be the same as the
+ * ones stored already. Inserts and deletes are batched in one transaction each, which is also what
+ * makes them durable. The batches of {@link TTDiskRetention} are runs of {@link #BATCH_ROWS} rows
+ * in the order they were inserted.
+ */
+class TTSQLiteEventStore implements TTEventStore {
+    private static final String TAG = TTSQLiteEventStore.class.getCanonicalName();
+
+    static final String DATABASE_NAME = "tt_events.db";
+    private static final int DATABASE_VERSION = 1;
+    private static final String TABLE = "events";
+    static final int BATCH_ROWS = 100;
+
+    private static class Helper extends SQLiteOpenHelper {
+        Helper(Context context) {
+            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            // AUTOINCREMENT so that the id of a deleted row is never used again by a window being uploaded
+            db.execSQL("CREATE TABLE " + TABLE + " ("
+                    + "id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                    + "priority INTEGER NOT NULL, "
+                    + "unique_id INTEGER, "
+                    + "timestamp INTEGER NOT NULL, "
+                    + "payload BLOB NOT NULL)");
+            db.execSQL("CREATE INDEX " + TABLE + "_lane ON " + TABLE + " (priority, id)");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        }
+    }
+
+    private static class Window extends TTEventStore.Window {
+        private final long[] ids;
+
+        private Window(List<TTAppEvent> events, long[] ids) {
+            super(events);
+            this.ids = ids;
+        }
+    }
+
+    /**
+     * Opens the database shared by the lanes, creating it on first use
+     */
+    static SQLiteDatabase open(Context context) {
+        return new Helper(context).getWritableDatabase();
+    }
+
+    /**
+     * @return whether the database has ever been created, so that its events can be moved to another engine
+     */
+    static boolean exists(Context context) {
+        return context.getDatabasePath(DATABASE_NAME).exists();
+    }
+
+    private final SQLiteDatabase db;
+    private final boolean priority;
+    private final String[] laneArgs;
+    // compiled once, used under the lock of the store
+    private final SQLiteStatement insert;
+    private final SQLiteStatement delete;
+    private final SQLiteStatement count;
+    // the last window read, until it is committed its batches are not evicted, see TTDiskRetention
+    private Window inFlight;
+
+    /**
+     * @param priority whether the store holds the priority lane, see {@link TTAppEvent#isPriority()}
+     */
+    TTSQLiteEventStore(SQLiteDatabase db, boolean priority) {
+        this.db = db;
+        this.priority = priority;
+        this.laneArgs = new String[]{lane()};
+        insert = db.compileStatement("INSERT INTO " + TABLE
+                + " (priority, unique_id, timestamp, payload) VALUES (" + lane() + ", ?, ?, ?)");
+        delete = db.compileStatement("DELETE FROM " + TABLE + " WHERE priority = " + lane() + " AND id = ?");
+        count = db.compileStatement("SELECT COUNT(*) FROM " + TABLE + " WHERE priority = " + lane());
+    }
+
+    private String lane() {
+        return priority ? "1" : "0";
+    }
+
+    @Override
+    public synchronized int size() {
+        return (int) count.simpleQueryForLong();
+    }
+
+    @Override
+    public synchronized boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public synchronized void append(List<TTAppEvent> events) throws IOException {
+        if (events == null || events.isEmpty()) {
+            return;
+        }
+        db.beginTransaction();
+        try {
+            for (TTAppEvent event : events) {
+                long timestamp = event.getTimeStamp().getTime();
+                Long uniqueId = event.getUniqueId();
+                if (uniqueId != null) {
+                    insert.bindLong(1, uniqueId);
+                } else {
+                    insert.bindNull(1);
+                }
+                insert.bindLong(2, timestamp);
+                // a fresh encoder per row, the rows are read in any number and order
+                insert.bindBlob(3, new TTEventCodec.Encoder().encode(event));
+                insert.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } catch (RuntimeException e) {
+            throw new IOException(e);
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @Override
+    public synchronized TTEventStore.Window read(int maxEvents) {
+        List<TTAppEvent> events = new ArrayList<>(Math.max(Math.min(maxEvents, 1024), 0));
+        long[] ids = new long[0];
+        if (maxEvents <= 0) {
+            return new Window(events, ids);
+        }
+        List<Long> corrupted = new ArrayList<>();
+        Cursor cursor = db.rawQuery("SELECT id, payload FROM " + TABLE
+                + " WHERE priority = ? ORDER BY id LIMIT " + maxEvents, laneArgs);
+        try {
+            ids = new long[cursor.getCount()];
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(0);
+                try {
+                    events.add(new TTEventCodec.Decoder().decode(cursor.getBlob(1)));
+                    ids[events.size() - 1] = id;
+                } catch (IOException e) {
+                    corrupted.add(id);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        if (!corrupted.isEmpty()) {
+            TTCrashHandler.handleCrash(TAG, new IOException("Dropped " + corrupted.size() + " unreadable events"));
+            deleteIds(corrupted);
+        }
+        inFlight = new Window(events, ids);
+        return inFlight;
+    }
+
+    @Override
+    public synchronized void commit(TTEventStore.Window read, int acked) {
+        if (read == inFlight) {
+            inFlight = null;
+        }
+        if (!(read instanceof Window) || acked <= 0) {
+            return;
+        }
+        Window window = (Window) read;
+        acked = Math.min(acked, window.events.size());
+        List<Long> ids = new ArrayList<>(acked);
+        for (int i = 0; i < acked; i++) {
+            ids.add(window.ids[i]);
+        }
+        deleteIds(ids);
+    }
+
+    private void deleteIds(List<Long> ids) {
+        db.beginTransaction();
+        try {
+            for (Long id : ids) {
+                delete.bindLong(1, id);
+                delete.executeUpdateDelete();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    @Override
+    public synchronized List<SegmentInfo> segments() {
+        List<SegmentInfo> infos = new ArrayList<>();
+        Set<Long> inFlightBatches = new HashSet<>();
+        if (inFlight != null) {
+            for (int i = 0; i < inFlight.events.size(); i++) {
+                inFlightBatches.add(inFlight.ids[i] / BATCH_ROWS);
+            }
+        }
+        Cursor cursor = db.rawQuery("SELECT id / " + BATCH_ROWS + " AS batch, COUNT(*), SUM(LENGTH(payload)),"
+                + " MIN(timestamp), MAX(timestamp) FROM " + TABLE
+                + " WHERE priority = ? GROUP BY batch ORDER BY batch", laneArgs);
+        try {
+            while (cursor.moveToNext()) {
+                long batch = cursor.getLong(0);
+                infos.add(new SegmentInfo(this, batch, priority, cursor.getInt(1),
+                        cursor.getLong(2), cursor.getLong(3), cursor.getLong(4), inFlightBatches.contains(batch)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return infos;
+    }
+
+    @Override
+    public synchronized int evict(long seq) {
+        // a range of ids, so that the (priority, id) index is used
+        return db.delete(TABLE, "priority = ? AND id >= ? AND id < ?",
+                new String[]{lane(), String.valueOf(seq * BATCH_ROWS), String.valueOf((seq + 1) * BATCH_ROWS)});
+    }
+
+    /**
+     * Nothing to do, a transaction is synced when it commits
+     */
+    @Override
+    public void sync() {
+    }
+
+    @Override
+    public synchronized void clear() {
+        inFlight = null;
+        db.delete(TABLE, "priority = ?", laneArgs);
+    }
+}
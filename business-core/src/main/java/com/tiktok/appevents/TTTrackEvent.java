@@ -0,0 +1,51 @@
+/*******************************************************************************
+ * Copyright (c) 2020. Bytedance Inc.
+ *
+ * This source code is licensed under the MIT license found in the LICENSE file in the root directory of this source tree.
+ ******************************************************************************/
+
+package com.tiktok.appevents;
+
+import androidx.annotation.Nullable;
+
+import org.json.JSONObject;
+
+/**
+ * One event of a group tracked with {@link com.tiktok.TikTokBusinessSdk#trackEvents(java.util.Collection)}
+ */
+public class TTTrackEvent {
+    private final String eventName;
+    private final JSONObject properties;
+    private final long timestampMS;
+
+    public TTTrackEvent(String eventName) {
+        this(eventName, null, 0);
+    }
+
+    public TTTrackEvent(String eventName, @Nullable JSONObject properties) {
+        this(eventName, properties, 0);
+    }
+
+    /**
+     * @param timestampMS when the event happened, e.g. for events replayed from an offline journal,
+     *                    0 means when the group is tracked
+     */
+    public TTTrackEvent(String eventName, @Nullable JSONObject properties, long timestampMS) {
+        this.eventName = eventName;
+        this.properties = properties;
+        this.timestampMS = timestampMS;
+    }
+
+    public String getEventName() {
+        return eventName;
+    }
+
+    @Nullable
+    public JSONObject getProperties() {
+        return properties;
+    }
+
+    public long getTimestampMS() {
+        return timestampMS;
+    }
+}
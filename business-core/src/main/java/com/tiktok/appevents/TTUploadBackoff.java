@@ -0,0 +1,140 @@
+/*******************************************************************************
+ * Copyright (c) 2020. Bytedance Inc.
+ *
+ * This source code is licensed under the MIT license found in the LICENSE file in the root directory of this source tree.
+ ******************************************************************************/
+
+package com.tiktok.appevents;
+
+import com.tiktok.util.TTKeyValueStore;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import static com.tiktok.util.TTConst.TTSDK_UPLOAD_FAILURES;
+import static com.tiktok.util.TTConst.TTSDK_UPLOAD_RETRY_AT;
+
+/**
+ * Backs the uploads off while the batch api is unreachable, see {@link TTRequest#reportAppEvent}.
+ * <p>
+ * Every flush which could not reach the api doubles the wait before the next attempt, from
+ * {@link #BASE_DELAY_MS} up to {@link #MAX_DELAY_MS}, with up to half of it taken off at random so that
+ * the apps coming back online do not retry all at once. A Retry-After of the api is waited for
+ * at least. Until the wait is over no flush but a forced one reads the disk or tries the network,
+ * whatever triggered it, see {@link #isWaiting}, then the next flush is let through as a probe.
+ * After {@link #FAILURE_THRESHOLD} failed flushes in a row, or when the api asks to retry later,
+ * the circuit opens. A flush which reaches the api closes it.
+ * <p>
+ * The state is kept in the {@link TTKeyValueStore}, an app crashing at start up does not try
+ * again any sooner than it would have without the crash.
+ */
+class TTUploadBackoff {
+    static final long BASE_DELAY_MS = 5_000;
+    static final long MAX_DELAY_MS = 10 * 60_000;
+    // a Retry-After longer than this is not believed
+    static final long MAX_RETRY_AFTER_MS = 60 * 60_000;
+    static final int FAILURE_THRESHOLD = 3;
+
+    private final Random random;
+
+    // guarded by this
+    private int failures = 0;
+    private boolean open = false;
+    private long retryAtMS = 0;
+    private TTKeyValueStore store;
+
+    TTUploadBackoff(Random random) {
+        this.random = random;
+    }
+
+    /**
+     * Restores the state of the last run, a wait which is not over yet keeps the circuit open, even
+     * below the threshold, so that a restart is no way around it. The wait is kept within the limits
+     * in case the clock changed.
+     */
+    synchronized void load(TTKeyValueStore store, long nowMS) {
+        this.store = store;
+        try {
+            String failures = store.get(TTSDK_UPLOAD_FAILURES);
+            String retryAt = store.get(TTSDK_UPLOAD_RETRY_AT);
+            if (failures != null && retryAt != null) {
+                restore(Integer.parseInt(failures), Long.parseLong(retryAt), nowMS);
+            }
+        } catch (NumberFormatException e) {
+            TTCrashHandler.handleCrash(TTUploadBackoff.class.getCanonicalName(), e);
+        }
+    }
+
+    synchronized void restore(int failures, long retryAtMS, long nowMS) {
+        this.failures = Math.max(failures, 0);
+        this.retryAtMS = Math.min(retryAtMS, nowMS + MAX_RETRY_AFTER_MS);
+        this.open = this.failures > 0 && this.retryAtMS > nowMS;
+    }
+
+    /**
+     * @return whether the api is taken as down for now
+     */
+    synchronized boolean isOpen(long nowMS) {
+        return open && nowMS < retryAtMS;
+    }
+
+    /**
+     * @return whether the flushes stay off the network and the disk for now, below the threshold too
+     */
+    synchronized boolean isWaiting(long nowMS) {
+        return remainingMS(nowMS) > 0;
+    }
+
+    /**
+     * @return how long the next timer flush should wait at least, 0 once the api has been reached
+     */
+    synchronized long remainingMS(long nowMS) {
+        return failures == 0 && !open ? 0 : Math.max(retryAtMS - nowMS, 0);
+    }
+
+    synchronized int failures() {
+        return failures;
+    }
+
+    /**
+     * A flush reached the api, whatever it answered
+     */
+    synchronized void onSuccess() {
+        if (failures == 0 && !open) {
+            return;
+        }
+        failures = 0;
+        open = false;
+        retryAtMS = 0;
+        save();
+    }
+
+    /**
+     * A flush could not reach the api, or the api could not take the events
+     *
+     * @param retryAfterMS what the api asked for, negative if nothing
+     */
+    synchronized void onFailure(long nowMS, long retryAfterMS) {
+        failures++;
+        long delay = BASE_DELAY_MS << Math.min(failures - 1, 20);
+        delay = Math.min(delay, MAX_DELAY_MS);
+        // equal jitter, between half of the delay and the delay
+        delay = delay / 2 + (long) (random.nextDouble() * (delay / 2));
+        if (retryAfterMS >= 0) {
+            delay = Math.max(delay, Math.min(retryAfterMS, MAX_RETRY_AFTER_MS));
+        }
+        retryAtMS = nowMS + delay;
+        open = failures >= FAILURE_THRESHOLD || retryAfterMS >= 0;
+        save();
+    }
+
+    private void save() {
+        if (store == null) {
+            return;
+        }
+        HashMap<String, Object> data = new HashMap<>();
+        data.put(TTSDK_UPLOAD_FAILURES, failures);
+        data.put(TTSDK_UPLOAD_RETRY_AT, retryAtMS);
+        store.set(data);
+    }
+}
@@ -0,0 +1,51 @@
+/*******************************************************************************
+ * Copyright (c) 2020. Bytedance Inc.
+ *
+ * This source code is licensed under the MIT license found in the LICENSE file in the root directory of this source tree.
+ ******************************************************************************/
+
+package com.tiktok.appevents;
+
+/**
+ * How many chunks of a flush {@link TTRequest#reportAppEvent} keeps in flight.
+ * <p>
+ * Additive increase, multiplicative decrease: the limit goes up by one once a full limit of chunks
+ * has been sent without error at the usual latency, it is halved by a failed chunk, and it goes down
+ * by one when a chunk takes much longer than the fastest one seen, which means the requests are
+ * queueing up somewhere instead of overlapping.
+ */
+class TTUploadConcurrency {
+    static final int MIN_LIMIT = 1;
+    static final int MAX_LIMIT = 4;
+    static final int INITIAL_LIMIT = 2;
+    // a chunk slower than twice the fastest one, plus this, counts as congestion
+    static final long LATENCY_SLACK_MS = 200;
+
+    private int limit = INITIAL_LIMIT;
+    private int successes = 0;
+    private long minLatencyMS = Long.MAX_VALUE;
+
+    synchronized int limit() {
+        return limit;
+    }
+
+    synchronized void onChunk(long latencyMS, boolean success) {
+        if (!success) {
+            limit = Math.max(MIN_LIMIT, limit / 2);
+            successes = 0;
+            return;
+        }
+        boolean congested = minLatencyMS != Long.MAX_VALUE && latencyMS > 2 * minLatencyMS + LATENCY_SLACK_MS;
+        // the fastest one is slowly forgotten, the network may have changed since
+        minLatencyMS = minLatencyMS == Long.MAX_VALUE ? latencyMS : Math.min(latencyMS, minLatencyMS + minLatencyMS / 8 + 1);
+        if (congested) {
+            limit = Math.max(MIN_LIMIT, limit - 1);
+            successes = 0;
+            return;
+        }
+        if (++successes >= limit) {
+            limit = Math.min(MAX_LIMIT, limit + 1);
+            successes = 0;
+        }
+    }
+}
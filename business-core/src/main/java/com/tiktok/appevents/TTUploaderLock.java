@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * Copyright (c) 2020. Bytedance Inc.
+ *
+ * This source code is licensed under the MIT license found in the LICENSE file in the root directory of this source tree.
+ ******************************************************************************/
+
+package com.tiktok.appevents;
+
+import android.content.Context;
+
+import com.tiktok.TikTokBusinessSdk;
+import com.tiktok.util.TTLogger;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+
+/**
+ * Elects one process of the app as the uploader, when the sdk is initialized in several processes.
+ * <p>
+ * The first process which asks, whichever it is, e.g. a short lived push process, becomes the uploader
+ * and holds a lock on a file next to the event logs for as long as it lives. The lock is never
+ * released by the sdk, the logs it opened may not be shared, the system releases it when the process
+ * dies. The other processes try again each time they ask, the first one asking afterwards takes it over.
+ * <p>
+ * Only the uploader opens the logs of {@link TTAppEventStorage} and sends events, the other processes
+ * hand their events over through files of their own, see {@link TTAppEventStorage#persist}. The uploader
+ * watches these files and arms a flush for them even when it tracks nothing itself.
+ */
+class TTUploaderLock {
+    private static final String TAG = TTUploaderLock.class.getCanonicalName();
+    private static final TTLogger logger = new TTLogger(TAG, TikTokBusinessSdk.getLogLevel());
+
+    private static final String LOCK_FILE = "uploader.lock";
+
+    // held until the process dies, never released
+    private static FileLock lock;
+
+    private TTUploaderLock() {
+    }
+
+    /**
+     * Cheap once the lock is held, otherwise tries to take it without waiting
+     *
+     * @return whether this process is the uploader
+     */
+    static synchronized boolean isUploader() {
+        if (lock != null) {
+            return true;
+        }
+        FileChannel channel = null;
+        try {
+            Context context = TikTokBusinessSdk.getApplicationContext();
+            File root = new File(context.getFilesDir(), TTAppEventStorage.EVENT_LOG_DIR);
+            if (!root.exists()) {
+                root.mkdirs();
+            }
+            channel = new RandomAccessFile(new File(root, LOCK_FILE), "rw").getChannel();
+            FileLock acquired = channel.tryLock();
+            if (acquired == null) {
+                channel.close();
+                return false;
+            }
+            lock = acquired;
+            logger.debug("This process uploads the events of the app");
+            return true;
+        } catch (Exception e) {
+            // files cannot be locked here, the process goes on as if it were the only one
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (Exception ignored) {
+            }
+            return true;
+        }
+    }
+}
@@ -26,6 +26,9 @@ public class TTUserInfo implements Cloneable, Serializable {
 
     public static volatile TTUserInfo sharedInstance = new TTUserInfo();
 
+    // immutable copy of sharedInstance shared by all the events tracked until the user info changes
+    private static volatile TTUserInfo snapshot = null;
+
     // clear the previous userInfo, useful when logging out
     public static void reset(Context context, boolean forceGenerateAnoId) {
         sharedInstance.anonymousId = TTUtil.getOrGenAnoId(context, forceGenerateAnoId);
@@ -34,6 +37,30 @@ public class TTUserInfo implements Cloneable, Serializable {
         sharedInstance.phoneNumber = null;
         sharedInstance.email = null;
         sharedInstance.isIdentified = false;
+        invalidateSnapshot();
+    }
+
+    /**
+     * Instead of cloning the user info for every single event, the clone is cached
+     * and only renewed after the user info changes. The returned object must not be modified.
+     */
+    static TTUserInfo snapshot() {
+        TTUserInfo current = snapshot;
+        if (current != null) {
+            return current;
+        }
+        synchronized (TTUserInfo.class) {
+            if (snapshot == null) {
+                snapshot = sharedInstance.clone();
+            }
+            return snapshot;
+        }
+    }
+
+    private static void invalidateSnapshot() {
+        synchronized (TTUserInfo.class) {
+            snapshot = null;
+        }
     }
 
     private String toSha256(String str) {
@@ -64,18 +91,22 @@ public class TTUserInfo implements Cloneable, Serializable {
 
     public void setExternalId(String externalId) {
         this.externalId = toSha256(externalId);
+        invalidateSnapshot();
     }
 
     public void setExternalUserName(String externalUserName) {
         this.externalUserName = toSha256(externalUserName);
+        invalidateSnapshot();
     }
 
     public void setPhoneNumber(String phoneNumber) {
         this.phoneNumber = toSha256(phoneNumber);
+        invalidateSnapshot();
     }
 
     public void setEmail(String email) {
         this.email = toSha256(email);
+        invalidateSnapshot();
     }
 
     public JSONObject toJsonObject() {
@@ -15,11 +15,15 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
 import javax.net.ssl.HttpsURLConnection;
 
@@ -43,15 +47,46 @@ public class HttpRequestUtil {
         }
     }
 
+    /**
+     * Writes a request body as text, may be called again for the same request, e.g. after a redirect
+     */
+    public interface BodyWriter {
+        void writeTo(Writer out) throws IOException;
+    }
+
     private static final String TAG = HttpRequestUtil.class.getCanonicalName();
+    private static final int GZIP_BUFFER_BYTES = 8 * 1024;
 
+    /**
+     * @deprecated the body as text, null unless the answer is HTTP_OK, use
+     * {@link #doGetResponse(String, Map)} instead. The request goes through the transport too.
+     */
+    @Deprecated
     public static String doGet(String url, Map<String, String> headerParamMap) {
-        HttpRequestOptions options = new HttpRequestOptions();
-        options.connectTimeout = 2000;
-        options.readTimeout = 5000;
-        return doGet(url, headerParamMap, options);
+        return doGet(url, headerParamMap, new HttpRequestOptions());
+    }
+
+    /**
+     * @deprecated use {@link #doGetResponse(String, Map, HttpRequestOptions)} instead
+     */
+    @Deprecated
+    public static String doGet(String url, Map<String, String> headerParamMap, HttpRequestOptions options) {
+        StringBuilder text = new StringBuilder();
+        return bodyText(send("GET", url, headerParamMap, options, -1, null, false, text), text);
     }
 
+    /**
+     * The timeouts are the ones of the transport, see {@link TTHttpTransport}
+     */
+    public static TTApiResponse doGetResponse(String url, Map<String, String> headerParamMap) {
+        return doGetResponse(url, headerParamMap, new HttpRequestOptions());
+    }
+
+    /**
+     * @deprecated requests go through {@link TikTokBusinessSdk#getTransport()}, this opens a
+     * connection of its own, it is not used by the sdk any more
+     */
+    @Deprecated
     public static HttpsURLConnection connect(String url, Map<String, String> headerParamMap, HttpRequestOptions options, String method, String contentLength) {
         HttpsURLConnection connection = null;
 
@@ -98,68 +133,85 @@ public class HttpRequestUtil {
         return false;
     }
 
-    public static String doGet(String url, Map<String, String> headerParamMap, HttpRequestOptions options) {
-        long initTimeMS = System.currentTimeMillis();
-        String result = null;
-        int responseCode = 0;
-        String apiType = "";
-        try {
-            URL uri = new URL(url);
-            if (uri.getPath().contains(TikTokBusinessSdk.getApiAvailableVersion())) {
-                apiType = uri.getPath().split(TikTokBusinessSdk.getApiAvailableVersion())[1];
-            } else {
-                apiType = uri.getPath().split("open_api")[1];
-            }
-        } catch (MalformedURLException ignored) {}
-        HttpsURLConnection connection = connect(url, headerParamMap, options, "GET", null);
-        if (connection == null) return result;
-        try{
-            boolean redirect = shouldRedirect(connection.getResponseCode());
-            if (redirect) {
-                String redirectUrl = connection.getHeaderField("Location");
-                connection.disconnect();
-                connection = connect(redirectUrl, headerParamMap, options, "GET", null);
-            }
+    public static TTApiResponse doGetResponse(String url, Map<String, String> headerParamMap, HttpRequestOptions options) {
+        // the configs are the data of the response
+        return send("GET", url, headerParamMap, options, -1, null, true, null);
+    }
 
-            responseCode = connection.getResponseCode();
-            if (responseCode == HttpURLConnection.HTTP_OK) {
-                result = streamToString(connection.getInputStream());
-            }
+    /**
+     * @deprecated the body as text, null unless the answer is HTTP_OK, use
+     * {@link #doPostResponse(String, Map, String)} instead. The request goes through the transport too.
+     */
+    @Deprecated
+    public static String doPost(String url, Map<String, String> headerParamMap, String jsonStr) {
+        return doPost(url, headerParamMap, jsonStr, new HttpRequestOptions());
+    }
+
+    /**
+     * @deprecated use {@link #doPostResponse(String, Map, String, HttpRequestOptions)} instead
+     */
+    @Deprecated
+    public static String doPost(String url, Map<String, String> headerParamMap, String jsonStr, HttpRequestOptions options) {
+        StringBuilder text = new StringBuilder();
+        return bodyText(post(url, headerParamMap, jsonStr, options, text), text);
+    }
+
+    public static TTApiResponse doPostResponse(String url, Map<String, String> headerParamMap, String jsonStr) {
+        return doPostResponse(url, headerParamMap, jsonStr, new HttpRequestOptions());
+    }
+
+    public static TTApiResponse doPostResponse(String url, Map<String, String> headerParamMap, String jsonStr, HttpRequestOptions options) {
+        return post(url, headerParamMap, jsonStr, options, null);
+    }
+
+    private static TTApiResponse post(String url, Map<String, String> headerParamMap, String jsonStr,
+                                      HttpRequestOptions options, @Nullable StringBuilder text) {
+        final byte[] writeBytes;
+        try {
+            writeBytes = jsonStr.getBytes("UTF-8");
         } catch (Exception e) {
             TTCrashHandler.handleCrash(TAG, e);
-        } finally {
-            if (connection != null) {
-                try {
-                    connection.disconnect();
-                } catch (Exception e) {
-                    TTCrashHandler.handleCrash(TAG, e);
-                }
-            }
+            return null;
         }
-        long endTimeMS = System.currentTimeMillis();
-        try {
-            if (getCodeFromApi(result) != 0) {
-                JSONObject meta = TTUtil.getMetaWithTS(initTimeMS)
-                        .put("latency", endTimeMS-initTimeMS)
-                        .put("api_type", apiType)
-                        .put("status_code", responseCode)
-                        .put("log_id", getLogIDFromApi(result));
-                TikTokBusinessSdk.getAppEventLogger().monitorMetric(API_ERR, meta, null);
-            }
-        } catch (Exception ignored) {}
-        return result;
+        return send("POST", url, headerParamMap, options, writeBytes.length, outputStream -> {
+            outputStream.write(writeBytes);
+            outputStream.flush();
+        }, false, text);
     }
 
-    public static String doPost(String url, Map<String, String> headerParamMap, String jsonStr) {
-        HttpRequestOptions options = new HttpRequestOptions();
-        options.connectTimeout = 2000;
-        options.readTimeout = 5000;
-        return doPost(url, headerParamMap, jsonStr, options);
+    public static TTApiResponse doPostGzip(String url, Map<String, String> headerParamMap, BodyWriter body) {
+        return doPostGzip(url, headerParamMap, body, new HttpRequestOptions());
     }
 
-    public static String doPost(String url, Map<String, String> headerParamMap, String jsonStr, HttpRequestOptions options) {
+    /**
+     * Sends the body with Content-Encoding: gzip, the text is compressed into the connection as it is
+     * written, in chunks, so the body is never held as a whole, neither as text nor as bytes
+     */
+    public static TTApiResponse doPostGzip(String url, Map<String, String> headerParamMap, BodyWriter body, HttpRequestOptions options) {
+        Map<String, String> headers = new HashMap<>(headerParamMap);
+        headers.put("Content-Encoding", "gzip");
+        return send("POST", url, headers, options, -1, outputStream -> {
+            GZIPOutputStream gzip = new GZIPOutputStream(outputStream, GZIP_BUFFER_BYTES);
+            Writer writer = new OutputStreamWriter(gzip, "UTF-8");
+            body.writeTo(writer);
+            writer.flush();
+            gzip.finish();
+            outputStream.flush();
+        }, false, null);
+    }
+
+    /**
+     * Sends the request with the transport of the config, see {@link TikTokBusinessSdk#getTransport()}
+     *
+     * @param contentLength -1 to send the body in chunks
+     * @param body          null for a GET
+     * @param text          receives the body of an HTTP_OK answer as text, for the deprecated variants
+     */
+    private static TTApiResponse send(String method, String url, Map<String, String> headerParamMap, HttpRequestOptions options,
+                                      long contentLength, @Nullable TTTransport.Body body, boolean keepData,
+                                      @Nullable StringBuilder text) {
         long initTimeMS = System.currentTimeMillis();
-        String result = null;
+        TTApiResponse result = null;
         int responseCode = 0;
         String apiType = "";
         try {
@@ -171,47 +223,34 @@ public class HttpRequestUtil {
             }
         } catch (MalformedURLException ignored) {}
 
-        HttpURLConnection connection = null;
-        OutputStream outputStream = null;
-
+        TTTransport transport = TikTokBusinessSdk.getTransport();
+        TTTransport.Response response = null;
         try {
-            byte[] writeBytes = jsonStr.getBytes("UTF-8");
-            String contentLength = String.valueOf(writeBytes.length);
-
-            connection = connect(url, headerParamMap, options, "POST", contentLength);
-            if (connection == null) return result;
-            outputStream = connection.getOutputStream();
-            outputStream.write(writeBytes);
-            outputStream.flush();
-            boolean redirect = shouldRedirect(connection.getResponseCode());
+            response = transport.execute(method, url, headerParamMap, body, contentLength, options);
+            boolean redirect = shouldRedirect(response.getCode());
             if (redirect) {
-                String redirectUrl = connection.getHeaderField("Location");
-                connection.disconnect();
-                connection = connect(redirectUrl, headerParamMap, options, "POST", contentLength);
-                outputStream = connection.getOutputStream();
-                outputStream.write(writeBytes);
-                outputStream.flush();
+                String redirectUrl = response.getHeader("Location");
+                response.close();
+                response = null;
+                response = transport.execute(method, redirectUrl, headerParamMap, body, contentLength, options);
             }
 
-            responseCode = connection.getResponseCode();
+            responseCode = response.getCode();
             // http code is different from the code returned by api
             if (responseCode == HttpURLConnection.HTTP_OK) {
-                result = streamToString(connection.getInputStream());
+                result = readResponse(response.getBody(), keepData, text);
+            } else {
+                // e.g. 429 or 503, the callers back off
+                result = TTApiResponse.httpError(responseCode, response.getHeader("Retry-After"), System.currentTimeMillis());
             }
         } catch (Exception e) {
             TTCrashHandler.handleCrash(TAG, e);
         } finally {
-            if (outputStream != null) {
-                try {
-                    outputStream.close();
-                } catch (IOException e) {
-                    TTCrashHandler.handleCrash(TAG, e);
-                }
-            }
-            if (connection != null) {
+            if (response != null) {
                 try {
-                    connection.disconnect();
-                } catch (Exception e){
+                    // keeps the connection for the next request
+                    response.close();
+                } catch (Exception e) {
                     TTCrashHandler.handleCrash(TAG, e);
                 }
             }
@@ -230,32 +269,65 @@ public class HttpRequestUtil {
         return result;
     }
 
-    private static String streamToString(InputStream is) {
-        try (BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(is, "UTF-8"))) {
-            StringBuilder sb = new StringBuilder();
-            String line = "";
-            while ((line = bufferedReader.readLine()) != null) {
-                sb.append(line);
+    /**
+     * @return null if the response cannot be read, the stream is left open for the transport to close
+     */
+    private static TTApiResponse readResponse(InputStream is, boolean keepData, @Nullable StringBuilder text) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+            if (text == null) {
+                return TTApiResponse.parse(reader, keepData);
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                text.append(line);
             }
-            return sb.toString().trim();
+            return TTApiResponse.parse(new StringReader(text.toString()), keepData);
         } catch (Exception e) {
             TTCrashHandler.handleCrash(TAG, e);
         }
         return null;
     }
 
+    /**
+     * What the deprecated variants return
+     */
+    @Nullable
+    private static String bodyText(@Nullable TTApiResponse resp, StringBuilder text) {
+        if (resp == null || resp.httpStatus != HttpURLConnection.HTTP_OK) {
+            return null;
+        }
+        return text.toString().trim();
+    }
+
+    public static int getCodeFromApi(@Nullable TTApiResponse resp) {
+        return resp != null ? resp.code : TTApiResponse.NO_RESPONSE;
+    }
+
+    public static String getLogIDFromApi(@Nullable TTApiResponse resp) {
+        return resp != null ? resp.requestId : null;
+    }
+
+    /**
+     * @deprecated use {@link #getCodeFromApi(TTApiResponse)} instead
+     */
+    @Deprecated
     public static int getCodeFromApi(@Nullable String resp) {
         if (resp != null) {
             try {
                 JSONObject respJson = new JSONObject(resp);
                 return respJson.getInt("code");
             } catch (Exception ignored) {
-                return -2;
+                return TTApiResponse.NO_CODE;
             }
         }
-        return -1;
+        return TTApiResponse.NO_RESPONSE;
     }
 
+    /**
+     * @deprecated use {@link #getLogIDFromApi(TTApiResponse)} instead
+     */
+    @Deprecated
     public static String getLogIDFromApi(@Nullable String resp) {
         if (resp != null) {
             try {
@@ -267,4 +339,4 @@ public class HttpRequestUtil {
         }
         return null;
     }
-}
\ No newline at end of file
+}
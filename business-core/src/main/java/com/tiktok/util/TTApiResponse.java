@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * Copyright (c) 2020. Bytedance Inc.
+ *
+ * This source code is licensed under the MIT license found in the LICENSE file in the root directory of this source tree.
+ ******************************************************************************/
+
+package com.tiktok.util;
+
+import androidx.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+
+/**
+ * What the sdk needs from the response of an api.
+ * <p>
+ * {"code": 0, "request_id": "...", "data": {"failed_events": [{"order_in_batch": 1}, ...]}}
+ * <p>
+ * Members which are not known are skipped, whatever their order.
+ */
+public class TTApiResponse {
+    // no response at all, see HttpRequestUtil#getCodeFromApi
+    public static final int NO_RESPONSE = -1;
+    // the body is not json, or has no code
+    public static final int NO_CODE = -2;
+
+    public final int code;
+    // HTTP_OK unless the api could not answer, the code is NO_RESPONSE then
+    public final int httpStatus;
+    // the Retry-After of an answer which is not HTTP_OK, negative if there is none
+    public final long retryAfterMS;
+    @Nullable
+    public final String requestId;
+    // order_in_batch of the events rejected by a partial success, null if the body has none
+    @Nullable
+    public final Set<Integer> failedIndices;
+    // the data member as json text, only kept when asked for
+    @Nullable
+    public final String data;
+
+    TTApiResponse(int code, @Nullable String requestId, @Nullable Set<Integer> failedIndices, @Nullable String data) {
+        this(code, HttpURLConnection.HTTP_OK, -1, requestId, failedIndices, data);
+    }
+
+    private TTApiResponse(int code, int httpStatus, long retryAfterMS, @Nullable String requestId,
+                          @Nullable Set<Integer> failedIndices, @Nullable String data) {
+        this.code = code;
+        this.httpStatus = httpStatus;
+        this.retryAfterMS = retryAfterMS;
+        this.requestId = requestId;
+        this.failedIndices = failedIndices;
+        this.data = data;
+    }
+
+    /**
+     * An answer which is not HTTP_OK, e.g. 429 or 503, its body is not read
+     *
+     * @param retryAfter the Retry-After header, in seconds or as a date
+     */
+    public static TTApiResponse httpError(int httpStatus, @Nullable String retryAfter, long nowMS) {
+        return new TTApiResponse(NO_RESPONSE, httpStatus, parseRetryAfter(retryAfter, nowMS), null, null, null);
+    }
+
+    /**
+     * @return negative if there is nothing to wait for
+     */
+    static long parseRetryAfter(@Nullable String retryAfter, long nowMS) {
+        if (retryAfter == null) {
+            return -1;
+        }
+        retryAfter = retryAfter.trim();
+        try {
+            return Math.max(Long.parseLong(retryAfter) * 1000, 0);
+        } catch (NumberFormatException ignored) {
+        }
+        try {
+            SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            Date date = format.parse(retryAfter);
+            return date != null ? Math.max(date.getTime() - nowMS, 0) : -1;
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * A body which is not json is read as a response with {@link #NO_CODE}
+     *
+     * @param keepData whether to keep the data member as text, e.g. for the configs
+     * @throws IOException if the body cannot be read
+     */
+    public static TTApiResponse parse(Reader in, boolean keepData) throws IOException {
+        StringBuilder body = new StringBuilder();
+        char[] buffer = new char[1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            body.append(buffer, 0, read);
+        }
+        JSONObject json;
+        try {
+            json = new JSONObject(body.toString());
+        } catch (JSONException e) {
+            return new TTApiResponse(NO_CODE, null, null, null);
+        }
+        Integer code = wholeNumber(json.opt("code"));
+        String requestId = json.isNull("request_id") ? null : json.optString("request_id");
+        Object data = json.opt("data");
+        Set<Integer> failedIndices = data instanceof JSONObject ? failedIndices((JSONObject) data) : null;
+        return new TTApiResponse(code != null ? code : NO_CODE, requestId, failedIndices,
+                keepData && data != null && data != JSONObject.NULL ? data.toString() : null);
+    }
+
+    /**
+     * The order_in_batch of data.failed_events, null if there are none. An entry without a valid
+     * one is skipped, the events it stands for count as sent, the rest of the response still holds.
+     */
+    @Nullable
+    private static Set<Integer> failedIndices(JSONObject data) {
+        JSONArray failedEvents = data.optJSONArray("failed_events");
+        if (failedEvents == null) {
+            return null;
+        }
+        Set<Integer> failedIndices = new HashSet<>();
+        for (int i = 0; i < failedEvents.length(); i++) {
+            JSONObject failedEvent = failedEvents.optJSONObject(i);
+            Integer index = failedEvent != null ? wholeNumber(failedEvent.opt("order_in_batch")) : null;
+            if (index != null && index >= 0) {
+                failedIndices.add(index);
+            }
+        }
+        return failedIndices;
+    }
+
+    /**
+     * @return null if the value is not a number, or not a whole one, e.g. 0.0 is 0
+     */
+    @Nullable
+    private static Integer wholeNumber(@Nullable Object value) {
+        if (!(value instanceof Number)) {
+            return null;
+        }
+        double number = ((Number) value).doubleValue();
+        return number == (int) number ? (int) number : null;
+    }
+
+    @Override
+    public String toString() {
+        if (httpStatus != HttpURLConnection.HTTP_OK) {
+            return "http status: " + httpStatus + (retryAfterMS >= 0 ? ", retry after: " + retryAfterMS + "ms" : "");
+        }
+        return "code: " + code + ", request_id: " + requestId
+                + (failedIndices != null ? ", failed_events: " + failedIndices : "");
+    }
+}
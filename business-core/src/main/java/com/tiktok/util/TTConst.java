@@ -13,6 +13,8 @@ public class TTConst {
     public static final String TTSDK_APP_FIRST_INSTALL = "com.tiktok.sdk.firstInstall";
     public static final String TTSDK_APP_LAST_LAUNCH = "com.tiktok.sdk.lastLaunch";
     public static final String TTSDK_APP_2DR_TIME = "com.tiktok.sdk.2drTime";
+    public static final String TTSDK_UPLOAD_FAILURES = "com.tiktok.sdk.uploadFailures";
+    public static final String TTSDK_UPLOAD_RETRY_AT = "com.tiktok.sdk.uploadRetryAt";
 
     public static final String TTSDK_PREFIX = "com.tiktok";
 
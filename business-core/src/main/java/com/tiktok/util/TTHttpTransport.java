@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * Copyright (c) 2020. Bytedance Inc.
+ *
+ * This source code is licensed under the MIT license found in the LICENSE file in the root directory of this source tree.
+ ******************************************************************************/
+
+package com.tiktok.util;
+
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * The default {@link TTTransport}, on HttpURLConnection.
+ * <p>
+ * The connections are not disconnected after a request, a response is read to its end and closed
+ * instead, which hands the socket back to the keep-alive pool of the system for the next request to
+ * the same host. Only a connection which failed half way is disconnected.
+ */
+public class TTHttpTransport implements TTTransport {
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 2000;
+    public static final int DEFAULT_READ_TIMEOUT_MS = 5000;
+    // what is left of a response is read up to this size to keep the connection, beyond it is dropped
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    private final int connectTimeoutMS;
+    private final int readTimeoutMS;
+
+    public TTHttpTransport() {
+        this(DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_READ_TIMEOUT_MS);
+    }
+
+    public TTHttpTransport(int connectTimeoutMS, int readTimeoutMS) {
+        if (connectTimeoutMS < 0 || readTimeoutMS < 0) throw new RuntimeException("Invalid timeouts");
+        this.connectTimeoutMS = connectTimeoutMS;
+        this.readTimeoutMS = readTimeoutMS;
+    }
+
+    @Override
+    public Response execute(String method, String url, Map<String, String> headers, @Nullable Body body,
+                            long contentLength, HttpRequestUtil.HttpRequestOptions options) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            connection.setRequestMethod(method);
+            connection.setConnectTimeout(connectTimeoutMS);
+            connection.setReadTimeout(readTimeoutMS);
+            options.configConnection(connection);
+            connection.setDoInput(true);
+            connection.setUseCaches(false);
+            connection.setDoOutput(body != null);
+            if (body != null) {
+                // the body goes out as it is written, instead of being buffered once more by the connection
+                if (contentLength >= 0) {
+                    connection.setFixedLengthStreamingMode((int) contentLength);
+                } else {
+                    connection.setChunkedStreamingMode(0);
+                }
+            }
+            for (Map.Entry<String, String> entry : headers.entrySet()) {
+                connection.setRequestProperty(entry.getKey(), entry.getValue());
+            }
+            connection.connect();
+            if (body != null) {
+                OutputStream out = connection.getOutputStream();
+                body.writeTo(out);
+                out.close();
+            }
+            return new HttpResponse(connection);
+        } catch (IOException | RuntimeException e) {
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    private static class HttpResponse implements Response {
+        private final HttpURLConnection connection;
+        private InputStream body;
+
+        HttpResponse(HttpURLConnection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public int getCode() throws IOException {
+            return connection.getResponseCode();
+        }
+
+        @Nullable
+        @Override
+        public String getHeader(String name) {
+            return connection.getHeaderField(name);
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            if (body == null) {
+                body = connection.getResponseCode() < HttpURLConnection.HTTP_BAD_REQUEST
+                        ? connection.getInputStream() : connection.getErrorStream();
+                if (body == null) {
+                    body = new ByteArrayInputStream(new byte[0]);
+                }
+            }
+            return body;
+        }
+
+        /**
+         * Reads what is left so that the connection is kept alive
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                InputStream in = getBody();
+                byte[] buffer = new byte[4096];
+                int drained = 0;
+                int n;
+                while (drained <= MAX_DRAIN_BYTES && (n = in.read(buffer)) > 0) {
+                    drained += n;
+                }
+                in.close();
+                if (drained > MAX_DRAIN_BYTES) {
+                    connection.disconnect();
+                }
+            } catch (IOException e) {
+                connection.disconnect();
+                throw e;
+            }
+        }
+    }
+}
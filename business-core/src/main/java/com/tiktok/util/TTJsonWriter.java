@@ -0,0 +1,247 @@
+/*******************************************************************************
+ * Copyright (c) 2020. Bytedance Inc.
+ *
+ * This source code is licensed under the MIT license found in the LICENSE file in the root directory of this source tree.
+ ******************************************************************************/
+
+package com.tiktok.util;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes json text straight into a StringBuilder, without building a tree of JSONObject first.
+ * Pieces which are json already, e.g. the properties of an event, are spliced in as they are.
+ * <p>
+ * The caller is responsible for the order of the calls, name/value pairs inside objects,
+ * values inside arrays, nothing is validated.
+ * <p>
+ * Given a {@link Writer}, the text is passed on to it whenever an object ends and the builder holds
+ * more than {@link #DRAIN_CHARS} chars, so that a big document is never held as a whole.
+ */
+public class TTJsonWriter {
+    static final int DRAIN_CHARS = 8 * 1024;
+
+    private final StringBuilder sb;
+    // null when the text is only kept in sb
+    private final Writer out;
+    // the first failure of out, thrown by flush()
+    private IOException error;
+    // whether the next name or value needs a separator
+    private boolean needsComma = false;
+
+    public TTJsonWriter(int capacity) {
+        sb = new StringBuilder(capacity);
+        out = null;
+    }
+
+    public TTJsonWriter(Writer out) {
+        sb = new StringBuilder(DRAIN_CHARS + 1024);
+        this.out = out;
+    }
+
+    public TTJsonWriter beginObject() {
+        separator();
+        sb.append('{');
+        needsComma = false;
+        return this;
+    }
+
+    public TTJsonWriter endObject() {
+        sb.append('}');
+        needsComma = true;
+        if (out != null && sb.length() > DRAIN_CHARS) {
+            drain();
+        }
+        return this;
+    }
+
+    public TTJsonWriter beginArray() {
+        separator();
+        sb.append('[');
+        needsComma = false;
+        return this;
+    }
+
+    public TTJsonWriter endArray() {
+        sb.append(']');
+        needsComma = true;
+        return this;
+    }
+
+    public TTJsonWriter name(String name) {
+        separator();
+        appendString(sb, name);
+        sb.append(':');
+        needsComma = false;
+        return this;
+    }
+
+    public TTJsonWriter value(String value) {
+        separator();
+        if (value == null) {
+            sb.append("null");
+        } else {
+            appendString(sb, value);
+        }
+        needsComma = true;
+        return this;
+    }
+
+    public TTJsonWriter value(long value) {
+        separator();
+        sb.append(value);
+        needsComma = true;
+        return this;
+    }
+
+    /**
+     * NaN and infinities are not valid json, they are written as null
+     */
+    public TTJsonWriter value(double value) {
+        separator();
+        appendNumber(sb, value);
+        needsComma = true;
+        return this;
+    }
+
+    public TTJsonWriter value(boolean value) {
+        separator();
+        sb.append(value);
+        needsComma = true;
+        return this;
+    }
+
+    /**
+     * @param json a complete json value, written as it is
+     */
+    public TTJsonWriter rawValue(String json) {
+        separator();
+        sb.append(json);
+        needsComma = true;
+        return this;
+    }
+
+    /**
+     * Splices the members of a json object into the object being written
+     *
+     * @param jsonObject a complete json object, e.g. "{\"a\":1}"
+     */
+    public TTJsonWriter rawMembers(String jsonObject) {
+        int start = jsonObject.indexOf('{') + 1;
+        int end = jsonObject.lastIndexOf('}');
+        for (int i = start; i < end; i++) {
+            if (!Character.isWhitespace(jsonObject.charAt(i))) {
+                separator();
+                sb.append(jsonObject, start, end);
+                needsComma = true;
+                break;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * @return length of the text not passed on to the writer yet
+     */
+    public int length() {
+        return sb.length();
+    }
+
+    /**
+     * Passes the rest of the text on to the writer and flushes it
+     *
+     * @throws IOException the first failure of the writer, nothing is written after it
+     */
+    public void flush() throws IOException {
+        if (out == null) {
+            return;
+        }
+        drain();
+        if (error != null) {
+            throw error;
+        }
+        out.flush();
+    }
+
+    private void drain() {
+        if (error == null) {
+            try {
+                out.append(sb);
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+        sb.setLength(0);
+    }
+
+    /**
+     * @return the text not passed on to the writer yet, i.e. all of it without a writer
+     */
+    @Override
+    public String toString() {
+        return sb.toString();
+    }
+
+    private void separator() {
+        if (needsComma) {
+            sb.append(',');
+        }
+    }
+
+    /**
+     * Same as JSONObject, whole numbers have no fraction, NaN and infinities become null
+     */
+    public static void appendNumber(StringBuilder sb, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            sb.append("null");
+        } else if (value == (long) value) {
+            sb.append((long) value);
+        } else {
+            sb.append(value);
+        }
+    }
+
+    public static void appendString(StringBuilder sb, String value) {
+        sb.append('"');
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                case '\b':
+                    sb.append("\\b");
+                    break;
+                case '\f':
+                    sb.append("\\f");
+                    break;
+                case '\u2028':
+                case '\u2029':
+                    // valid json but not valid javascript
+                    sb.append(String.format("\\u%04x", (int) c));
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+}
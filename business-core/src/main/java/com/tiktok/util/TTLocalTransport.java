@@ -0,0 +1,207 @@
+/*******************************************************************************
+ * Copyright (c) 2020. Bytedance Inc.
+ *
+ * This source code is licensed under the MIT license found in the LICENSE file in the root directory of this source tree.
+ ******************************************************************************/
+
+package com.tiktok.util;
+
+import androidx.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Stands in for the business api inside the process, no socket is opened, e.g. to run the
+ * whole upload path in tests or benchmarks without a network:
+ * <pre>
+ *     new TTConfig(application).setTransport(new TTLocalTransport())
+ * </pre>
+ * It answers the config, batch and monitor requests the way the api does when all goes well, gzip
+ * bodies included, and counts what it received. The answers to the batches can be changed, as well
+ * as how long the api takes to answer. Thread safe, the batches of a flush come in in parallel.
+ */
+public class TTLocalTransport implements TTTransport {
+    private static final String BATCH_PATH = "/app/batch/";
+    private static final String MONITOR_PATH = "/app/monitor/";
+    private static final String CONFIG_PATH = "/business_sdk_config/get/";
+
+    private long latencyMS = 0;
+    @Nullable
+    private String batchResponse;
+    private JSONObject config = new JSONObject();
+
+    private int requests = 0;
+    private int batches = 0;
+    private int events = 0;
+    private int monitorEvents = 0;
+    private long bytes = 0;
+    @Nullable
+    private JSONObject lastBatch;
+
+    /**
+     * @param latencyMS how long the api takes for each request
+     */
+    public synchronized TTLocalTransport setLatencyMS(long latencyMS) {
+        this.latencyMS = latencyMS;
+        return this;
+    }
+
+    /**
+     * @param body the answer to the batches from now on, e.g. a partial success, null for a success
+     */
+    public synchronized TTLocalTransport setBatchResponse(@Nullable String body) {
+        this.batchResponse = body;
+        return this;
+    }
+
+    /**
+     * @param config the data of the answer to the config request
+     */
+    public synchronized TTLocalTransport setConfig(JSONObject config) {
+        this.config = config;
+        return this;
+    }
+
+    public synchronized int getRequests() {
+        return requests;
+    }
+
+    public synchronized int getBatches() {
+        return batches;
+    }
+
+    /**
+     * @return events received in the batches, whatever the answer
+     */
+    public synchronized int getEvents() {
+        return events;
+    }
+
+    public synchronized int getMonitorEvents() {
+        return monitorEvents;
+    }
+
+    /**
+     * @return bytes of the request bodies as they were sent, i.e. compressed with gzip
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    @Nullable
+    public synchronized JSONObject getLastBatch() {
+        return lastBatch;
+    }
+
+    @Override
+    public Response execute(String method, String url, Map<String, String> headers, @Nullable Body body,
+                            long contentLength, HttpRequestUtil.HttpRequestOptions options) throws IOException {
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        if (body != null) {
+            body.writeTo(sent);
+            if (contentLength >= 0 && contentLength != sent.size()) {
+                throw new IOException("Content-Length " + contentLength + " but " + sent.size() + " bytes sent");
+            }
+        }
+        String path = new URL(url).getPath();
+        long latency;
+        String answer;
+        try {
+            synchronized (this) {
+                requests++;
+                bytes += sent.size();
+                latency = latencyMS;
+                if (path.endsWith(CONFIG_PATH) && "GET".equals(method)) {
+                    answer = success().put("data", config).toString();
+                } else if (path.endsWith(BATCH_PATH) && body != null) {
+                    lastBatch = new JSONObject(readBody(sent.toByteArray(), headers));
+                    batches++;
+                    events += lastBatch.getJSONArray("batch").length();
+                    answer = batchResponse != null ? batchResponse : success().toString();
+                } else if (path.endsWith(MONITOR_PATH) && body != null) {
+                    JSONArray batch = new JSONObject(readBody(sent.toByteArray(), headers)).optJSONArray("batch");
+                    monitorEvents += batch != null ? batch.length() : 0;
+                    answer = success().toString();
+                } else {
+                    return new LocalResponse(HttpURLConnection.HTTP_NOT_FOUND, "");
+                }
+            }
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            // a body the api would not take
+            return new LocalResponse(HttpURLConnection.HTTP_BAD_REQUEST, "");
+        }
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+        }
+        return new LocalResponse(HttpURLConnection.HTTP_OK, answer);
+    }
+
+    private JSONObject success() throws Exception {
+        return new JSONObject()
+                .put("code", 0)
+                .put("message", "OK")
+                .put("request_id", "local-" + requests)
+                .put("data", new JSONObject());
+    }
+
+    private static String readBody(byte[] sent, Map<String, String> headers) throws IOException {
+        InputStream in = new ByteArrayInputStream(sent);
+        if ("gzip".equals(headers.get("Content-Encoding"))) {
+            in = new GZIPInputStream(in);
+        }
+        ByteArrayOutputStream text = new ByteArrayOutputStream(sent.length * 4);
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            text.write(buffer, 0, n);
+        }
+        return text.toString("UTF-8");
+    }
+
+    private static class LocalResponse implements Response {
+        private final int code;
+        private final InputStream body;
+
+        LocalResponse(int code, String body) throws IOException {
+            this.code = code;
+            this.body = new ByteArrayInputStream(body.getBytes("UTF-8"));
+        }
+
+        @Override
+        public int getCode() {
+            return code;
+        }
+
+        @Nullable
+        @Override
+        public String getHeader(String name) {
+            return null;
+        }
+
+        @Override
+        public InputStream getBody() {
+            return body;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*******************************************************************************
+ * Copyright (c) 2020. Bytedance Inc.
+ *
+ * This source code is licensed under the MIT license found in the LICENSE file in the root directory of this source tree.
+ ******************************************************************************/
+
+package com.tiktok.util;
+
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * Sends the requests of the sdk, see {@link com.tiktok.TikTokBusinessSdk.TTConfig#setTransport}.
+ * <p>
+ * {@link TTHttpTransport} is the default one, {@link TTLocalTransport} answers in place of the
+ * business api without any network. Redirects and the reading of the api responses are left
+ * to {@link HttpRequestUtil}, a transport only moves the bytes.
+ */
+public interface TTTransport {
+
+    /**
+     * Writes the body of a request, may be called again for the same request, e.g. after a redirect
+     */
+    interface Body {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Must be closed once read, whatever the status, so that the connection can be used again
+     */
+    interface Response extends Closeable {
+        int getCode() throws IOException;
+
+        @Nullable
+        String getHeader(String name);
+
+        /**
+         * @return the body of the response, or the error body, empty if there is none
+         */
+        InputStream getBody() throws IOException;
+    }
+
+    /**
+     * @param body          null for a GET
+     * @param contentLength length of the body in bytes, -1 to send it in chunks
+     * @param options       timeouts of this request, the transport has its own defaults for the ones unset
+     */
+    Response execute(String method, String url, Map<String, String> headers, @Nullable Body body,
+                     long contentLength, HttpRequestUtil.HttpRequestOptions options) throws IOException;
+}
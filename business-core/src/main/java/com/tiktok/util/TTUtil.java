@@ -17,6 +17,7 @@ import com.tiktok.appevents.TTCrashHandler;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.FileInputStream;
 import java.util.Arrays;
 import java.util.Map;
 import java.util.UUID;
@@ -39,6 +40,40 @@ public class TTUtil {
         }
     }
 
+    private static volatile String processSuffix;
+
+    /**
+     * @return "" in the main process of the app, otherwise the name of the process, see android:process,
+     * made fit for file names, so that files of the sdk can be told apart per process.
+     * Lock free, it is also called by the crash handler.
+     */
+    public static String getProcessSuffix(Context context) {
+        if (processSuffix != null) {
+            return processSuffix;
+        }
+        String name = null;
+        try (FileInputStream in = new FileInputStream("/proc/self/cmdline")) {
+            byte[] buffer = new byte[256];
+            int n = Math.max(in.read(buffer), 0);
+            int end = 0;
+            while (end < n && buffer[end] != 0) {
+                end++;
+            }
+            name = new String(buffer, 0, end, "UTF-8").trim();
+        } catch (Exception ignored) {
+        }
+        String packageName = context.getPackageName();
+        if (name == null || name.isEmpty() || name.equals(packageName)) {
+            processSuffix = "";
+        } else {
+            if (packageName != null && name.startsWith(packageName)) {
+                name = name.substring(packageName.length());
+            }
+            processSuffix = name.replaceAll("[^A-Za-z0-9_]", "_");
+        }
+        return processSuffix;
+    }
+
     /**
      * pretty print str
      *
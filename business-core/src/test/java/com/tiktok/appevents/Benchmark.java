@@ -0,0 +1,17 @@
+/*******************************************************************************
+ * Copyright (c) 2020. Bytedance Inc.
+ *
+ * This source code is licensed under the MIT license found in the LICENSE file in the root directory of this source tree.
+ ******************************************************************************/
+
+package com.tiktok.appevents;
+
+/**
+ * Category of the tests which measure and print timings, they are left out of the unit tests and
+ * run on their own with
+ * <pre>
+ *     ./gradlew :business-core:testDebugUnitTest -Pbenchmarks
+ * </pre>
+ */
+public interface Benchmark {
+}
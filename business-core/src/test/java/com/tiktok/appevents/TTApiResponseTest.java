@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright (c) 2020. Bytedance Inc.
+ *
+ * This source code is licensed under the MIT license found in the LICENSE file in the root directory of this source tree.
+ ******************************************************************************/
+
+package com.tiktok.appevents;
+
+import com.tiktok.util.TTApiResponse;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.junit.Assert.*;
+
+public class TTApiResponseTest {
+
+    private static TTApiResponse parse(String body, boolean keepData) throws Exception {
+        return TTApiResponse.parse(new StringReader(body), keepData);
+    }
+
+    @Test
+    public void partialSuccess() throws Exception {
+        TTApiResponse resp = parse("{\"message\":\"partial \\\"ok\\\"\", \"data\": {\"failed_events\": ["
+                + "{\"order_in_batch\": 0, \"reason\": {\"x\": [1, true, null]}}, {\"order_in_batch\":2}]},"
+                + " \"code\": 20001, \"request_id\": \"2020\\u00e9\"}", false);
+        assertEquals(20001, resp.code);
+        assertEquals("2020é", resp.requestId);
+        assertEquals(new HashSet<>(Arrays.asList(0, 2)), resp.failedIndices);
+        assertNull(resp.data);
+    }
+
+    @Test
+    public void dataIsKeptAsText() throws Exception {
+        TTApiResponse resp = parse("{\"code\":0,\"data\": {\"enable_sdk\":true,\"domain\":\"a\\/b\","
+                + " \"limits\": [1.5, null, {}]},\"request_id\":null}", true);
+        assertEquals(0, resp.code);
+        assertNull(resp.requestId);
+        assertNull(resp.failedIndices);
+        JSONObject data = new JSONObject(resp.data);
+        assertTrue(data.getBoolean("enable_sdk"));
+        assertEquals("a/b", data.getString("domain"));
+        assertEquals(3, data.getJSONArray("limits").length());
+        assertEquals(1.5, data.getJSONArray("limits").getDouble(0), 0);
+    }
+
+    @Test
+    public void notJson() throws Exception {
+        assertEquals(TTApiResponse.NO_CODE, parse("<html>502</html>", false).code);
+        assertEquals(TTApiResponse.NO_CODE, parse("{\"code\":0", false).code);
+        assertEquals(TTApiResponse.NO_CODE, parse("{\"request_id\":\"1\"}", false).code);
+        // a missing or an extra comma
+        assertEquals(TTApiResponse.NO_CODE, parse("{\"code\":0 \"request_id\":\"1\"}", false).code);
+        assertEquals(TTApiResponse.NO_CODE, parse("{\"code\":0,,\"request_id\":\"1\"}", false).code);
+        assertEquals(TTApiResponse.NO_CODE, parse("{\"code\":\"0\"}", false).code);
+        assertEquals(TTApiResponse.NO_CODE, parse("{\"code\":0.5}", false).code);
+    }
+
+    @Test
+    public void malformedFailedEventsAreSkipped() throws Exception {
+        TTApiResponse resp = parse("{\"code\":20001,\"request_id\":\"1\",\"data\":{\"failed_events\":["
+                + "{}, {\"order_in_batch\":\"x\"}, 3, null, {\"order_in_batch\":-1}, {\"order_in_batch\":1.5},"
+                + " {\"order_in_batch\":2}]}}", false);
+        assertEquals(20001, resp.code);
+        assertEquals("1", resp.requestId);
+        assertEquals(new HashSet<>(Collections.singletonList(2)), resp.failedIndices);
+
+        // none of them says which event was rejected
+        resp = parse("{\"code\":20001,\"data\":{\"failed_events\":[{}]}}", false);
+        assertEquals(20001, resp.code);
+        assertTrue(resp.failedIndices.isEmpty());
+
+        // not a list, same as no failed_events, the config in data is still there
+        resp = parse("{\"code\":0,\"data\":{\"failed_events\":{},\"enable_sdk\":true}}", true);
+        assertEquals(0, resp.code);
+        assertNull(resp.failedIndices);
+        assertTrue(new JSONObject(resp.data).getBoolean("enable_sdk"));
+    }
+
+    @Test
+    public void retryAfter() {
+        assertEquals(120_000, TTApiResponse.httpError(503, " 120", 0).retryAfterMS);
+        // Wed, 21 Oct 2015 07:28:00 GMT
+        long date = 1_445_412_480_000L;
+        assertEquals(30_000, TTApiResponse.httpError(429, "Wed, 21 Oct 2015 07:28:00 GMT", date - 30_000).retryAfterMS);
+        assertEquals(0, TTApiResponse.httpError(429, "Wed, 21 Oct 2015 07:28:00 GMT", date + 1).retryAfterMS);
+        TTApiResponse resp = TTApiResponse.httpError(502, null, 0);
+        assertEquals(-1, resp.retryAfterMS);
+        assertEquals(TTApiResponse.NO_RESPONSE, resp.code);
+        assertEquals(502, resp.httpStatus);
+    }
+}
@@ -13,6 +13,7 @@ import com.tiktok.util.TTConst;
 import com.tiktok.util.TTLogger;
 import com.tiktok.util.TTUtil;
 
+import org.junit.After;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
@@ -21,11 +22,16 @@ import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doCallRealMethod;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
@@ -40,6 +46,17 @@ import static org.powermock.api.mockito.PowerMockito.when;
 })
 public class TTAppEventLoggerTest extends BaseTest {
 
+    @After
+    public void tearDown() {
+        // the logger state is static, the next test starts from the defaults
+        TTAppEventLogger.rateLimiter.setRules(Collections.emptyMap());
+        TTAppEventLogger.stagingDrainScheduled.set(false);
+        TTAppEventLogger.stagingRing.clear();
+        TTAppEventLogger.overflowRing.clear();
+        TTAppEventsQueue.configure(TTAppEventsQueue.DEFAULT_CAPACITY, TikTokBusinessSdk.OverflowPolicy.SPILL_TO_DISK, 0);
+        TTAppEventsQueue.clearAll();
+    }
+
     @Test
     public void skipFlush() throws Exception {
         PowerMockito.mockStatic(TikTokBusinessSdk.class);
@@ -135,7 +152,7 @@ public class TTAppEventLoggerTest extends BaseTest {
         persist.setAppEvents(eventList);
 
         TTAppEventsQueue.addEvent(fromMemory3);
-        when(TTAppEventStorage.readFromDisk()).thenReturn(persist);
+        when(TTAppEventStorage.readFromDisk(anyInt())).thenReturn(persist);
         return appEventLogger;
 
     }
@@ -153,9 +170,12 @@ public class TTAppEventLoggerTest extends BaseTest {
         assertEquals(fromDisk2, values.get(1));
         assertEquals(fromMemory3, values.get(2));
 
-        // TTAppEventStorage.readFromDisk is called first, but persist method is not called
+        // TTAppEventStorage.readFromDisk is called first, the disk events are committed once sent,
+        // but persist method is not called
+        PowerMockito.verifyStatic(TTAppEventStorage.class, VerificationModeFactory.times(1));
+        TTAppEventStorage.readFromDisk(anyInt());
         PowerMockito.verifyStatic(TTAppEventStorage.class, VerificationModeFactory.times(1));
-        TTAppEventStorage.readFromDisk();
+        TTAppEventStorage.commit(any(), eq(2));
         PowerMockito.verifyStatic(TTAppEventStorage.class, VerificationModeFactory.noMoreInteractions());
         TTAppEventStorage.persist(any());
     }
@@ -172,9 +192,112 @@ public class TTAppEventLoggerTest extends BaseTest {
         appEventLogger.flush(TTAppEventLogger.FlushReason.FORCE_FLUSH);
 
         PowerMockito.verifyStatic(TTAppEventStorage.class, VerificationModeFactory.times(1));
-        TTAppEventStorage.readFromDisk();
+        TTAppEventStorage.readFromDisk(anyInt());
         PowerMockito.verifyStatic(TTAppEventStorage.class, VerificationModeFactory.times(1));
         TTAppEventStorage.persist(failed);
+        PowerMockito.verifyStatic(TTAppEventStorage.class, VerificationModeFactory.times(1));
+        TTAppEventStorage.commit(any(), eq(2));
+    }
+
+    @Test
+    public void failedDiskEventsStayOnDisk() {
+        TTAppEventLogger appEventLogger = flushCommon();
+        List<TTAppEvent> failed = new LinkedList<>();
+        failed.add(fromDisk2);
+        failed.add(fromMemory3);
+
+        // the network went away after the first event
+        when(TTRequest.reportAppEvent(any(), any())).thenReturn(failed);
+
+        appEventLogger.flush(TTAppEventLogger.FlushReason.FORCE_FLUSH);
+
+        // only the memory event is written, the failed disk event is not committed
+        List<TTAppEvent> saved = new LinkedList<>();
+        saved.add(fromMemory3);
+        PowerMockito.verifyStatic(TTAppEventStorage.class, VerificationModeFactory.times(1));
+        TTAppEventStorage.persist(saved);
+        PowerMockito.verifyStatic(TTAppEventStorage.class, VerificationModeFactory.times(1));
+        TTAppEventStorage.commit(any(), eq(1));
+    }
+
+    @Test
+    public void priorityEventsAreNotSampled() {
+        PowerMockito.mockStatic(TikTokBusinessSdk.class);
+        when(TikTokBusinessSdk.isSystemActivated()).thenReturn(true);
+        Map<String, TTEventRateLimiter.Rule> rules = new HashMap<>();
+        rules.put("Purchase", new TTEventRateLimiter.Rule(0, 0, 1));
+        rules.put("Search", new TTEventRateLimiter.Rule(0, 0, 1));
+        TTAppEventLogger.rateLimiter.setRules(rules);
+
+        TTAppEventLogger appEventLogger = mock(TTAppEventLogger.class);
+        doCallRealMethod().when(appEventLogger).track(any(), any());
+        // as if a drain was pending, the staged events are drained below
+        TTAppEventLogger.stagingDrainScheduled.set(true);
+        appEventLogger.track("Search", null);
+        appEventLogger.track("Purchase", null);
+        TTAppEventLogger.stagingDrainScheduled.set(false);
+
+        List<String> staged = new LinkedList<>();
+        TTAppEventLogger.stagingRing.drain(slot -> staged.add(slot.eventName + ":" + slot.sampleWeight), Integer.MAX_VALUE);
+        assertEquals(1, staged.size());
+        assertEquals("Purchase:1.0", staged.get(0));
+    }
+
+    @Test
+    public void dropOldestKeepsTheNewEventWhenStagingIsFull() {
+        PowerMockito.mockStatic(TikTokBusinessSdk.class);
+        when(TikTokBusinessSdk.isSystemActivated()).thenReturn(true);
+        TTAppEventsQueue.configure(0, TikTokBusinessSdk.OverflowPolicy.DROP_OLDEST, 0);
+
+        TTAppEventLogger appEventLogger = mock(TTAppEventLogger.class);
+        doCallRealMethod().when(appEventLogger).track(any(), any());
+
+        // the eventLoop is lagging behind, the drain of the staged events is pending
+        TTAppEventLogger.stagingDrainScheduled.set(true);
+        int staged = 0;
+        while (TTAppEventLogger.stagingRing.publish(TTAppEvent.TTAppEventType.track,
+                staged == 0 ? "Oldest" : "ViewContent", null, 1)) {
+            staged++;
+        }
+        long dropped = TTAppEventsQueue.getDroppedEvents();
+        appEventLogger.track("AddToCart", null);
+        TTAppEventLogger.stagingDrainScheduled.set(false);
+
+        List<String> kept = new LinkedList<>();
+        TTAppEventLogger.stagingRing.drain(slot -> kept.add(slot.eventName), Integer.MAX_VALUE);
+        assertEquals(staged, kept.size());
+        assertFalse(kept.contains("Oldest"));
+        assertEquals("AddToCart", kept.get(staged - 1));
+        assertEquals(1, TTAppEventsQueue.getDroppedEvents() - dropped);
+    }
+
+    @Test
+    public void stagingOverflowIsBounded() {
+        PowerMockito.mockStatic(TikTokBusinessSdk.class);
+        when(TikTokBusinessSdk.isSystemActivated()).thenReturn(true);
+        TTAppEventsQueue.configure(0, TikTokBusinessSdk.OverflowPolicy.SPILL_TO_DISK, 0);
+
+        TTAppEventLogger appEventLogger = mock(TTAppEventLogger.class);
+        doCallRealMethod().when(appEventLogger).track(any(), any());
+
+        // the eventLoop is lagging behind, the drain of the staged events is pending
+        TTAppEventLogger.stagingDrainScheduled.set(true);
+        while (TTAppEventLogger.stagingRing.publish(TTAppEvent.TTAppEventType.track, "ViewContent", null, 1)) {
+        }
+        long dropped = TTAppEventsQueue.getDroppedEvents();
+        int spillable = TTAppEventLogger.overflowRing.capacity() - TTAppEventLogger.PRIORITY_RESERVE;
+        for (int i = 0; i < spillable + 100; i++) {
+            appEventLogger.track("ViewContent", null);
+        }
+        // the reserve is left to them
+        appEventLogger.track("Purchase", null);
+        TTAppEventLogger.stagingDrainScheduled.set(false);
+
+        assertEquals(spillable + 1, TTAppEventLogger.overflowRing.size());
+        assertEquals(100, TTAppEventsQueue.getDroppedEvents() - dropped);
+        List<String> overflow = new LinkedList<>();
+        TTAppEventLogger.overflowRing.drain(slot -> overflow.add(slot.eventName), Integer.MAX_VALUE);
+        assertEquals("Purchase", overflow.get(spillable));
     }
 
 }
@@ -15,6 +15,7 @@ import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import static org.junit.Assert.*;
@@ -81,4 +82,166 @@ public class TTAppEventsQueueTest extends BaseTest {
         assertEquals(0, TTAppEventsQueue.size());
 
     }
+
+    @Test
+    public void testDrainTo() {
+        TTAppEvent e1 = new TTAppEvent(TTAppEvent.TTAppEventType.track,"InternalTest", "{}");
+        TTAppEvent e2 = new TTAppEvent(TTAppEvent.TTAppEventType.track,"InternalTest", "{}");
+        TTAppEvent e3 = new TTAppEvent(TTAppEvent.TTAppEventType.track,"InternalTest", "{}");
+        TTAppEventsQueue.addEvent(e1);
+        TTAppEventsQueue.addEvent(e2);
+        TTAppEventsQueue.addEvent(e3);
+
+        List<TTAppEvent> drained = new ArrayList<>();
+        assertEquals(2, TTAppEventsQueue.drainTo(drained, 2));
+        assertEquals(e1, drained.get(0));
+        assertEquals(e2, drained.get(1));
+        assertEquals(1, TTAppEventsQueue.size());
+
+        TTAppEventsQueue.clearAll();
+    }
+
+    private TTAppEvent newEvent() {
+        return new TTAppEvent(TTAppEvent.TTAppEventType.track,"InternalTest", "{}");
+    }
+
+    @Test
+    public void testOverflowPolicies() {
+        try {
+            TTAppEventsQueue.configure(2, TikTokBusinessSdk.OverflowPolicy.DROP_NEWEST, 0);
+            TTAppEvent e1 = newEvent();
+            TTAppEvent e2 = newEvent();
+            TTAppEvent e3 = newEvent();
+            long dropped = TTAppEventsQueue.getDroppedEvents();
+            assertTrue(TTAppEventsQueue.addEvent(e1));
+            assertTrue(TTAppEventsQueue.addEvent(e2));
+            assertTrue(TTAppEventsQueue.isFull());
+            assertTrue(TTAppEventsQueue.addEvent(e3));
+            assertEquals(dropped + 1, TTAppEventsQueue.getDroppedEvents());
+            List<TTAppEvent> exported = TTAppEventsQueue.exportAllEvents();
+            assertEquals(e1, exported.get(0));
+            assertEquals(e2, exported.get(1));
+
+            TTAppEventsQueue.configure(2, TikTokBusinessSdk.OverflowPolicy.DROP_OLDEST, 0);
+            TTAppEventsQueue.addEvent(e1);
+            TTAppEventsQueue.addEvent(e2);
+            assertTrue(TTAppEventsQueue.addEvent(e3));
+            assertEquals(dropped + 2, TTAppEventsQueue.getDroppedEvents());
+            exported = TTAppEventsQueue.exportAllEvents();
+            assertEquals(e2, exported.get(0));
+            assertEquals(e3, exported.get(1));
+
+            TTAppEventsQueue.configure(2, TikTokBusinessSdk.OverflowPolicy.BLOCK, 5);
+            TTAppEventsQueue.addEvent(e1);
+            TTAppEventsQueue.addEvent(e2);
+            assertTrue(TTAppEventsQueue.addEvent(e3));
+            assertEquals(dropped + 3, TTAppEventsQueue.getDroppedEvents());
+            TTAppEventsQueue.clearAll();
+
+            // the caller is told to spill
+            TTAppEventsQueue.configure(2, TikTokBusinessSdk.OverflowPolicy.SPILL_TO_DISK, 0);
+            TTAppEventsQueue.addEvent(e1);
+            TTAppEventsQueue.addEvent(e2);
+            assertFalse(TTAppEventsQueue.addEvent(e3));
+            assertEquals(2, TTAppEventsQueue.size());
+        } finally {
+            TTAppEventsQueue.configure(TTAppEventsQueue.DEFAULT_CAPACITY,
+                    TikTokBusinessSdk.OverflowPolicy.SPILL_TO_DISK, 0);
+            TTAppEventsQueue.clearAll();
+        }
+    }
+
+    @Test
+    public void testPriorityLane() {
+        try {
+            TTAppEventsQueue.configure(2, TikTokBusinessSdk.OverflowPolicy.DROP_NEWEST, 0);
+            TTAppEvent bulk1 = newEvent();
+            TTAppEvent bulk2 = newEvent();
+            TTAppEvent purchase = new TTAppEvent(TTAppEvent.TTAppEventType.track, "Purchase", "{}");
+            TTAppEvent identify = new TTAppEvent(TTAppEvent.TTAppEventType.identify, null, "{}");
+            TTAppEventsQueue.addEvent(bulk1);
+            TTAppEventsQueue.addEvent(bulk2);
+            // the bulk lane is full, priority events are still kept
+            assertTrue(TTAppEventsQueue.addEvent(purchase));
+            assertTrue(TTAppEventsQueue.addEvent(identify));
+            assertEquals(4, TTAppEventsQueue.size());
+            assertEquals(2, TTAppEventsQueue.prioritySize());
+
+            List<TTAppEvent> priority = new ArrayList<>();
+            assertEquals(1, TTAppEventsQueue.drainPriorityTo(priority, 1));
+            assertEquals(purchase, priority.get(0));
+
+            // the rest of the priority lane comes first
+            List<TTAppEvent> exported = TTAppEventsQueue.exportAllEvents();
+            assertEquals(3, exported.size());
+            assertEquals(identify, exported.get(0));
+            assertEquals(bulk1, exported.get(1));
+            assertEquals(bulk2, exported.get(2));
+        } finally {
+            TTAppEventsQueue.configure(TTAppEventsQueue.DEFAULT_CAPACITY,
+                    TikTokBusinessSdk.OverflowPolicy.SPILL_TO_DISK, 0);
+            TTAppEventsQueue.clearAll();
+        }
+    }
+
+    @Test
+    public void fullPriorityLaneIsSpilledWhateverThePolicy() {
+        try {
+            TTAppEventsQueue.configure(4, TikTokBusinessSdk.OverflowPolicy.DROP_OLDEST, 0);
+            TTAppEvent bulk = newEvent();
+            TTAppEventsQueue.addEvent(bulk);
+            for (int i = 0; i < TTAppEventsQueue.PRIORITY_CAPACITY; i++) {
+                assertTrue(TTAppEventsQueue.addEvent(
+                        new TTAppEvent(TTAppEvent.TTAppEventType.track, "Purchase", "{}")));
+            }
+            long dropped = TTAppEventsQueue.getDroppedEvents();
+
+            // not dropped, not in the bulk lane either, the caller has to spill it
+            TTAppEvent purchase = new TTAppEvent(TTAppEvent.TTAppEventType.track, "Purchase", "{}");
+            assertFalse(TTAppEventsQueue.addEvent(purchase));
+            List<TTAppEvent> group = new ArrayList<>();
+            group.add(newEvent());
+            group.add(new TTAppEvent(TTAppEvent.TTAppEventType.identify, null, "{}"));
+            List<TTAppEvent> toSpill = TTAppEventsQueue.addEvents(group);
+            assertEquals(1, toSpill.size());
+            assertEquals(group.get(1), toSpill.get(0));
+
+            assertEquals(dropped, TTAppEventsQueue.getDroppedEvents());
+            assertEquals(TTAppEventsQueue.PRIORITY_CAPACITY, TTAppEventsQueue.prioritySize());
+            assertEquals(TTAppEventsQueue.PRIORITY_CAPACITY + 2, TTAppEventsQueue.size());
+            // the bulk lane is not full, only size() counts the priority lane
+            assertFalse(TTAppEventsQueue.isFull());
+        } finally {
+            TTAppEventsQueue.configure(TTAppEventsQueue.DEFAULT_CAPACITY,
+                    TikTokBusinessSdk.OverflowPolicy.SPILL_TO_DISK, 0);
+            TTAppEventsQueue.clearAll();
+        }
+    }
+
+    @Test
+    public void testAddEvents() {
+        try {
+            TTAppEventsQueue.configure(4, TikTokBusinessSdk.OverflowPolicy.SPILL_TO_DISK, 0);
+            List<TTAppEvent> group = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                group.add(newEvent());
+            }
+            group.add(new TTAppEvent(TTAppEvent.TTAppEventType.track, "Purchase", "{}"));
+
+            List<TTAppEvent> toSpill = TTAppEventsQueue.addEvents(group);
+            assertEquals(1, toSpill.size());
+            assertEquals(group.get(4), toSpill.get(0));
+            assertEquals(5, TTAppEventsQueue.size());
+            assertEquals(1, TTAppEventsQueue.prioritySize());
+
+            List<TTAppEvent> exported = TTAppEventsQueue.exportAllEvents();
+            assertEquals(group.get(5), exported.get(0));
+            assertEquals(group.get(0), exported.get(1));
+            assertEquals(group.get(3), exported.get(4));
+        } finally {
+            TTAppEventsQueue.configure(TTAppEventsQueue.DEFAULT_CAPACITY,
+                    TikTokBusinessSdk.OverflowPolicy.SPILL_TO_DISK, 0);
+            TTAppEventsQueue.clearAll();
+        }
+    }
 }
@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright (c) 2020. Bytedance Inc.
+ *
+ * This source code is licensed under the MIT license found in the LICENSE file in the root directory of this source tree.
+ ******************************************************************************/
+
+package com.tiktok.appevents;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TTDiskRetentionTest {
+
+    private static final long HOUR = 60 * 60 * 1000;
+
+    private File dir;
+    private TTEventLog bulk;
+    private TTEventLog priority;
+
+    @Before
+    public void setup() throws Exception {
+        dir = File.createTempFile("tt_retention", "");
+        dir.delete();
+        bulk = new TTEventLog(new File(dir, "bulk"), false, Runnable::run);
+        priority = new TTEventLog(new File(dir, "priority"), true, Runnable::run);
+    }
+
+    @After
+    public void tearDown() {
+        delete(dir);
+    }
+
+    private static void delete(File f) {
+        File[] files = f.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        f.delete();
+    }
+
+    /**
+     * one segment per hour
+     */
+    private static void fill(TTEventLog log, String name, int fromHour, int toHour) throws Exception {
+        for (int hour = fromHour; hour < toHour; hour++) {
+            List<TTAppEvent> events = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                events.add(new TTAppEvent(TTAppEvent.TTAppEventType.track, name,
+                        new Date(hour * HOUR + i), "{}", null));
+            }
+            log.append(events);
+        }
+    }
+
+    private static List<Long> hours(TTEventLog log) {
+        List<Long> hours = new ArrayList<>();
+        for (TTEventLog.SegmentInfo segment : log.segments()) {
+            hours.add(segment.minTimestampMS / HOUR);
+        }
+        return hours;
+    }
+
+    @Test
+    public void oldSegmentsAreEvicted() throws Exception {
+        fill(bulk, "ViewContent", 0, 10);
+        TTDiskRetention retention = new TTDiskRetention(0, 3 * HOUR, 0, TTDiskRetention.OLDEST_FIRST_STRATEGY);
+        // the newest event of the hour 6 is almost 4 hours old
+        assertEquals(70, retention.enforce(10 * HOUR, bulk));
+        assertEquals("[7, 8, 9]", hours(bulk).toString());
+    }
+
+    @Test
+    public void theWindowInFlightIsKept() throws Exception {
+        fill(bulk, "ViewContent", 0, 10);
+        // the first two segments are being uploaded
+        TTEventStore.Window window = bulk.read(15);
+        TTDiskRetention retention = new TTDiskRetention(0, 3 * HOUR, 0, TTDiskRetention.OLDEST_FIRST_STRATEGY);
+        assertEquals(50, retention.enforce(10 * HOUR, bulk));
+        assertEquals("[0, 1, 7, 8, 9]", hours(bulk).toString());
+
+        // acknowledged, not dumped, only the rest of the hour 1 was not read
+        bulk.commit(window, 15);
+        assertEquals(5, retention.enforce(10 * HOUR, bulk));
+        assertEquals("[7, 8, 9]", hours(bulk).toString());
+
+        // the next one goes instead, until the upload failed
+        window = bulk.read(10);
+        retention = new TTDiskRetention(0, 0, 20, TTDiskRetention.OLDEST_FIRST_STRATEGY);
+        assertEquals(10, retention.enforce(10 * HOUR, bulk));
+        assertEquals("[7, 9]", hours(bulk).toString());
+        bulk.commit(window, 0);
+        retention = new TTDiskRetention(0, 0, 10, TTDiskRetention.OLDEST_FIRST_STRATEGY);
+        assertEquals(10, retention.enforce(10 * HOUR, bulk));
+        assertEquals("[9]", hours(bulk).toString());
+    }
+
+    @Test
+    public void lowestPriorityFirst() throws Exception {
+        fill(priority, "Purchase", 0, 3);
+        fill(bulk, "ViewContent", 3, 10);
+        TTDiskRetention retention = new TTDiskRetention(0, 0, 50, TTDiskRetention.LOWEST_PRIORITY_FIRST_STRATEGY);
+        assertEquals(50, retention.enforce(10 * HOUR, priority, bulk));
+        assertEquals("[0, 1, 2]", hours(priority).toString());
+        assertEquals("[8, 9]", hours(bulk).toString());
+
+        retention = new TTDiskRetention(0, 0, 50, TTDiskRetention.OLDEST_FIRST_STRATEGY);
+        fill(bulk, "ViewContent", 10, 12);
+        assertEquals(20, retention.enforce(12 * HOUR, priority, bulk));
+        assertEquals("[2]", hours(priority).toString());
+    }
+
+    @Test
+    public void sampledThinningKeepsTheWholePeriod() throws Exception {
+        fill(bulk, "ViewContent", 0, 8);
+        // half of the events
+        TTDiskRetention retention = new TTDiskRetention(0, 0, 40, TTDiskRetention.SAMPLED_THINNING_STRATEGY);
+        assertEquals(40, retention.enforce(8 * HOUR, bulk));
+        assertEquals("[1, 3, 5, 7]", hours(bulk).toString());
+    }
+}
@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * Copyright (c) 2020. Bytedance Inc.
+ *
+ * This source code is licensed under the MIT license found in the LICENSE file in the root directory of this source tree.
+ ******************************************************************************/
+
+package com.tiktok.appevents;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TTEventCodecTest {
+
+    private static TTUserInfo user(String anonymousId, String email) {
+        TTUserInfo user = new TTUserInfo();
+        user.anonymousId = anonymousId;
+        user.email = email;
+        return user;
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        TTUserInfo user = user("anon-1", null);
+        TTAppEvent merged = new TTAppEvent(TTAppEvent.TTAppEventType.track, "AddToCart",
+                new Date(1_600_000_000_000L), "{\"value\":\"é€\"}", user);
+        merged.merge(new TTAppEvent(TTAppEvent.TTAppEventType.track, "AddToCart",
+                new Date(1_600_000_005_000L), "{\"value\":\"é€\"}", user));
+        merged.setSampleWeight(2.5);
+        TTAppEvent identify = new TTAppEvent(TTAppEvent.TTAppEventType.identify, null,
+                new Date(1_600_000_006_000L), null, user("anon-1", "hash"));
+
+        TTEventCodec.Encoder encoder = new TTEventCodec.Encoder();
+        byte[] first = encoder.encode(merged);
+        byte[] second = encoder.encode(identify);
+        byte[] repeat = encoder.encode(merged);
+        // the name and the anonymous id are not written again
+        assertTrue(repeat.length < first.length - 10);
+
+        TTEventCodec.Decoder decoder = new TTEventCodec.Decoder();
+        TTAppEvent a = decoder.decode(first);
+        TTAppEvent b = decoder.decode(second);
+        TTAppEvent c = decoder.decode(repeat);
+
+        assertEquals("track", a.getType());
+        assertEquals("AddToCart", a.getEventName());
+        assertEquals(merged.getTimeStamp(), a.getTimeStamp());
+        assertEquals(merged.getLastTimeStamp(), a.getLastTimeStamp());
+        assertEquals(merged.getPropertiesJson(), a.getPropertiesJson());
+        assertEquals(merged.getUniqueId(), a.getUniqueId());
+        assertEquals(2, a.getCount());
+        assertEquals(2.5, a.getSampleWeight(), 0);
+        assertEquals("anon-1", a.getUserInfo().anonymousId);
+        assertNull(a.getUserInfo().email);
+
+        assertEquals("identify", b.getType());
+        assertNull(b.getEventName());
+        assertNull(b.getPropertiesJson());
+        assertEquals(1, b.getCount());
+        assertEquals(1, b.getSampleWeight(), 0);
+        assertEquals("hash", b.getUserInfo().email);
+
+        // events of the same user share the user info again
+        assertSame(c.getUserInfo(), decoder.decode(encoder.encode(merged)).getUserInfo());
+    }
+
+    @Test
+    public void truncatedRecord() {
+        TTAppEvent event = new TTAppEvent(TTAppEvent.TTAppEventType.track, "Search",
+                new Date(), "{\"query\":\"shoes\"}", user("anon", null));
+        byte[] bytes = new TTEventCodec.Encoder().encode(event);
+        try {
+            new TTEventCodec.Decoder().decode(Arrays.copyOf(bytes, bytes.length - 3));
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    private static List<TTAppEvent> events(int n) {
+        TTUserInfo user = user("0f8fad5b-d9cb-469f-a165-70867728950e", null);
+        List<TTAppEvent> events = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            events.add(new TTAppEvent(TTAppEvent.TTAppEventType.track, i % 2 == 0 ? "ViewContent" : "AddToCart",
+                    new Date(1_600_000_000_000L + i), "{\"content_id\":\"sku_" + i + "\",\"value\":9.99}", user));
+        }
+        return events;
+    }
+
+    @Test
+    public void smallerThanJavaSerialization() throws Exception {
+        List<TTAppEvent> events = events(200);
+        assertTrue(totalBytes(encodeAll(events)) * 5 < totalBytes(serializeAll(events)));
+    }
+
+    @Test
+    @Category(Benchmark.class)
+    public void throughputAgainstJavaSerialization() throws Exception {
+        List<TTAppEvent> events = events(2_000);
+        // warm up
+        for (int i = 0; i < 3; i++) {
+            encodeAll(events);
+            serializeAll(events);
+        }
+
+        long start = System.nanoTime();
+        List<byte[]> encoded = encodeAll(events);
+        long encodeNS = System.nanoTime() - start;
+        start = System.nanoTime();
+        TTEventCodec.Decoder decoder = new TTEventCodec.Decoder();
+        for (byte[] bytes : encoded) {
+            decoder.decode(bytes);
+        }
+        long decodeNS = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        List<byte[]> serialized = serializeAll(events);
+        long serializeNS = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (byte[] bytes : serialized) {
+            try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                ois.readObject();
+            }
+        }
+        long deserializeNS = System.nanoTime() - start;
+
+        System.out.printf("codec: %d B, encode %.1f us/event, decode %.1f us/event%n",
+                totalBytes(encoded), encodeNS / 1000.0 / events.size(), decodeNS / 1000.0 / events.size());
+        System.out.printf("java serialization: %d B, encode %.1f us/event, decode %.1f us/event%n",
+                totalBytes(serialized), serializeNS / 1000.0 / events.size(), deserializeNS / 1000.0 / events.size());
+    }
+
+    private static List<byte[]> encodeAll(List<TTAppEvent> events) {
+        TTEventCodec.Encoder encoder = new TTEventCodec.Encoder();
+        List<byte[]> result = new ArrayList<>(events.size());
+        for (TTAppEvent event : events) {
+            result.add(encoder.encode(event));
+        }
+        return result;
+    }
+
+    private static List<byte[]> serializeAll(List<TTAppEvent> events) throws Exception {
+        List<byte[]> result = new ArrayList<>(events.size());
+        for (TTAppEvent event : events) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+            try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+                oos.writeObject(event);
+            }
+            result.add(bytes.toByteArray());
+        }
+        return result;
+    }
+
+    private static long totalBytes(List<byte[]> records) {
+        long total = 0;
+        for (byte[] record : records) {
+            total += record.length;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,268 @@
+/*******************************************************************************
+ * Copyright (c) 2020. Bytedance Inc.
+ *
+ * This source code is licensed under the MIT license found in the LICENSE file in the root directory of this source tree.
+ ******************************************************************************/
+
+package com.tiktok.appevents;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TTEventLogTest {
+
+    private File dir;
+
+    @Before
+    public void setup() throws Exception {
+        dir = File.createTempFile("tt_event_log", "");
+        dir.delete();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static List<TTAppEvent> events(int from, int to) {
+        List<TTAppEvent> events = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            events.add(new TTAppEvent(TTAppEvent.TTAppEventType.track, "e" + i, new Date(i), "{}", null));
+        }
+        return events;
+    }
+
+    private static List<String> names(List<TTAppEvent> events) {
+        List<String> names = new ArrayList<>();
+        for (TTAppEvent event : events) {
+            names.add(event.getEventName());
+        }
+        return names;
+    }
+
+    private int filesExceptIndexes() {
+        int count = 0;
+        for (File f : dir.listFiles()) {
+            if (!f.getName().endsWith(".idx")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static List<TTAppEvent> readAll(TTEventLog log) {
+        TTEventLog.Window window = log.read(Integer.MAX_VALUE);
+        log.commit(window, window.events.size());
+        return window.events;
+    }
+
+    @Test
+    public void appendReadAndReopen() throws Exception {
+        TTEventLog log = new TTEventLog(dir, false, Runnable::run);
+        log.append(events(0, 3));
+        log.append(events(3, 5));
+        assertEquals(5, log.size());
+
+        // reopening finds the same events
+        log = new TTEventLog(dir, false, Runnable::run);
+        assertEquals(5, log.size());
+        assertEquals(names(events(0, 5)), names(readAll(log)));
+        assertTrue(log.isEmpty());
+        // only the cursor is left
+        assertEquals(1, dir.listFiles().length);
+
+        log.append(events(5, 7));
+        assertEquals(names(events(5, 7)), names(readAll(log)));
+    }
+
+    @Test
+    public void onlyCommittedEventsAreRemoved() throws Exception {
+        TTEventLog log = new TTEventLog(dir, false, Runnable::run);
+        log.append(events(0, 5));
+
+        TTEventLog.Window window = log.read(3);
+        assertEquals(names(events(0, 3)), names(window.events));
+        // nothing is removed by reading
+        assertEquals(5, log.size());
+
+        // the upload of the third event failed, and events were appended in the meantime
+        log.append(events(5, 6));
+        log.commit(window, 2);
+        assertEquals(4, log.size());
+
+        // a restart finds the cursor
+        log = new TTEventLog(dir, false, Runnable::run);
+        assertEquals(names(events(2, 6)), names(readAll(log)));
+        assertTrue(new TTEventLog(dir, false, Runnable::run).isEmpty());
+    }
+
+    @Test
+    public void syncAfterRollAndCommit() throws Exception {
+        TTEventLog log = new TTEventLog(dir, false, Runnable::run);
+        log.append(events(0, TTEventLog.SEGMENT_MAX_RECORDS + 10));
+        log.sync();
+        // segments acknowledged since the append are skipped
+        log.append(events(0, 5));
+        readAll(log);
+        log.sync();
+        log.sync();
+        assertTrue(new TTEventLog(dir, false, Runnable::run).isEmpty());
+    }
+
+    @Test
+    public void closedSegmentsAreIndexed() throws Exception {
+        TTEventLog log = new TTEventLog(dir, false, Runnable::run);
+        log.append(events(0, 3 * TTEventLog.SEGMENT_MAX_RECORDS));
+        File[] segmentFiles = dir.listFiles((d, name) -> name.endsWith(".segz"));
+        assertEquals(2, segmentFiles.length);
+
+        // a damaged closed segment is not noticed when the log is opened, its index is trusted
+        try (RandomAccessFile raf = new RandomAccessFile(segmentFiles[1], "rw")) {
+            raf.seek(TTEventLog.HEADER_BYTES);
+            raf.write(new byte[16]);
+        }
+        log = new TTEventLog(dir, false, Runnable::run);
+        assertEquals(3 * TTEventLog.SEGMENT_MAX_RECORDS, log.size());
+        assertEquals(TTEventLog.SEGMENT_MAX_RECORDS, log.segments().get(1).minTimestampMS);
+        // but when its events are needed
+        TTEventLog.Window window = log.read(Integer.MAX_VALUE);
+        assertEquals(names(events(0, TTEventLog.SEGMENT_MAX_RECORDS)), names(window.events));
+    }
+
+    @Test
+    public void spillFileIsReadBack() throws Exception {
+        dir.mkdirs();
+        File spill = new File(dir, "crash_1.spill");
+        assertEquals(30, TTEventLog.writeSpill(spill, events(0, 30), Long.MAX_VALUE));
+        assertEquals(names(events(0, 30)), names(TTEventLog.readSpill(spill)));
+
+        // past the deadline only the header is written
+        assertEquals(0, TTEventLog.writeSpill(spill, events(0, 30), System.nanoTime() - 1));
+        assertTrue(TTEventLog.readSpill(spill).isEmpty());
+    }
+
+    @Test
+    public void unknownVersionsAreSkipped() throws Exception {
+        dir.mkdirs();
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(new File(dir, "0000000001.seg")))) {
+            out.writeInt(TTEventLog.MAGIC);
+            out.writeByte(TTEventLog.COMPRESSED_VERSION + 1);
+            out.writeInt(1);
+            out.writeInt(0);
+            out.writeByte(0);
+        }
+
+        TTEventLog log = new TTEventLog(dir, false, Runnable::run);
+        assertEquals(0, log.size());
+        log.append(events(0, 2));
+        assertEquals(names(events(0, 2)), names(readAll(log)));
+    }
+
+    @Test
+    public void closedSegmentsAreCompressed() throws Exception {
+        List<Runnable> background = new ArrayList<>();
+        TTEventLog log = new TTEventLog(dir, false, background::add);
+        List<TTAppEvent> events = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            events.add(new TTAppEvent(TTAppEvent.TTAppEventType.track, "AddToCart", new Date(i),
+                    "{\"content_id\":\"sku_" + (i % 20) + "\",\"currency\":\"USD\",\"value\":" + (i % 7) + ".99}", null));
+        }
+        log.append(events);
+        long uncompressed = 0;
+        for (TTEventLog.SegmentInfo segment : log.segments()) {
+            uncompressed += segment.bytes;
+        }
+        // two closed segments, the active one is left as it is
+        assertEquals(2, background.size());
+        for (Runnable task : background) {
+            task.run();
+        }
+        long compressed = 0;
+        for (TTEventLog.SegmentInfo segment : log.segments()) {
+            compressed += segment.bytes;
+        }
+        assertTrue(compressed * 2 < uncompressed);
+        int compressedFiles = 0;
+        for (File f : dir.listFiles()) {
+            if (f.getName().endsWith(".segz")) {
+                compressedFiles++;
+            }
+        }
+        assertEquals(2, compressedFiles);
+
+        // read from the middle of a compressed segment, and after a restart
+        TTEventLog.Window window = log.read(150);
+        log.commit(window, 150);
+        log = new TTEventLog(dir, false, Runnable::run);
+        assertEquals(names(events.subList(150, 300)), names(readAll(log)));
+    }
+
+    @Test
+    public void partialFrameIsCutOff() throws Exception {
+        TTEventLog log = new TTEventLog(dir, false, Runnable::run);
+        log.append(events(0, 3));
+        File segment = dir.listFiles()[0];
+        long length = segment.length();
+        // a crash in the middle of the last frame
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.setLength(length - 10);
+        }
+
+        log = new TTEventLog(dir, false, Runnable::run);
+        assertEquals(2, log.size());
+        log.append(events(3, 4));
+        List<String> expected = names(events(0, 2));
+        expected.addAll(names(events(3, 4)));
+        assertEquals(expected, names(readAll(log)));
+    }
+
+    @Test
+    public void segmentsRollAndAreEvicted() throws Exception {
+        List<Runnable> deletions = new ArrayList<>();
+        TTEventLog log = new TTEventLog(dir, false, deletions::add);
+        log.append(events(0, 1000));
+        List<TTEventLog.SegmentInfo> segments = log.segments();
+        assertEquals(1000 / TTEventLog.SEGMENT_MAX_RECORDS, segments.size());
+        assertEquals(0, segments.get(0).minTimestampMS);
+        assertEquals(TTEventLog.SEGMENT_MAX_RECORDS - 1, segments.get(0).maxTimestampMS);
+
+        // in the middle, and the first one, partly committed
+        assertEquals(100, log.evict(segments.get(3).seq));
+        TTEventLog.Window window = log.read(10);
+        log.commit(window, 10);
+        assertEquals(90, log.evict(segments.get(0).seq));
+        assertEquals(800, log.size());
+        // acknowledged segments wait for the deleter
+        assertEquals(segments.size() + 1, filesExceptIndexes());
+        for (Runnable deletion : deletions) {
+            deletion.run();
+        }
+        assertEquals(segments.size() - 2 + 1, filesExceptIndexes());
+        // the closed segments left, not the active one
+        assertEquals(segments.size() - 2 - 1, dir.listFiles().length - filesExceptIndexes());
+
+        // the timestamps are found again without decoding the events
+        log = new TTEventLog(dir, false, Runnable::run);
+        assertEquals(100, log.segments().get(0).minTimestampMS);
+        List<String> expected = names(events(100, 300));
+        expected.addAll(names(events(400, 1000)));
+        assertEquals(expected, names(readAll(log)));
+    }
+}
@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright (c) 2020. Bytedance Inc.
+ *
+ * This source code is licensed under the MIT license found in the LICENSE file in the root directory of this source tree.
+ ******************************************************************************/
+
+package com.tiktok.appevents;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class TTEventRateLimiterTest {
+
+    private static final long SECOND = 1000_000_000L;
+
+    @Test
+    public void unconfiguredEventsPassThrough() {
+        TTEventRateLimiter limiter = new TTEventRateLimiter();
+        assertEquals(1, limiter.admit("ViewContent", 0), 0);
+        assertEquals(1, limiter.admit(null, 0), 0);
+
+        Map<String, TTEventRateLimiter.Rule> rules = new HashMap<>();
+        rules.put("Search", new TTEventRateLimiter.Rule(0, 0, 1));
+        limiter.setRules(rules);
+        assertEquals(1, limiter.admit("ViewContent", 0), 0);
+        assertEquals(TTEventRateLimiter.DISCARDED, limiter.admit("Search", 0), 0);
+    }
+
+    @Test
+    public void tokenBucketCarriesSuppressedWeight() {
+        TTEventRateLimiter limiter = new TTEventRateLimiter();
+        Map<String, TTEventRateLimiter.Rule> rules = new HashMap<>();
+        // 2 per second, burst of 2
+        rules.put("VideoProgress", new TTEventRateLimiter.Rule(1, 2, 2));
+        limiter.setRules(rules);
+
+        long start = System.nanoTime();
+        assertEquals(1, limiter.admit("VideoProgress", start), 0);
+        assertEquals(1, limiter.admit("VideoProgress", start), 0);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(TTEventRateLimiter.DISCARDED, limiter.admit("VideoProgress", start), 0);
+        }
+        // half a second refills one token, the kept event stands for the 5 suppressed ones as well
+        assertEquals(6, limiter.admit("VideoProgress", start + SECOND / 2), 0);
+        assertEquals(TTEventRateLimiter.DISCARDED, limiter.admit("VideoProgress", start + SECOND / 2), 0);
+    }
+
+    @Test
+    public void samplingWeightsAddUp() {
+        TTEventRateLimiter limiter = new TTEventRateLimiter();
+        Map<String, TTEventRateLimiter.Rule> rules = new HashMap<>();
+        rules.put("Scroll", new TTEventRateLimiter.Rule(0.25, 0, 1));
+        limiter.setRules(rules);
+
+        final int tracked = 20000;
+        int kept = 0;
+        double totalWeight = 0;
+        for (int i = 0; i < tracked; i++) {
+            double weight = limiter.admit("Scroll", i);
+            if (weight != TTEventRateLimiter.DISCARDED) {
+                assertEquals(4, weight, 0);
+                kept++;
+                totalWeight += weight;
+            }
+        }
+        assertTrue(Math.abs(kept - tracked / 4) < tracked / 40);
+        // the weights let the server estimate the real volume
+        assertTrue(Math.abs(totalWeight - tracked) < tracked / 10);
+    }
+}
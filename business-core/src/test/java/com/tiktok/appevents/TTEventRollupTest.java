@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright (c) 2020. Bytedance Inc.
+ *
+ * This source code is licensed under the MIT license found in the LICENSE file in the root directory of this source tree.
+ ******************************************************************************/
+
+package com.tiktok.appevents;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TTEventRollupTest {
+
+    private static TTAppEvent event(String name, long ts, String props, TTUserInfo userInfo) {
+        return new TTAppEvent(TTAppEvent.TTAppEventType.track, name, new Date(ts), props, userInfo);
+    }
+
+    @Test
+    public void mergesRepeats() {
+        TTUserInfo user = new TTUserInfo();
+        List<TTAppEvent> events = new ArrayList<>();
+        events.add(event("ViewContent", 1000, "{\"content_id\":\"1\"}", user));
+        events.add(event("Search", 1500, "{}", user));
+        events.add(event("ViewContent", 2000, "{\"content_id\":\"1\"}", user));
+        events.add(event("ViewContent", 3000, "{\"content_id\":\"2\"}", user));
+        TTAppEvent sampled = event("ViewContent", 500, "{\"content_id\":\"1\"}", user);
+        sampled.setSampleWeight(4);
+        events.add(sampled);
+        events.add(new TTAppEvent(TTAppEvent.TTAppEventType.identify, null, new Date(4000), "{}", user));
+        events.add(new TTAppEvent(TTAppEvent.TTAppEventType.identify, null, new Date(4000), "{}", user));
+
+        List<TTAppEvent> merged = TTEventRollup.rollup(events);
+        assertEquals(5, merged.size());
+
+        TTAppEvent first = merged.get(0);
+        assertEquals("ViewContent", first.getEventName());
+        assertEquals(3, first.getCount());
+        assertEquals(500, first.getTimeStamp().getTime());
+        assertEquals(2000, first.getLastTimeStamp().getTime());
+        // 1 + 1 + 4 tracked events
+        assertEquals(6, first.getCount() * first.getSampleWeight(), 1e-9);
+
+        assertEquals("Search", merged.get(1).getEventName());
+        assertEquals(1, merged.get(1).getCount());
+        assertEquals(merged.get(1).getTimeStamp(), merged.get(1).getLastTimeStamp());
+        assertEquals("{\"content_id\":\"2\"}", merged.get(2).getPropertiesJson());
+        // identify events are never merged
+        assertEquals("identify", merged.get(3).getType());
+        assertEquals("identify", merged.get(4).getType());
+    }
+
+    @Test
+    public void purchasesAreNotMerged() {
+        TTUserInfo user = new TTUserInfo();
+        List<TTAppEvent> events = new ArrayList<>();
+        events.add(event("Purchase", 1000, "{\"value\":9.99}", user));
+        events.add(event("Purchase", 2000, "{\"value\":9.99}", user));
+        assertSame(events, TTEventRollup.rollup(events));
+        assertEquals(1, events.get(0).getCount());
+    }
+
+    @Test
+    public void differentUsersAreKeptApart() {
+        List<TTAppEvent> events = new ArrayList<>();
+        events.add(event("ViewContent", 1000, "{}", new TTUserInfo()));
+        events.add(event("ViewContent", 1000, "{}", new TTUserInfo()));
+        assertSame(events, TTEventRollup.rollup(events));
+    }
+}
@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * Copyright (c) 2020. Bytedance Inc.
+ *
+ * This source code is licensed under the MIT license found in the LICENSE file in the root directory of this source tree.
+ ******************************************************************************/
+
+package com.tiktok.appevents;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class TTEventStagingRingTest {
+
+    @Test
+    public void publishAndDrain() {
+        TTEventStagingRing ring = new TTEventStagingRing(2);
+        assertTrue(ring.publish(TTAppEvent.TTAppEventType.track, "a", null, 1));
+        assertTrue(ring.publish(TTAppEvent.TTAppEventType.identify, null, null, 1));
+        assertFalse(ring.publish(TTAppEvent.TTAppEventType.track, "c", null, 1));
+
+        List<String> names = new ArrayList<>();
+        assertEquals(2, ring.drain(slot -> {
+            assertNotNull(slot.userInfo);
+            assertTrue(slot.timestamp > 0);
+            names.add(slot.type + ":" + slot.eventName);
+        }, Integer.MAX_VALUE));
+        assertEquals("track:a", names.get(0));
+        assertEquals("identify:null", names.get(1));
+        assertEquals(0, ring.size());
+
+        // slots are recycled
+        assertTrue(ring.publish(TTAppEvent.TTAppEventType.track, "d", null, 1));
+        assertEquals(1, ring.size());
+    }
+
+    /**
+     * With a warmed up ring a publish allocates nothing on the calling thread, measured with the
+     * allocation counters of HotSpot, skipped on the JVMs without them
+     */
+    @Test
+    public void publishDoesNotAllocate() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        final int calls = 256;
+        TTEventStagingRing ring = new TTEventStagingRing(calls);
+        TTEventStagingRing.SlotConsumer discard = slot -> {
+        };
+        // warm up, so that the jit and the user info snapshot are settled
+        for (int round = 0; round < 200; round++) {
+            for (int i = 0; i < calls; i++) {
+                ring.publish(TTAppEvent.TTAppEventType.track, "ViewContent", null, 1);
+            }
+            ring.drain(discard, Integer.MAX_VALUE);
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < calls; i++) {
+            ring.publish(TTAppEvent.TTAppEventType.track, "ViewContent", null, 1);
+        }
+        long after = threadBean.getThreadAllocatedBytes(threadId);
+        double perCall = (after - before) / (double) calls;
+        // the measurement itself may allocate a few bytes
+        assertTrue(perCall < 1);
+    }
+}
@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * Copyright (c) 2020. Bytedance Inc.
+ *
+ * This source code is licensed under the MIT license found in the LICENSE file in the root directory of this source tree.
+ ******************************************************************************/
+
+package com.tiktok.appevents;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Both engines of TTEventStore side by side, same events, same batches, the timings are a {@link Benchmark}
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class TTEventStoreBenchmarkTest {
+
+    private static final int EVENTS = 10_000;
+    // a group commit
+    private static final int INSERT_BATCH = 100;
+    // TTAppEventLogger.FLUSH_WINDOW_EVENTS
+    private static final int DRAIN_WINDOW = 500;
+    private static final Executor DIRECT = Runnable::run;
+
+    private Context context;
+    private SQLiteDatabase db;
+    private File dir;
+
+    @Before
+    public void setup() {
+        context = RuntimeEnvironment.getApplication();
+        db = TTSQLiteEventStore.open(context);
+        dir = new File(context.getFilesDir(), "tt_event_log_benchmark");
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+        context.deleteDatabase(TTSQLiteEventStore.DATABASE_NAME);
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static List<TTAppEvent> events(int from, int to) {
+        TTUserInfo user = new TTUserInfo();
+        user.anonymousId = "0f8fad5b-d9cb-469f-a165-70867728950e";
+        List<TTAppEvent> events = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            events.add(new TTAppEvent(TTAppEvent.TTAppEventType.track, i % 2 == 0 ? "ViewContent" : "AddToCart",
+                    new Date(1_600_000_000_000L + i), "{\"content_id\":\"sku_" + i + "\",\"value\":9.99}", user));
+        }
+        return events;
+    }
+
+    @Test
+    public void sqliteKeepsTheOrderOfAppends() throws Exception {
+        TTSQLiteEventStore store = new TTSQLiteEventStore(db, false);
+        TTSQLiteEventStore priority = new TTSQLiteEventStore(db, true);
+        List<TTAppEvent> events = events(0, 5);
+        store.append(events.subList(2, 5));
+        // failed events persisted again
+        store.append(events.subList(0, 2));
+        priority.append(events(5, 6));
+        assertEquals(5, store.size());
+        assertEquals(1, priority.size());
+
+        TTEventStore.Window window = store.read(3);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(events.get(i + 2).getUniqueId(), window.events.get(i).getUniqueId());
+        }
+        store.commit(window, 2);
+        assertEquals(3, store.size());
+        assertEquals(1, priority.size());
+        store.clear();
+        assertTrue(store.isEmpty());
+    }
+
+    @Test
+    public void sqliteKeepsEventsWithTheSameId() throws Exception {
+        TTSQLiteEventStore store = new TTSQLiteEventStore(db, false);
+        TTAppEvent event = events(0, 1).get(0);
+        // the same id handed over by another process, whose counter started at the same time
+        TTAppEvent other = new TTAppEvent(TTAppEvent.TTAppEventType.track, "Search", new Date(), "{}",
+                event.getUserInfo(), event.getUniqueId(), 1, 1, null);
+        store.append(Collections.singletonList(event));
+        store.append(Collections.singletonList(other));
+        assertEquals(2, store.size());
+
+        TTEventStore.Window window = store.read(2);
+        assertEquals("ViewContent", window.events.get(0).getEventName());
+        assertEquals("Search", window.events.get(1).getEventName());
+        store.commit(window, 1);
+        assertEquals("Search", store.read(1).events.get(0).getEventName());
+    }
+
+    @Test
+    public void bothEnginesDrainEverything() throws Exception {
+        List<TTAppEvent> events = events(0, 1_000);
+        appendAndDrain(new TTEventLog(dir, false, DIRECT), events);
+        appendAndDrain(new TTSQLiteEventStore(db, false), events);
+    }
+
+    @Test
+    @Category(Benchmark.class)
+    public void fileAgainstSQLite() throws Exception {
+        List<TTAppEvent> events = events(0, EVENTS);
+        measure("file", new TTEventLog(dir, false, DIRECT), events);
+        measure("sqlite", new TTSQLiteEventStore(db, false), events);
+    }
+
+    private static void measure(String engine, TTEventStore store, List<TTAppEvent> events) throws Exception {
+        long[] ns = appendAndDrain(store, events);
+        int windows = (events.size() + DRAIN_WINDOW - 1) / DRAIN_WINDOW;
+        // depends on the machine and on the Robolectric SQLite
+        System.out.printf("%s: %.0f inserts/s, drain %.2f ms per %d events window%n", engine,
+                events.size() * 1e9 / ns[0], ns[1] / 1e6 / windows, DRAIN_WINDOW);
+    }
+
+    /**
+     * @return the time taken by the appends and by the drain, in ns
+     */
+    private static long[] appendAndDrain(TTEventStore store, List<TTAppEvent> events) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < events.size(); i += INSERT_BATCH) {
+            store.append(events.subList(i, Math.min(i + INSERT_BATCH, events.size())));
+        }
+        long insertNS = System.nanoTime() - start;
+        assertEquals(events.size(), store.size());
+
+        int drained = 0;
+        start = System.nanoTime();
+        while (!store.isEmpty()) {
+            TTEventStore.Window window = store.read(DRAIN_WINDOW);
+            assertEquals(events.get(drained).getUniqueId(), window.events.get(0).getUniqueId());
+            store.commit(window, window.events.size());
+            drained += window.events.size();
+        }
+        long drainNS = System.nanoTime() - start;
+        assertEquals(events.size(), drained);
+        return new long[]{insertNS, drainNS};
+    }
+}
@@ -0,0 +1,70 @@
+/*******************************************************************************
+ * Copyright (c) 2020. Bytedance Inc.
+ *
+ * This source code is licensed under the MIT license found in the LICENSE file in the root directory of this source tree.
+ ******************************************************************************/
+
+package com.tiktok.appevents;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TTFlushSchedulerTest {
+
+    @Test
+    public void idleAppWaitsForTheMaxDelay() {
+        TTFlushScheduler scheduler = new TTFlushScheduler(0);
+        scheduler.configure(5_000, 60_000);
+        assertEquals(TTAppEventLogger.THRESHOLD, scheduler.flushThreshold());
+        assertFalse(scheduler.hasUnsentEvents());
+
+        scheduler.onEventQueued(300);
+        assertEquals(60_000, scheduler.nextDelayMS("WIFI", 1, 600_000));
+
+        scheduler.onFlushSkipped();
+        assertTrue(scheduler.hasUnsentEvents());
+        scheduler.onFlushed(100, true);
+        assertFalse(scheduler.hasUnsentEvents());
+
+        // a process which is not the uploader hands its events over
+        scheduler.onFlushSkipped();
+        scheduler.onHandedOver();
+        assertFalse(scheduler.hasUnsentEvents());
+    }
+
+    @Test
+    public void busyAppFillsTheBatch() {
+        TTFlushScheduler scheduler = new TTFlushScheduler(0);
+        scheduler.configure(5_000, 60_000);
+        // 10 events per second of 320 bytes
+        for (int i = 0; i < 100; i++) {
+            scheduler.onEventQueued(320);
+        }
+        long delay = scheduler.nextDelayMS("WIFI", 0, 10_000);
+        // 64k on wifi is 204 events, about 20 seconds at this rate
+        assertEquals(204, scheduler.flushThreshold());
+        assertEquals(20_400, delay);
+
+        // slower network, smaller batches
+        for (int i = 0; i < 100; i++) {
+            scheduler.onEventQueued(320);
+        }
+        assertEquals(5_100, scheduler.nextDelayMS("3G", 0, 20_000));
+        assertEquals(51, scheduler.flushThreshold());
+
+        // the batch is already full
+        assertEquals(5_000, scheduler.nextDelayMS("3G", 200, 30_000));
+    }
+
+    @Test
+    public void slowUploadsStretchTheDelay() {
+        TTFlushScheduler scheduler = new TTFlushScheduler(0);
+        scheduler.configure(5_000, 60_000);
+        scheduler.onFlushed(4_000, true);
+        assertEquals(16_000, scheduler.nextDelayMS("4G", 500, 1_000));
+
+        scheduler.configure(5_000, 10_000);
+        assertEquals(10_000, scheduler.nextDelayMS("4G", 500, 2_000));
+    }
+}
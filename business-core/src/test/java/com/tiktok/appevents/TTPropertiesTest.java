@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright (c) 2020. Bytedance Inc.
+ *
+ * This source code is licensed under the MIT license found in the LICENSE file in the root directory of this source tree.
+ ******************************************************************************/
+
+package com.tiktok.appevents;
+
+import com.tiktok.util.TTJsonWriter;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+public class TTPropertiesTest {
+
+    @Test
+    public void primitivesAndContents() {
+        TTProperties props = new TTProperties()
+                .put("currency", "USD")
+                .put("value", 9.99)
+                .put("quantity", 2)
+                .put("paid", true)
+                .addContent(new TTProperties().put("content_id", "a"))
+                .addContent(new TTProperties().put("content_id", "b"));
+        assertEquals("{\"currency\":\"USD\",\"value\":9.99,\"quantity\":2,\"paid\":true,"
+                + "\"contents\":[{\"content_id\":\"a\"},{\"content_id\":\"b\"}]}", props.toString());
+
+        assertEquals("{}", new TTProperties().toString());
+        assertEquals("{\"contents\":[{}]}", new TTProperties().addContent(new TTProperties()).toString());
+        assertEquals("{\"value\":1,\"nan\":null,\"s\":null}", new TTProperties()
+                .put("value", 1.0).put("nan", Double.NaN).put("s", (String) null).toString());
+    }
+
+    @Test
+    public void escaping() {
+        StringBuilder sb = new StringBuilder();
+        TTJsonWriter.appendString(sb, "a\"b\\c\nd\u0001\u2028");
+        assertEquals("\"a\\\"b\\\\c\\nd\\u0001\\u2028\"", sb.toString());
+    }
+
+    @Test
+    public void writerSplicesRawJson() {
+        TTJsonWriter writer = new TTJsonWriter(16);
+        writer.beginObject()
+                .rawMembers("{\"app\":{\"id\":1}}")
+                .rawMembers("{ }")
+                .name("batch").beginArray()
+                .beginObject().name("type").value("track").name("properties").rawValue("{\"x\":1}").endObject()
+                .beginObject().name("count").value(3).endObject()
+                .endArray()
+                .endObject();
+        assertEquals("{\"app\":{\"id\":1},\"batch\":[{\"type\":\"track\",\"properties\":{\"x\":1}},{\"count\":3}]}",
+                writer.toString());
+    }
+
+    @Test
+    public void writerStreamsIntoGzip() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+        Writer out = new OutputStreamWriter(gzip, "UTF-8");
+        TTJsonWriter streamed = new TTJsonWriter(out);
+        TTJsonWriter buffered = new TTJsonWriter(16);
+        for (TTJsonWriter writer : new TTJsonWriter[]{streamed, buffered}) {
+            writer.beginObject().name("batch").beginArray();
+            // a few times over the size at which the text is passed on
+            for (int i = 0; i < 2000; i++) {
+                writer.beginObject().name("event").value("ViewContent \u00e9").name("i").value(i).endObject();
+            }
+            writer.endArray().endObject();
+        }
+        assertTrue(streamed.length() < buffered.length());
+        streamed.flush();
+        gzip.finish();
+        assertEquals(0, streamed.length());
+        assertTrue(bytes.size() < buffered.length() / 10);
+
+        StringBuilder sb = new StringBuilder();
+        try (Reader in = new InputStreamReader(new GZIPInputStream(new ByteArrayInputStream(bytes.toByteArray())), "UTF-8")) {
+            char[] buf = new char[1024];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                sb.append(buf, 0, n);
+            }
+        }
+        assertEquals(buffered.toString(), sb.toString());
+    }
+}
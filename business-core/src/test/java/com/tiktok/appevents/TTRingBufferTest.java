@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright (c) 2020. Bytedance Inc.
+ *
+ * This source code is licensed under the MIT license found in the LICENSE file in the root directory of this source tree.
+ ******************************************************************************/
+
+package com.tiktok.appevents;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class TTRingBufferTest {
+
+    @Test
+    public void fifoAndCapacity() {
+        TTRingBuffer<Integer> ring = new TTRingBuffer<>(3);
+        assertEquals(4, ring.capacity());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer(i));
+        }
+        assertFalse(ring.offer(4));
+        assertEquals(4, ring.size());
+
+        assertEquals(Integer.valueOf(0), ring.poll());
+        assertTrue(ring.offer(4));
+
+        List<Integer> drained = new ArrayList<>();
+        assertEquals(2, ring.drainTo(drained, 2));
+        assertEquals(Integer.valueOf(1), drained.get(0));
+        assertEquals(Integer.valueOf(2), drained.get(1));
+        assertEquals(2, ring.size());
+
+        ring.clear();
+        assertTrue(ring.isEmpty());
+        assertNull(ring.poll());
+    }
+
+    @Test
+    public void tryDrainDoesNotWaitForAConsumer() throws Exception {
+        TTRingBuffer<Integer> ring = new TTRingBuffer<>(4);
+        ring.offer(0);
+        ring.offer(1);
+        List<Integer> drained = new ArrayList<>();
+        java.util.concurrent.CountDownLatch inside = new java.util.concurrent.CountDownLatch(1);
+        java.util.concurrent.CountDownLatch release = new java.util.concurrent.CountDownLatch(1);
+        Thread consumer = new Thread(() -> ring.drain(e -> {
+            inside.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ignored) {
+            }
+        }, 1));
+        consumer.start();
+        inside.await();
+        // the other consumer holds the lock
+        assertEquals(0, ring.tryDrain(drained::add, Integer.MAX_VALUE));
+        release.countDown();
+        consumer.join();
+        assertEquals(1, ring.tryDrain(drained::add, Integer.MAX_VALUE));
+        assertEquals(Integer.valueOf(1), drained.get(0));
+    }
+
+    @Test
+    public void offerAll() {
+        TTRingBuffer<Integer> ring = new TTRingBuffer<>(4);
+        assertTrue(ring.offer(0));
+        List<Integer> group = new ArrayList<>();
+        for (int i = 1; i <= 5; i++) {
+            group.add(i);
+        }
+        // only 3 slots left
+        assertEquals(3, ring.offerAll(group, 0));
+        assertEquals(0, ring.offerAll(group, 3));
+        assertEquals(Integer.valueOf(0), ring.poll());
+        assertEquals(1, ring.offerAll(group, 3));
+
+        List<Integer> drained = new ArrayList<>();
+        ring.drainTo(drained, Integer.MAX_VALUE);
+        assertEquals(4, drained.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(Integer.valueOf(i + 1), drained.get(i));
+        }
+    }
+
+    @Test
+    public void concurrentProducers() throws Exception {
+        final int producers = 4;
+        final int perProducer = 20000;
+        final TTRingBuffer<Integer> ring = new TTRingBuffer<>(256);
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int base = p * perProducer;
+            threads[p] = new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    while (!ring.offer(base + i)) {
+                        Thread.yield();
+                    }
+                }
+            });
+            threads[p].start();
+        }
+
+        Set<Integer> seen = new HashSet<>();
+        int[] lastPerProducer = new int[producers];
+        for (int p = 0; p < producers; p++) {
+            lastPerProducer[p] = -1;
+        }
+        while (seen.size() < producers * perProducer) {
+            ring.drain(value -> {
+                assertTrue(seen.add(value));
+                // each producer's events stay in order
+                int producer = value / perProducer;
+                assertTrue(value > lastPerProducer[producer]);
+                lastPerProducer[producer] = value;
+            }, 64);
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertTrue(ring.isEmpty());
+    }
+}
@@ -0,0 +1,168 @@
+/*******************************************************************************
+ * Copyright (c) 2020. Bytedance Inc.
+ *
+ * This source code is licensed under the MIT license found in the LICENSE file in the root directory of this source tree.
+ ******************************************************************************/
+
+package com.tiktok.appevents;
+
+import androidx.annotation.Nullable;
+
+import com.tiktok.TikTokBusinessSdk;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.objenesis.ObjenesisStd;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Collections;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Bytes allocated on the calling thread per {@link TTAppEventLogger#track} call, the whole caller
+ * side: the global switch, the rate limiter, the staging ring and the hand-off to the eventLoop.
+ * Compared with the path it replaced, a JSONObject for null props and a task per event.
+ * <p>
+ * Measured with the allocation counters of HotSpot, skipped on the JVMs without them. No mocks,
+ * their dispatch allocates on the calling thread. The logger is made without its constructor,
+ * which needs the Application, and the eventLoop only frees the staged slots: what it does with
+ * them is not done on the calling thread. With the staging ring kept full, the overflow path is
+ * measured too, it is bounded and allocates no more than the fast path.
+ */
+@Category(Benchmark.class)
+public class TTTrackBenchmarkTest {
+    private static final int CALLS = 128;
+    private static final int ROUNDS = 2000;
+
+    private com.sun.management.ThreadMXBean threadBean;
+    private ScheduledExecutorService eventLoop;
+    private TTAppEventLogger appEventLogger;
+    // the eventLoop leaves the staging ring full, only the overflow ring is emptied
+    private volatile boolean stagingFull = false;
+
+    @Before
+    public void setup() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threadBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        appEventLogger = new ObjenesisStd().newInstance(TTAppEventLogger.class);
+        eventLoop = TTAppEventLogger.eventLoop;
+        Runnable freeSlots = () -> {
+            TTAppEventLogger.stagingRing.clear();
+            TTAppEventLogger.overflowRing.clear();
+            if (stagingFull) {
+                while (TTAppEventLogger.stagingRing.publish(TTAppEvent.TTAppEventType.track, "ViewContent", null, 1)) {
+                }
+            }
+            // the drain stays pending while the staging ring is full
+            TTAppEventLogger.stagingDrainScheduled.set(stagingFull);
+        };
+        TTAppEventLogger.eventLoop = new ScheduledThreadPoolExecutor(1) {
+            @Override
+            public void execute(Runnable command) {
+                // the hand-off is the same, the task is not run
+                super.execute(freeSlots);
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        if (eventLoop != null) {
+            TTAppEventLogger.eventLoop.shutdownNow();
+            TTAppEventLogger.eventLoop = eventLoop;
+        }
+        TTAppEventLogger.rateLimiter.setRules(Collections.emptyMap());
+        TTAppEventLogger.stagingDrainScheduled.set(false);
+        TTAppEventLogger.stagingRing.clear();
+        TTAppEventLogger.overflowRing.clear();
+        TTAppEventsQueue.configure(0, TikTokBusinessSdk.OverflowPolicy.SPILL_TO_DISK, 0);
+    }
+
+    /**
+     * The caller side of trackEvent before the staging ring
+     */
+    private void trackBefore(TTAppEvent.TTAppEventType type, String event, @Nullable JSONObject props) {
+        if (!TikTokBusinessSdk.isSystemActivated()) {
+            return;
+        }
+        JSONObject finalProps = props != null ? props : new JSONObject();
+        Runnable task = () -> addToQueue(type, event, finalProps);
+        TTAppEventLogger.eventLoop.execute(task);
+    }
+
+    private void addToQueue(TTAppEvent.TTAppEventType type, String event, JSONObject props) {
+        TTAppEventsQueue.addEvent(new TTAppEvent(type, event, props.toString()));
+    }
+
+    private double bytesPerCall(Runnable call) throws Exception {
+        long threadId = Thread.currentThread().getId();
+        long total = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long before = threadBean.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < CALLS; i++) {
+                call.run();
+            }
+            total += threadBean.getThreadAllocatedBytes(threadId) - before;
+            // the eventLoop catches up outside of the measurement
+            TTAppEventLogger.eventLoop.submit(() -> {
+            }).get();
+        }
+        return total / (double) (ROUNDS * CALLS);
+    }
+
+    private double warmedUp(Runnable call) throws Exception {
+        bytesPerCall(call);
+        return bytesPerCall(call);
+    }
+
+    @Test
+    public void trackAllocations() throws Exception {
+        JSONObject props = new JSONObject().put("content_id", "sku_1").put("value", 9.99);
+
+        double before = warmedUp(() -> trackBefore(TTAppEvent.TTAppEventType.track, "ViewContent", null));
+        double beforeWithProps = warmedUp(() -> trackBefore(TTAppEvent.TTAppEventType.track, "ViewContent", props));
+        double track = warmedUp(() -> appEventLogger.track("ViewContent", null));
+        double trackWithProps = warmedUp(() -> appEventLogger.track("ViewContent", props));
+        // an event_sampling rule which keeps everything, the synchronized token bucket is taken
+        TTAppEventLogger.rateLimiter.setRules(Collections.singletonMap("ViewContent",
+                new TTEventRateLimiter.Rule(1, 1e9, 1e9)));
+        double trackWithRule = warmedUp(() -> appEventLogger.track("ViewContent", null));
+
+        // depends on the JVM, the JSONObject is the one of org.json here, not the one of the platform
+        System.out.printf("bytes per track call: before %.1f (%.1f with props), "
+                        + "now %.1f (%.1f with props, %.1f with a sampling rule)%n",
+                before, beforeWithProps, track, trackWithProps, trackWithRule);
+        assertTrue(track < before);
+        assertTrue(trackWithProps < beforeWithProps);
+    }
+
+    @Test
+    public void trackAllocationsWhenStagingIsFull() throws Exception {
+        double before = warmedUp(() -> trackBefore(TTAppEvent.TTAppEventType.track, "ViewContent", null));
+        stagingFull = true;
+        TTAppEventsQueue.configure(0, TikTokBusinessSdk.OverflowPolicy.DROP_OLDEST, 0);
+        double dropOldest = warmedUp(() -> appEventLogger.track("ViewContent", null));
+        TTAppEventsQueue.configure(0, TikTokBusinessSdk.OverflowPolicy.SPILL_TO_DISK, 0);
+        double spill = warmedUp(() -> appEventLogger.track("ViewContent", null));
+        double priority = warmedUp(() -> appEventLogger.track("Purchase", null));
+
+        System.out.printf("bytes per track call with the staging ring full: before %.1f, "
+                        + "now %.1f with DROP_OLDEST, %.1f with SPILL_TO_DISK, %.1f for a priority event%n",
+                before, dropOldest, spill, priority);
+        assertTrue(dropOldest < before);
+        assertTrue(spill < before);
+        assertTrue(priority < before);
+    }
+}
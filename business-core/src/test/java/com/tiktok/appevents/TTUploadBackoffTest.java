@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright (c) 2020. Bytedance Inc.
+ *
+ * This source code is licensed under the MIT license found in the LICENSE file in the root directory of this source tree.
+ ******************************************************************************/
+
+package com.tiktok.appevents;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TTUploadBackoffTest {
+
+    // the jitter at its extremes
+    private static Random fixed(double value) {
+        return new Random() {
+            @Override
+            public double nextDouble() {
+                return value;
+            }
+        };
+    }
+
+    @Test
+    public void opensAfterTheThreshold() {
+        TTUploadBackoff backoff = new TTUploadBackoff(fixed(0.999));
+        long now = 1_000_000;
+        assertEquals(0, backoff.remainingMS(now));
+
+        long expected = TTUploadBackoff.BASE_DELAY_MS;
+        for (int i = 1; i < TTUploadBackoff.FAILURE_THRESHOLD; i++) {
+            backoff.onFailure(now, -1);
+            // every flush waits, the circuit is not open yet
+            assertFalse(backoff.isOpen(now));
+            assertTrue(backoff.isWaiting(now));
+            assertFalse(backoff.isWaiting(now + backoff.remainingMS(now)));
+            assertTrue(backoff.remainingMS(now) <= expected);
+            assertTrue(backoff.remainingMS(now) > expected * 9 / 10);
+            expected *= 2;
+        }
+        backoff.onFailure(now, -1);
+        assertTrue(backoff.isOpen(now));
+        long wait = backoff.remainingMS(now);
+        assertFalse(backoff.isOpen(now + wait));
+
+        backoff.onSuccess();
+        assertFalse(backoff.isOpen(now));
+        assertFalse(backoff.isWaiting(now));
+        assertEquals(0, backoff.remainingMS(now));
+        assertEquals(0, backoff.failures());
+    }
+
+    @Test
+    public void jitterAndCap() {
+        TTUploadBackoff low = new TTUploadBackoff(fixed(0));
+        for (int i = 0; i < 30; i++) {
+            low.onFailure(0, -1);
+        }
+        assertEquals(TTUploadBackoff.MAX_DELAY_MS / 2, low.remainingMS(0));
+
+        TTUploadBackoff high = new TTUploadBackoff(fixed(0.999));
+        for (int i = 0; i < 30; i++) {
+            high.onFailure(0, -1);
+        }
+        assertTrue(high.remainingMS(0) <= TTUploadBackoff.MAX_DELAY_MS);
+        assertTrue(high.remainingMS(0) > TTUploadBackoff.MAX_DELAY_MS * 9 / 10);
+    }
+
+    @Test
+    public void retryAfterOpensRightAway() {
+        TTUploadBackoff backoff = new TTUploadBackoff(fixed(0));
+        backoff.onFailure(0, 120_000);
+        assertTrue(backoff.isOpen(119_999));
+        assertFalse(backoff.isOpen(120_000));
+
+        // not believed beyond the limit
+        backoff.onFailure(0, 24 * 60 * 60_000L);
+        assertEquals(TTUploadBackoff.MAX_RETRY_AFTER_MS, backoff.remainingMS(0));
+    }
+
+    @Test
+    public void restartKeepsWaiting() {
+        TTUploadBackoff backoff = new TTUploadBackoff(fixed(0));
+        // one failure before the crash, the wait is not over
+        backoff.restore(1, 10_000, 5_000);
+        assertTrue(backoff.isOpen(5_000));
+        assertEquals(5_000, backoff.remainingMS(5_000));
+
+        // the wait was over before the restart
+        backoff.restore(4, 10_000, 20_000);
+        assertFalse(backoff.isOpen(20_000));
+        assertEquals(4, backoff.failures());
+
+        // the clock went back
+        backoff.restore(4, Long.MAX_VALUE, 0);
+        assertEquals(TTUploadBackoff.MAX_RETRY_AFTER_MS, backoff.remainingMS(0));
+    }
+}
@@ -0,0 +1,52 @@
+/*******************************************************************************
+ * Copyright (c) 2020. Bytedance Inc.
+ *
+ * This source code is licensed under the MIT license found in the LICENSE file in the root directory of this source tree.
+ ******************************************************************************/
+
+package com.tiktok.appevents;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TTUploadConcurrencyTest {
+
+    @Test
+    public void additiveIncreaseMultiplicativeDecrease() {
+        TTUploadConcurrency concurrency = new TTUploadConcurrency();
+        assertEquals(TTUploadConcurrency.INITIAL_LIMIT, concurrency.limit());
+
+        // a full limit of good chunks, one more in flight
+        concurrency.onChunk(600, true);
+        concurrency.onChunk(600, true);
+        assertEquals(3, concurrency.limit());
+        for (int i = 0; i < 10; i++) {
+            concurrency.onChunk(600, true);
+        }
+        assertEquals(TTUploadConcurrency.MAX_LIMIT, concurrency.limit());
+
+        concurrency.onChunk(600, false);
+        assertEquals(2, concurrency.limit());
+        concurrency.onChunk(600, false);
+        concurrency.onChunk(600, false);
+        assertEquals(TTUploadConcurrency.MIN_LIMIT, concurrency.limit());
+    }
+
+    @Test
+    public void slowChunksStepBack() {
+        TTUploadConcurrency concurrency = new TTUploadConcurrency();
+        for (int i = 0; i < 10; i++) {
+            concurrency.onChunk(100, true);
+        }
+        assertEquals(TTUploadConcurrency.MAX_LIMIT, concurrency.limit());
+        concurrency.onChunk(2000, true);
+        assertEquals(3, concurrency.limit());
+
+        // a slower network becomes the usual latency after a while
+        for (int i = 0; i < 40; i++) {
+            concurrency.onChunk(800, true);
+        }
+        assertEquals(TTUploadConcurrency.MAX_LIMIT, concurrency.limit());
+    }
+}
@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * Copyright (c) 2020. Bytedance Inc.
+ *
+ * This source code is licensed under the MIT license found in the LICENSE file in the root directory of this source tree.
+ ******************************************************************************/
+
+package com.tiktok.appevents;
+
+import com.tiktok.TikTokBusinessSdk;
+import com.tiktok.util.TTLocalTransport;
+import com.tiktok.util.TTUtil;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.powermock.api.mockito.PowerMockito.when;
+
+/**
+ * The upload path from TTRequest down to the transport, against the api stand-in, no network and
+ * no platform classes. Only what comes from the Application is mocked: the config the transport
+ * is read from, and the device context of the events.
+ */
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({TTUtil.class, TikTokBusinessSdk.class, TTRequestBuilder.class})
+public class TTUploadPathTest extends BaseTest {
+
+    private TTLocalTransport transport;
+
+    @Before
+    public void setupSdk() throws Exception {
+        PowerMockito.mockStatic(TikTokBusinessSdk.class);
+        PowerMockito.mockStatic(TTRequestBuilder.class);
+        when(TikTokBusinessSdk.getLogLevel()).thenReturn(TikTokBusinessSdk.LogLevel.NONE);
+        when(TikTokBusinessSdk.getApiTrackDomain()).thenReturn("analytics.us.tiktok.com");
+        when(TikTokBusinessSdk.getApiAvailableVersion()).thenReturn("v1.3");
+        transport = new TTLocalTransport();
+        when(TikTokBusinessSdk.getTransport()).thenReturn(transport);
+        when(TTRequestBuilder.getContextJsonForApi(any()))
+                .thenReturn("{\"app\":{\"id\":\"com.example\",\"version\":\"1.0\"},\"library\":{\"name\":\"bytedance/tiktok-business-android-sdk\"}}");
+
+        TTRequest.backoff.onSuccess();
+    }
+
+    private static JSONObject basePayload() throws Exception {
+        return new JSONObject().put("tiktok_app_id", "7000000000").put("event_source", "APP_EVENTS_SDK");
+    }
+
+    private static List<TTAppEvent> events(int n) {
+        TTUserInfo user = new TTUserInfo();
+        user.anonymousId = "0f8fad5b-d9cb-469f-a165-70867728950e";
+        List<TTAppEvent> events = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            events.add(new TTAppEvent(TTAppEvent.TTAppEventType.track, "ViewContent",
+                    new Date(1_600_000_000_000L + i), "{\"content_id\":\"sku_" + i + "\",\"value\":9.99}", user));
+        }
+        return events;
+    }
+
+    @Test
+    public void chunksReachTheApi() throws Exception {
+        List<TTAppEvent> failed = TTRequest.reportAppEvent(basePayload(), events(120));
+        assertTrue(failed.isEmpty());
+        assertEquals(3, transport.getBatches());
+        assertEquals(120, transport.getEvents());
+        JSONObject last = transport.getLastBatch();
+        assertEquals("7000000000", last.getString("tiktok_app_id"));
+        assertEquals("ViewContent", last.getJSONArray("batch").getJSONObject(0).getString("event"));
+    }
+
+    @Test
+    public void gzipBodiesAreSmaller() throws Exception {
+        TTRequest.reportAppEvent(basePayload(), events(50));
+        long plainBytes = transport.getBytes();
+
+        when(TikTokBusinessSdk.isGzipEnabled()).thenReturn(true);
+        List<TTAppEvent> failed = TTRequest.reportAppEvent(basePayload(), events(50));
+        assertTrue(failed.isEmpty());
+        assertEquals(100, transport.getEvents());
+        assertTrue(transport.getBytes() - plainBytes < plainBytes / 4);
+    }
+
+    @Test
+    public void failedChunksAreSaved() throws Exception {
+        transport.setBatchResponse("{\"code\":50000,\"message\":\"busy\",\"request_id\":\"1\"}");
+        List<TTAppEvent> failed = TTRequest.reportAppEvent(basePayload(), events(260));
+        assertEquals(260, failed.size());
+        // at most the chunks in flight at the first failure are tried
+        assertTrue(transport.getEvents() <= TTUploadConcurrency.MAX_LIMIT * 50);
+        assertEquals(1, TTRequest.backoff.failures());
+
+        transport.setBatchResponse(null);
+        assertTrue(TTRequest.reportAppEvent(basePayload(), events(10)).isEmpty());
+        assertEquals(0, TTRequest.backoff.failures());
+    }
+
+    @Test
+    public void invalidPropertiesAreLeftOutOfTheBody() throws Exception {
+        List<TTAppEvent> events = events(5);
+        TTAppEvent invalid = new TTAppEvent(TTAppEvent.TTAppEventType.track, "ViewContent",
+                new Date(1_600_000_000_000L), "[\"not\", \"an object\"]", events.get(0).getUserInfo());
+        events.add(1, invalid);
+        // the api rejects the third event of the body, the fourth of the list
+        transport.setBatchResponse("{\"code\":20001,\"message\":\"partial\",\"request_id\":\"1\","
+                + "\"data\":{\"failed_events\":[{\"order_in_batch\":2}]}}");
+        int sent = TTRequest.getSuccessfullySentRequests().size();
+
+        List<TTAppEvent> failed = TTRequest.reportAppEvent(basePayload(), events);
+        assertTrue(failed.isEmpty());
+        assertEquals(5, transport.getEvents());
+        assertEquals(5, transport.getLastBatch().getJSONArray("batch").length());
+        List<TTAppEvent> successful = TTRequest.getSuccessfullySentRequests();
+        successful = successful.subList(sent, successful.size());
+        assertEquals(4, successful.size());
+        assertFalse(successful.contains(invalid));
+        assertFalse(successful.contains(events.get(3)));
+    }
+
+    @Test
+    @Category(Benchmark.class)
+    public void benchmark() throws Exception {
+        // about the time the api takes from a phone
+        transport.setLatencyMS(50);
+        for (boolean gzip : new boolean[]{false, true}) {
+            when(TikTokBusinessSdk.isGzipEnabled()).thenReturn(gzip);
+            long bytes = transport.getBytes();
+            List<TTAppEvent> events = events(1000);
+            long start = System.nanoTime();
+            assertTrue(TTRequest.reportAppEvent(basePayload(), events).isEmpty());
+            long ms = (System.nanoTime() - start) / 1_000_000;
+            // depends on the machine
+            System.out.printf("gzip %s: %d events in %d ms, %d bytes sent, %d chunks in flight%n",
+                    gzip, events.size(), ms, transport.getBytes() - bytes, TTRequest.concurrency.limit());
+        }
+    }
+}